@@ -27,6 +27,7 @@ import java.io.RandomAccessFile;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -274,7 +275,11 @@ public class BlobStore {
         return total;
     }
 
-    public int deleteBlobsExceptWithKeys(List<BlobKey> keysToKeep) {
+    public int deleteBlobsExceptWithKeys(Collection<BlobKey> keysToKeep) {
+        // Look up every file's key, so make sure that's a hash lookup:
+        if (!(keysToKeep instanceof Set)) {
+            keysToKeep = new HashSet<BlobKey>(keysToKeep);
+        }
         int numDeleted = 0;
         File file = new File(path);
         File[] contents = file.listFiles();
@@ -294,6 +299,26 @@ public class BlobStore {
         return numDeleted;
     }
 
+    /**
+     * Deletes the blobs with the given keys, without listing the rest of the store.
+     * Returns the number of files deleted.
+     */
+    public int deleteBlobsWithKeys(Collection<BlobKey> keys) {
+        int numDeleted = 0;
+        for (BlobKey key : keys) {
+            File attachment = new File(pathForKey(key));
+            if (!attachment.exists()) {
+                continue;
+            }
+            if (attachment.delete()) {
+                ++numDeleted;
+            } else {
+                Log.e(Log.TAG_BLOB_STORE, "Error deleting attachment: %s", attachment);
+            }
+        }
+        return numDeleted;
+    }
+
     public int deleteBlobs() {
         return deleteBlobsExceptWithKeys(new ArrayList<BlobKey>());
     }
@@ -0,0 +1,361 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The built-in reduce functions, as named in CouchDB design documents: "_count", "_sum" and
+ * "_stats". Besides being ordinary Reducers, they run as accumulators over the rows of a query:
+ * the view reads each emitted value straight from the JSON stored in the index, without
+ * building an object for it (see View.reducedQuery()). They also support rereduce, so their
+ * results are combined from the stored per-key results (see View.setRereduceSupported()).
+ *
+ * _sum and _stats add up the values that are numbers and ignore any others.
+ */
+public abstract class BuiltinReducer implements Reducer {
+
+    /**
+     * Counts the rows.
+     */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer COUNT = new BuiltinReducer("_count") {
+        @Override
+        Accumulator newAccumulator() {
+            return new Accumulator() {
+                private long count;
+
+                @Override
+                void addJson(byte[] json) {
+                    count++;
+                }
+
+                @Override
+                void addValue(Object value) {
+                    count++;
+                }
+
+                @Override
+                void addResult(Object result) {
+                    if (result instanceof Number) {
+                        count += ((Number) result).longValue();
+                    }
+                }
+
+                @Override
+                Object result() {
+                    return count;
+                }
+            };
+        }
+    };
+
+    /**
+     * Adds up the values.
+     */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer SUM = new BuiltinReducer("_sum") {
+        @Override
+        Accumulator newAccumulator() {
+            return new NumberAccumulator() {
+                private final Total sum = new Total();
+
+                @Override
+                void addNumber(long number) {
+                    sum.add(number);
+                }
+
+                @Override
+                void addNumber(double number) {
+                    sum.add(number);
+                }
+
+                @Override
+                void addResult(Object result) {
+                    addValue(result);
+                }
+
+                @Override
+                Object result() {
+                    return sum.value();
+                }
+            };
+        }
+    };
+
+    /**
+     * Computes the sum, count, minimum, maximum and sum of squares of the values, as a map
+     * with those keys (the minimum and maximum only if there were any values).
+     */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer STATS = new BuiltinReducer("_stats") {
+        @Override
+        Accumulator newAccumulator() {
+            return new NumberAccumulator() {
+                private final Total sum = new Total();
+                private long count;
+                private double min;
+                private double max;
+                private final Total sumsqr = new Total();
+
+                @Override
+                void addNumber(long number) {
+                    sum.add(number);
+                    sumsqr.add((double) number * number);
+                    addToRange(number);
+                }
+
+                @Override
+                void addNumber(double number) {
+                    sum.add(number);
+                    sumsqr.add(number * number);
+                    addToRange(number);
+                }
+
+                private void addToRange(double number) {
+                    if (count == 0 || number < min) {
+                        min = number;
+                    }
+                    if (count == 0 || number > max) {
+                        max = number;
+                    }
+                    count++;
+                }
+
+                @Override
+                void addResult(Object result) {
+                    if (!(result instanceof Map)) {
+                        return;
+                    }
+                    Map<?, ?> stats = (Map<?, ?>) result;
+                    long resultCount = longValue(stats.get("count"));
+                    if (resultCount <= 0) {
+                        return;
+                    }
+                    double resultMin = doubleValue(stats.get("min"));
+                    double resultMax = doubleValue(stats.get("max"));
+                    if (count == 0 || resultMin < min) {
+                        min = resultMin;
+                    }
+                    if (count == 0 || resultMax > max) {
+                        max = resultMax;
+                    }
+                    count += resultCount;
+                    sum.add(stats.get("sum"));
+                    sumsqr.add(stats.get("sumsqr"));
+                }
+
+                @Override
+                Object result() {
+                    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+                    stats.put("sum", sum.value());
+                    stats.put("count", count);
+                    if (count > 0) {
+                        stats.put("min", Total.number(min));
+                        stats.put("max", Total.number(max));
+                    }
+                    stats.put("sumsqr", sumsqr.value());
+                    return stats;
+                }
+            };
+        }
+    };
+
+    private final String name;
+
+    private BuiltinReducer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the built-in reducer with the given name ("_count", "_sum" or "_stats"), or null.
+     */
+    @InterfaceAudience.Public
+    public static BuiltinReducer named(String name) {
+        for (BuiltinReducer reducer : new BuiltinReducer[] { COUNT, SUM, STATS }) {
+            if (reducer.name.equals(name)) {
+                return reducer;
+            }
+        }
+        return null;
+    }
+
+    @InterfaceAudience.Public
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+        Accumulator accumulator = newAccumulator();
+        for (Object value : values) {
+            if (rereduce) {
+                accumulator.addResult(value);
+            } else {
+                accumulator.addValue(value);
+            }
+        }
+        return accumulator.result();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Starts reducing a group of rows.
+     */
+    abstract Accumulator newAccumulator();
+
+    /**
+     * Reduces a group of rows, one value at a time.
+     */
+    abstract static class Accumulator {
+
+        /**
+         * Adds a row's value, as the JSON stored in the index (null if the value is null).
+         */
+        abstract void addJson(byte[] json);
+
+        /**
+         * Adds a row's value.
+         */
+        abstract void addValue(Object value);
+
+        /**
+         * Adds an earlier result of the same reducer (when rereducing).
+         */
+        abstract void addResult(Object result);
+
+        abstract Object result();
+    }
+
+    /**
+     * An Accumulator of the values that are numbers. Integers in the stored JSON are parsed in
+     * place; other numbers go through Double.parseDouble().
+     */
+    private abstract static class NumberAccumulator extends Accumulator {
+
+        abstract void addNumber(long number);
+
+        abstract void addNumber(double number);
+
+        @Override
+        void addJson(byte[] json) {
+            if (json == null || json.length == 0) {
+                return;
+            }
+            int start = (json[0] == '-') ? 1 : 0;
+            if (start >= json.length || json[start] < '0' || json[start] > '9') {
+                return;  // not a number
+            }
+            // Up to 18 digits always fit in a long:
+            boolean integer = json.length - start <= 18;
+            long number = 0;
+            for (int i = start; integer && i < json.length; i++) {
+                if (json[i] >= '0' && json[i] <= '9') {
+                    number = number * 10 + (json[i] - '0');
+                } else {
+                    integer = false;
+                }
+            }
+            if (integer) {
+                addNumber(start > 0 ? -number : number);
+                return;
+            }
+            char[] chars = new char[json.length];
+            for (int i = 0; i < json.length; i++) {
+                chars[i] = (char) json[i];
+            }
+            try {
+                addNumber(Double.parseDouble(new String(chars)));
+            } catch (NumberFormatException e) {
+                // not a number after all
+            }
+        }
+
+        @Override
+        void addValue(Object value) {
+            if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                addNumber(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                addNumber(((Number) value).doubleValue());
+            }
+        }
+    }
+
+    /**
+     * A sum that stays an exact long as long as only integers are added.
+     */
+    private static final class Total {
+
+        private long longTotal;
+        private double doubleTotal;
+        private boolean isDouble;
+
+        void add(long number) {
+            if (isDouble) {
+                doubleTotal += number;
+            } else {
+                longTotal += number;
+            }
+        }
+
+        void add(double number) {
+            if (!isDouble) {
+                isDouble = true;
+                doubleTotal = longTotal;
+            }
+            doubleTotal += number;
+        }
+
+        void add(Object number) {
+            if (number instanceof Integer || number instanceof Long
+                    || number instanceof Short || number instanceof Byte) {
+                add(((Number) number).longValue());
+            } else if (number instanceof Number) {
+                add(((Number) number).doubleValue());
+            }
+        }
+
+        Object value() {
+            return isDouble ? number(doubleTotal) : (Object) longTotal;
+        }
+
+        /**
+         * A whole double as a Long (so it's written without a fraction), otherwise as is.
+         */
+        static Object number(double number) {
+            if (number == Math.rint(number) && Math.abs(number) < (1L << 53)) {
+                return (long) number;
+            }
+            return number;
+        }
+    }
+
+    private static long longValue(Object number) {
+        return (number instanceof Number) ? ((Number) number).longValue() : 0;
+    }
+
+    private static double doubleValue(Object number) {
+        return (number instanceof Number) ? ((Number) number).doubleValue() : 0;
+    }
+}
@@ -9,6 +9,7 @@ import com.couchbase.lite.util.LruCache;
  * It keeps track of all added objects as long as anything else has retained them,
  * and it keeps a certain number of recently-accessed objects with no external references.
  * It's intended for use by a parent resource, to cache its children.
+ * It's thread-safe, since change notifications may be posted on another thread.
  */
 public class Cache<K,V> {
 
@@ -34,13 +35,13 @@ public class Cache<K,V> {
         weakReferenceCache = new WeakValueHashMap<K, V>();
     }
 
-    public V put(K key, V value) {
+    public synchronized V put(K key, V value) {
         strongReferenceCache.put(key, value);
         weakReferenceCache.put(key, value);
         return value;
     }
 
-    public V get(K key) {
+    public synchronized V get(K key) {
 
         V value = null;
         if (weakReferenceCache.containsKey(key)) {
@@ -53,7 +54,7 @@ public class Cache<K,V> {
         return value;
     }
 
-    public V remove(K key) {
+    public synchronized V remove(K key) {
         V removedStrongValue = null;
         V removedWeakValue = null;
         removedStrongValue = strongReferenceCache.remove(key);
@@ -67,7 +68,7 @@ public class Cache<K,V> {
         return null;
     }
 
-    public void clear() {
+    public synchronized void clear() {
         strongReferenceCache.evictAll();
         weakReferenceCache.clear();
     }
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a database's changes feed in sequence order, reading it a page at a time.
+ * Each page is a separate short query (continuing after the last sequence read), so no
+ * cursor or connection is held while the caller works through the revisions, and no more
+ * rows than the caller consumes (up to the limit in the ChangesOptions) are read.
+ *
+ * If a page can't be read, hasNext() and next() throw a ReadException rather than ending the
+ * iteration early, so callers can't mistake a failed query for the end of the feed.
+ *
+ * Created by Database.changesIteratorSince().
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class ChangesIterator implements Iterator<RevisionInternal> {
+
+    // Rows read per query. Kept within Database.MAX_IN_CLAUSE_VALUES, since the conflict
+    // check looks up a page's documents in one query.
+    private static final int PAGE_SIZE = 500;
+
+    private final Database database;
+    private final long since;
+    private final ChangesOptions options;
+    private final ReplicationFilter filter;
+
+    private final LinkedList<RevisionInternal> page = new LinkedList<RevisionInternal>();
+    private long lastSequenceRead;
+    private int remaining;
+    private boolean atEnd;
+
+    ChangesIterator(Database database, long since, ChangesOptions options, ReplicationFilter filter) {
+        this.database = database;
+        this.since = since;
+        this.options = options;
+        this.filter = filter;
+        this.lastSequenceRead = since;
+        this.remaining = options.getLimit();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (page.isEmpty() && !atEnd && remaining > 0) {
+            readPage();
+        }
+        return !page.isEmpty() && remaining > 0;
+    }
+
+    @Override
+    public RevisionInternal next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        --remaining;
+        return page.removeFirst();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns up to maxCount of the next changes.
+     */
+    public List<RevisionInternal> next(int maxCount) {
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>();
+        while (result.size() < maxCount && hasNext()) {
+            result.add(next());
+        }
+        return result;
+    }
+
+    private void readPage() {
+        // Without a filter nearly every row read is returned (all but losing conflicts), so just
+        // read as many as are still wanted:
+        int pageSize = PAGE_SIZE;
+        if (filter == null) {
+            pageSize = Math.min(PAGE_SIZE, remaining);
+        }
+        long last;
+        try {
+            last = database.readChangesPage(since, lastSequenceRead, pageSize, options, filter, page);
+        } catch (CouchbaseLiteException e) {
+            throw new ReadException(e);
+        }
+        if (last <= 0) {
+            atEnd = true;
+        } else {
+            lastSequenceRead = last;
+        }
+    }
+
+    /**
+     * Thrown by hasNext() and next() when a page of changes couldn't be read from the database.
+     * The cause is the CouchbaseLiteException that readChangesPage() failed with.
+     */
+    public static class ReadException extends RuntimeException {
+        ReadException(CouchbaseLiteException cause) {
+            super(cause);
+        }
+
+        @Override
+        public CouchbaseLiteException getCause() {
+            return (CouchbaseLiteException) super.getCause();
+        }
+    }
+}
@@ -21,28 +21,41 @@ import com.couchbase.lite.internal.AttachmentInternal;
 import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.internal.RevisionTree;
 import com.couchbase.lite.replicator.Puller;
 import com.couchbase.lite.replicator.Pusher;
 import com.couchbase.lite.replicator.Replication;
 import com.couchbase.lite.storage.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteConnectionPool;
+import com.couchbase.lite.storage.SQLiteStatement;
+import com.couchbase.lite.storage.SQLiteStatementCache;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
 import com.couchbase.lite.support.Base64;
+import com.couchbase.lite.support.BinaryJson;
+import com.couchbase.lite.support.BloomFilter;
+import com.couchbase.lite.support.BodyCompressor;
+import com.couchbase.lite.support.CanonicalJsonWriter;
 import com.couchbase.lite.support.FileDirUtils;
 import com.couchbase.lite.support.HttpClientFactory;
+import com.couchbase.lite.support.LazyDocumentProperties;
 import com.couchbase.lite.support.PersistentCookieStore;
 import com.couchbase.lite.util.CollectionUtils;
 import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
 import com.couchbase.lite.util.StreamUtils;
 import com.couchbase.lite.util.TextUtils;
 import com.couchbase.lite.util.Utils;
 
+import org.codehaus.jackson.JsonGenerator;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
@@ -50,6 +63,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -61,6 +75,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -76,9 +92,12 @@ public final class Database {
     private String path;
     private String name;
     private SQLiteStorageEngine database;
+    private SQLiteStatementCache statements;
+    private SQLiteConnectionPool readers;
 
     private boolean open = false;
     private int transactionLevel = 0;
+    private volatile Thread transactionThread;
 
     /**
      * @exclude
@@ -99,6 +118,88 @@ public final class Database {
     private Cache<String, Document> docCache;
     private List<DocumentChange> changesToNotify;
     private boolean postingChangeNotifications;
+    // Changes made in the open transaction; they go to changesToNotify only if it commits:
+    private List<DocumentChange> transactionChanges = new ArrayList<DocumentChange>();
+    private boolean transactionAborted;
+
+    // Group commit (see ManagerOptions.setGroupCommitDelay()):
+    private int groupCommitDelay = 0;
+    private int groupCommitMaxRevisions;
+    private final Object groupCommitLock = new Object();
+    private List<DocumentChange> changesAwaitingSync = new ArrayList<DocumentChange>();
+    private ScheduledFuture<?> groupCommitFuture;
+
+    // Asynchronous change notifications (see ManagerOptions.setChangeNotificationDelay()):
+    private int changeNotificationDelay = 0;
+    private final Object notificationLock = new Object();
+    private List<DocumentChange> changesAwaitingDispatch = new ArrayList<DocumentChange>();
+    private ScheduledFuture<?> notificationFuture;
+
+    // info key for the last sequence garbageCollectAttachments() has looked at:
+    private static final String ATTACHMENT_GC_SEQUENCE_KEY = "attachmentGCSequence";
+
+    // Dictionary compression of revs.json (see trainBodyCompressionDictionary()):
+    private static final String BODY_DICTIONARY_KEY_PREFIX = "bodyDictionary.";
+    private static final int BODY_DICTIONARY_SAMPLE_SIZE = 1000;
+    private static final int BODY_DICTIONARY_MIN_SAMPLES = 10;
+    private final BodyCompressor bodyCompressor = new BodyCompressor();
+
+    // Numeric doc IDs by docid, sized in (approximate) bytes (see getDocNumericID()):
+    private static final int DOC_NUMERIC_ID_CACHE_SIZE = 512 * 1024;
+    private final LruCache<String, Long> docNumericIDs = new LruCache<String, Long>(DOC_NUMERIC_ID_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String docID, Long docNumericID) {
+            return 64 + 2 * docID.length();  // map entry, String, Long
+        }
+    };
+    // IDs looked up or inserted in the open transaction, seen only by its thread; they go into
+    // docNumericIDs when it commits, since a rolled-back doc_id is reused by the next insert:
+    private final Map<String, Long> transactionDocNumericIDs = new HashMap<String, Long>();
+
+    // Bloom filter of all (docid, revid) pairs in revs, for findMissingRevisions(). It's built on
+    // first use and added to as revisions are inserted; deleted revisions are never taken out, which
+    // only costs the odd false positive. Rebuilt once it's filled past its capacity.
+    private static final double REVISION_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final int REVISION_FILTER_MIN_CAPACITY = 10000;
+    private final Object revisionFilterLock = new Object();
+    private BloomFilter revisionFilter;
+    private List<String> revisionFilterPendingKeys;  // keys inserted while the filter is being built
+
+    // MD5 digests for generating revision IDs, reused (after a reset) by each thread:
+    private static final ThreadLocal<MessageDigest> REVISION_DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    // Keys starting with "_" that are stored in the body (any others are removed, or rejected):
+    private static final List<String> SPECIAL_KEYS_TO_LEAVE = Arrays.asList(
+            "_removed",
+            "_replication_id",
+            "_replication_state",
+            "_replication_state_time");
+
+    // Most values bound to one "IN (...)" query; SQLite allows 999 parameters per statement.
+    private static final int MAX_IN_CLAUSE_VALUES = 500;
+
+    // Revision trees by numeric doc ID, sized in (approximate) bytes (see getRevisionTree()):
+    private static final int REVISION_TREE_CACHE_SIZE = 1024 * 1024;
+    private final LruCache<Long, RevisionTree> revisionTrees = new LruCache<Long, RevisionTree>(REVISION_TREE_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long docNumericID, RevisionTree tree) {
+            return tree.getEstimatedSize();
+        }
+    };
+    // Bumped (under the revisionTrees lock) by every change to the cached trees:
+    private long revisionTreesGeneration;
+    // Trees changed or loaded in the open transaction, seen only by its thread; a null value means
+    // the tree has to be loaded again. They replace the shared ones when the transaction commits:
+    private final Map<Long, RevisionTree> transactionRevisionTrees = new HashMap<Long, RevisionTree>();
 
     /**
      * Each database can have an associated PersistentCookieStore,
@@ -329,9 +430,12 @@ public final class Database {
             Log.v(Database.TAG, "Pruning old revisions...");
             pruneRevsToMaxDepth(0);
             Log.v(Database.TAG, "Deleting JSON of old revisions...");
+            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
+                    "(SELECT sequence FROM revs WHERE current=0 AND json NOT NULL)");
             ContentValues args = new ContentValues();
             args.put("json", (String)null);
             database.update("revs", args, "current=0", null);
+            revisionTreesEvictAll();
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error compacting", e);
             throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
@@ -345,6 +449,8 @@ public final class Database {
 
         Log.v(Database.TAG, "Vacuuming SQLite sqliteDb...");
         try {
+            // This also switches databases created before incremental auto-vacuum over to it,
+            // since open() asks for that mode:
             database.execSQL("VACUUM");
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error vacuuming sqliteDb", e);
@@ -354,6 +460,142 @@ public final class Database {
 
     }
 
+    /**
+     * Creates a compactor that does the same work as compact() in the background, in small
+     * slices that each hold the database only briefly. Call start() on it to begin, and add a
+     * listener to follow its progress.
+     */
+    @InterfaceAudience.Public
+    public IncrementalCompactor createIncrementalCompactor() {
+        return new IncrementalCompactor(this, manager.getWorkExecutor());
+    }
+
+    /**
+     * Turns on compression of stored document bodies, or retrains it, using a dictionary built
+     * from a sample of the current documents. Only bodies written from now on are compressed;
+     * bodies compressed with an earlier dictionary stay readable. The dictionary is saved in the
+     * database, so compression stays on when it's reopened.
+     *
+     * @return false if the database doesn't have enough documents yet to train a useful dictionary.
+     */
+    @InterfaceAudience.Public
+    public boolean trainBodyCompressionDictionary() throws CouchbaseLiteException {
+        int id = bodyCompressor.getCurrentDictionaryId() + 1;
+        if (id > BodyCompressor.MAX_DICTIONARY_ID) {
+            Log.w(Database.TAG, "%s: out of body compression dictionary ids", this);
+            return false;
+        }
+
+        // Most recent bodies go last, where DEFLATE matches best against the dictionary.
+        List<byte[]> samples = new ArrayList<byte[]>();
+        Cursor cursor = null;
+        try {
+            Object[] args = { BODY_DICTIONARY_SAMPLE_SIZE };
+            cursor = database.rawQuery("SELECT json FROM revs WHERE current=1 AND deleted=0 AND json NOT NULL " +
+                    "ORDER BY sequence DESC LIMIT ?", args);
+            while (cursor.moveToNext()) {
+                samples.add(0, bodyCompressor.decompress(cursor.getBlob(0)));
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error sampling document bodies", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } catch (IOException e) {
+            Log.e(Database.TAG, "Error decompressing sampled document body", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (samples.size() < BODY_DICTIONARY_MIN_SAMPLES) {
+            return false;
+        }
+
+        byte[] dictionary = BodyCompressor.trainDictionary(samples);
+        try {
+            Object[] args = { BODY_DICTIONARY_KEY_PREFIX + id, Base64.encodeBytes(dictionary) };
+            database.execSQL("INSERT OR REPLACE INTO info (key, value) VALUES (?, ?)", args);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error saving body compression dictionary", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        }
+        bodyCompressor.addDictionary(id, dictionary);
+        Log.v(Database.TAG, "%s: trained body compression dictionary %d (%d bytes from %d bodies)",
+                this, id, dictionary.length, samples.size());
+        return true;
+    }
+
+    /**
+     * Reports how well stored document bodies compress: "bodies" and "compressedBodies" count the
+     * stored bodies, "storedSize" and "uncompressedSize" are their total sizes in bytes, and
+     * "compressionRatio" is uncompressedSize / storedSize.
+     */
+    @InterfaceAudience.Public
+    public Map<String, Object> getBodyCompressionStats() throws CouchbaseLiteException {
+        long bodies = 0, compressedBodies = 0, storedSize = 0, uncompressedSize = 0;
+        SQLiteStorageEngine connection = acquireReadConnection();
+        Cursor cursor = null;
+        try {
+            cursor = connection.rawQuery("SELECT json FROM revs WHERE json NOT NULL", (Object[]) null);
+            while (cursor.moveToNext()) {
+                byte[] json = cursor.getBlob(0);
+                ++bodies;
+                storedSize += json.length;
+                if (BodyCompressor.isCompressed(json)) {
+                    ++compressedBodies;
+                    uncompressedSize += bodyCompressor.decompress(json).length;
+                } else {
+                    uncompressedSize += json.length;
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error reading document bodies", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } catch (IOException e) {
+            Log.e(Database.TAG, "Error decompressing document body", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseReadConnection(connection);
+        }
+
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("bodies", bodies);
+        stats.put("compressedBodies", compressedBodies);
+        stats.put("storedSize", storedSize);
+        stats.put("uncompressedSize", uncompressedSize);
+        stats.put("compressionRatio", storedSize > 0 ? (double) uncompressedSize / storedSize : 1.0);
+        return stats;
+    }
+
+    /**
+     * Registers the body compression dictionaries saved in the info table.
+     */
+    private boolean loadBodyDictionaries() {
+        Cursor cursor = null;
+        try {
+            Object[] args = { BODY_DICTIONARY_KEY_PREFIX + "%" };
+            cursor = database.rawQuery("SELECT key, value FROM info WHERE key LIKE ?", args);
+            while (cursor.moveToNext()) {
+                int id = Integer.parseInt(cursor.getString(0).substring(BODY_DICTIONARY_KEY_PREFIX.length()));
+                bodyCompressor.addDictionary(id, Base64.decode(cursor.getString(1)));
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error loading body compression dictionaries", e);
+            return false;
+        } catch (IOException e) {
+            Log.e(Database.TAG, "Error decoding body compression dictionary", e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return true;
+    }
+
 
     /**
      * Deletes the database.
@@ -882,8 +1124,16 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public boolean initialize(String statements) {
+        return initialize(statements.split(";"));
+    }
+
+    /**
+     * Runs each of the statements, for the ones (like CREATE TRIGGER) that have semicolons
+     * inside them.
+     */
+    private boolean initialize(String[] statements) {
         try {
-            for (String statement : statements.split(";")) {
+            for (String statement : statements) {
                 database.execSQL(statement);
             }
         } catch (SQLException e) {
@@ -911,18 +1161,27 @@ public final class Database {
             Log.e(Database.TAG, msg);
             throw new IllegalStateException(msg);
         }
+        statements = new SQLiteStatementCache(database);
 
         // Stuff we need to initialize every time the sqliteDb opens:
         if(!initialize("PRAGMA foreign_keys = ON;")) {
             Log.e(Database.TAG, "Error turning on foreign keys");
             return false;
         }
+        // Incremental auto-vacuum lets IncrementalCompactor give free pages back without a full
+        // VACUUM. It only takes effect on a new file (so this has to come before WAL mode writes
+        // the header), or on an existing one at its next VACUUM; otherwise it's a no-op.
+        if(!initialize("PRAGMA auto_vacuum = INCREMENTAL")) {
+            Log.e(Database.TAG, "Error setting auto_vacuum mode");
+            return false;
+        }
+        boolean walEnabled = enableWriteAheadLog();
 
         // Check the user_version number we last stored in the sqliteDb:
         int dbVersion = database.getVersion();
 
         // Incompatible version changes increment the hundreds' place:
-        if(dbVersion >= 100) {
+        if(dbVersion >= 200) {
             Log.e(Database.TAG, "Database: Database version (%d) is newer than I know how to work with", dbVersion);
             database.close();
             return false;
@@ -993,8 +1252,8 @@ public final class Database {
 
         if (dbVersion < 6) {
             // Version 6: enable Write-Ahead Log (WAL) <http://sqlite.org/wal.html>
-            // Not supported on Android, require SQLite 3.7.0
-            //String upgradeSql  = "PRAGMA journal_mode=WAL; " +
+            // (WAL is now switched on by enableWriteAheadLog() every time the database opens,
+            // since older SQLite builds don't support it.)
             String upgradeSql  = "PRAGMA user_version = 6";
             if (!initialize(upgradeSql)) {
                 database.close();
@@ -1057,6 +1316,104 @@ public final class Database {
                 database.close();
                 return false;
             }
+            dbVersion = 11;
+        }
+
+        if (dbVersion < 100) {
+            // Version 100: revs.json and localdocs.json bodies are written in Smile binary JSON.
+            // Existing rows stay JSON text; each body's format is told by its leading bytes
+            // (see BinaryJson). Older versions can't read Smile bodies, hence the hundreds' place.
+            String upgradeSql = "PRAGMA user_version = 100";
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 100;
+        }
+
+        if (dbVersion < 101) {
+            // Version 101: blob_refs counts the attachment rows that refer to each blob, kept up
+            // to date by triggers, so garbageCollectAttachments() only has to look at the blobs
+            // whose count has dropped to zero.
+            String[] upgradeSql = {
+                    "CREATE TABLE blob_refs ( " +
+                    "        key BLOB PRIMARY KEY, " +
+                    "        refcount INTEGER NOT NULL DEFAULT 0)",
+                    "CREATE INDEX blob_refs_by_refcount ON blob_refs(refcount)",
+                    "CREATE TRIGGER blob_refs_insert AFTER INSERT ON attachments BEGIN " +
+                    "        INSERT OR IGNORE INTO blob_refs (key) VALUES (new.key); " +
+                    "        UPDATE blob_refs SET refcount = refcount + 1 WHERE key = new.key; END",
+                    "CREATE TRIGGER blob_refs_delete AFTER DELETE ON attachments BEGIN " +
+                    "        UPDATE blob_refs SET refcount = refcount - 1 WHERE key = old.key; END",
+                    "CREATE TRIGGER blob_refs_update AFTER UPDATE OF key ON attachments BEGIN " +
+                    "        UPDATE blob_refs SET refcount = refcount - 1 WHERE key = old.key; " +
+                    "        INSERT OR IGNORE INTO blob_refs (key) VALUES (new.key); " +
+                    "        UPDATE blob_refs SET refcount = refcount + 1 WHERE key = new.key; END",
+                    "INSERT INTO blob_refs (key, refcount) SELECT key, COUNT(*) FROM attachments GROUP BY key",
+                    "PRAGMA user_version = 101"
+            };
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 101;
+        }
+
+        if (dbVersion < 102) {
+            // Version 102: index for reading the changes feed in sequence order (see ChangesIterator)
+            String upgradeSql = "CREATE INDEX revs_by_current_sequence ON revs(current, sequence); " +
+                    "PRAGMA user_version = 102";
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 102;
+        }
+
+        if (dbVersion < 103) {
+            // Version 103: reduces holds each reduced view's result per distinct key, so grouped
+            // queries don't have to reduce all the rows (see View.updateReduceIndex()). While a
+            // view's reduce_sequence is set, triggers note the keys of the map rows added and
+            // removed in reduces_dirty, whose groups are then reduced again. A negative
+            // reduce_sequence means reducing failed when the index was at that sequence.
+            String[] upgradeSql = {
+                    "ALTER TABLE views ADD COLUMN reduce_sequence INTEGER DEFAULT 0",
+                    "CREATE TABLE reduces ( " +
+                    "        view_id INTEGER NOT NULL REFERENCES views(view_id) ON DELETE CASCADE, " +
+                    "        key TEXT NOT NULL COLLATE JSON, " +
+                    "        value TEXT)",
+                    "CREATE INDEX reduces_keys ON reduces(view_id, key COLLATE JSON)",
+                    "CREATE TABLE reduces_dirty ( " +
+                    "        view_id INTEGER NOT NULL REFERENCES views(view_id) ON DELETE CASCADE, " +
+                    "        key TEXT NOT NULL COLLATE JSON)",
+                    "CREATE INDEX reduces_dirty_by_view ON reduces_dirty(view_id)",
+                    "CREATE TRIGGER maps_insert_reduces AFTER INSERT ON maps " +
+                    "        WHEN (SELECT reduce_sequence FROM views WHERE view_id = new.view_id) > 0 BEGIN " +
+                    "        INSERT INTO reduces_dirty (view_id, key) VALUES (new.view_id, new.key); END",
+                    "CREATE TRIGGER maps_delete_reduces AFTER DELETE ON maps " +
+                    "        WHEN (SELECT reduce_sequence FROM views WHERE view_id = old.view_id) > 0 BEGIN " +
+                    "        INSERT INTO reduces_dirty (view_id, key) VALUES (old.view_id, old.key); END",
+                    "PRAGMA user_version = 103"
+            };
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 103;
+        }
+
+        if (dbVersion < 104) {
+            // Version 104: reduce_identity says which reduce function the stored reduce results
+            // are from (see View.reducerIdentity()); they're only used with that function.
+            String[] upgradeSql = {
+                    "ALTER TABLE views ADD COLUMN reduce_identity TEXT",
+                    "PRAGMA user_version = 104"
+            };
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 104;
         }
 
 
@@ -1068,10 +1425,61 @@ public final class Database {
             return false;
         }
 
+        // With WAL, readers don't block the writer, so queries can run on their own connections.
+        if (walEnabled) {
+            readers = new SQLiteConnectionPool(path);
+        }
+
+        if (!loadBodyDictionaries()) {
+            database.close();
+            return false;
+        }
+
+        // Group commit: commits only write to the WAL; syncGroupCommit() makes them durable.
+        ManagerOptions options = (manager != null) ? manager.getOptions() : null;
+        if (options != null && options.getGroupCommitDelay() > 0) {
+            if (walEnabled) {
+                try {
+                    database.execSQL("PRAGMA synchronous = NORMAL");
+                    groupCommitDelay = options.getGroupCommitDelay();
+                    groupCommitMaxRevisions = options.getGroupCommitMaxRevisions();
+                } catch (SQLException e) {
+                    Log.e(Database.TAG, "Error enabling group commit", e);
+                }
+            } else {
+                Log.w(Database.TAG, "%s: group commit requires WAL journal mode, not enabling it", this);
+            }
+        }
+        if (options != null) {
+            changeNotificationDelay = options.getChangeNotificationDelay();
+        }
+
         open = true;
         return true;
     }
 
+    /**
+     * Switches the database to Write-Ahead Log journaling. Returns false if the SQLite build
+     * doesn't support WAL, in which case all reads stay on the single read-write connection.
+     */
+    private boolean enableWriteAheadLog() {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("PRAGMA journal_mode=WAL", null);
+            if (cursor.moveToNext() && "wal".equalsIgnoreCase(cursor.getString(0))) {
+                return true;
+            }
+            Log.w(Database.TAG, "%s: WAL journal mode not supported, not using read-only connections", this);
+        } catch (SQLException e) {
+            Log.w(Database.TAG, "%s: Error enabling WAL journal mode", e, this);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return false;
+    }
+
     /**
      * @exclude
      */
@@ -1097,11 +1505,41 @@ public final class Database {
 
         allReplicators = null;
 
+        // Make any group-committed writes durable before closing:
+        if (groupCommitDelay > 0) {
+            syncGroupCommit();
+            groupCommitDelay = 0;
+        }
+
+        // Deliver any notifications still waiting for their window, then go back to posting them
+        // synchronously:
+        if (changeNotificationDelay > 0) {
+            dispatchChangeNotifications();
+            changeNotificationDelay = 0;
+        }
+
+        if(readers != null) {
+            readers.close();
+            readers = null;
+        }
+        if(statements != null) {
+            statements.close();
+        }
+        revisionTreesEvictAll();
+        docNumericIDs.evictAll();
+        synchronized (revisionFilterLock) {
+            revisionFilter = null;
+        }
         if(database != null && database.isOpen()) {
             database.close();
         }
         open = false;
         transactionLevel = 0;
+        transactionThread = null;
+        transactionRevisionTrees.clear();
+        transactionDocNumericIDs.clear();
+        transactionChanges.clear();
+        transactionAborted = false;
         return true;
     }
 
@@ -1125,6 +1563,55 @@ public final class Database {
         return database;
     }
 
+    /**
+     * The cache of compiled statements for the storage engine connection.
+     * Hot paths should acquire() a statement, bind typed arguments and release() it afterwards
+     * instead of calling rawQuery(), so the SQL isn't re-parsed on every call.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    SQLiteStatementCache getStatementCache() {
+        return statements;
+    }
+
+    /**
+     * Returns a connection for read-only queries. When the database is in WAL mode this is a
+     * pooled read-only connection, so the query doesn't wait behind a write transaction on
+     * another thread; otherwise (or if this thread has a transaction open, whose uncommitted
+     * changes it must see) it's the main connection. Always pair with releaseReadConnection().
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    SQLiteStorageEngine acquireReadConnection() {
+        SQLiteConnectionPool pool = readers;
+        if (pool == null || transactionThread == Thread.currentThread()) {
+            return database;
+        }
+        try {
+            return pool.acquire();
+        } catch (SQLException e) {
+            Log.w(Database.TAG, "%s: Falling back to main connection for read", e, this);
+            return database;
+        }
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    void releaseReadConnection(SQLiteStorageEngine connection) {
+        SQLiteConnectionPool pool = readers;
+        if (connection == database) {
+            return;
+        }
+        if (pool != null) {
+            pool.release(connection);
+        } else {
+            // the database was closed while the connection was checked out
+            connection.close();
+        }
+    }
+
     /**
      * @exclude
      */
@@ -1160,7 +1647,9 @@ public final class Database {
     public boolean beginTransaction() {
         try {
             database.beginTransaction();
-            ++transactionLevel;
+            if (++transactionLevel == 1) {
+                transactionThread = Thread.currentThread();
+            }
             Log.i(Log.TAG, "%s Begin transaction (level %d)", Thread.currentThread().getName(), transactionLevel);
         } catch (SQLException e) {
             Log.e(Database.TAG, Thread.currentThread().getName() + " Error calling beginTransaction()", e);
@@ -1180,26 +1669,57 @@ public final class Database {
 
         assert(transactionLevel > 0);
 
+        // Either way the storage engine has ended this level when endTransaction() returns or throws.
+        boolean result = true;
         if(commit) {
             Log.i(Log.TAG, "%s Committing transaction (level %d)", Thread.currentThread().getName(), transactionLevel);
-            database.setTransactionSuccessful();
-            database.endTransaction();
+            try {
+                database.setTransactionSuccessful();
+                database.endTransaction();
+            } catch (SQLException e) {
+                // The COMMIT failed, and the storage engine has rolled the transaction back:
+                Log.e(Database.TAG, Thread.currentThread().getName() + " Error committing transaction", e);
+                transactionAborted = true;
+                revisionTreesEvictAll();
+                docNumericIDs.evictAll();
+                result = false;
+            }
         }
         else {
             Log.i(Log.TAG, "%s CANCEL transaction (level %d)", Thread.currentThread().getName(), transactionLevel);
+            // Rolling back a nested transaction rolls back the outermost one too:
+            transactionAborted = true;
             try {
                 database.endTransaction();
             } catch (SQLException e) {
                 Log.e(Database.TAG, Thread.currentThread().getName() + " Error calling endTransaction()", e);
-                return false;
+                result = false;
             }
         }
 
-        --transactionLevel;
+        if (--transactionLevel == 0) {
+            // Nobody hears about (or sees the revision trees and doc IDs of) a transaction that
+            // was rolled back:
+            if (!transactionAborted) {
+                revisionTreesPublishTransaction();
+                for (Map.Entry<String, Long> entry : transactionDocNumericIDs.entrySet()) {
+                    docNumericIDs.put(entry.getKey(), entry.getValue());
+                }
+                changesToNotify.addAll(transactionChanges);
+            }
+            transactionRevisionTrees.clear();
+            transactionDocNumericIDs.clear();
+            transactionChanges.clear();
+            transactionAborted = false;
+            transactionThread = null;
+            if (groupCommitDelay > 0) {
+                deferChangeNotificationsUntilSynced();
+            }
+        }
         postChangeNotifications();
 
 
-        return true;
+        return result;
     }
 
     /**
@@ -1377,8 +1897,30 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public void expandStoredJSONIntoRevisionWithAttachments(byte[] json, RevisionInternal rev, EnumSet<TDContentOptions> contentOptions) {
+        expandStoredJSONIntoRevisionWithAttachments(json, rev, contentOptions, false);
+    }
+
+    /**
+     * If lazily is true, Smile and compressed bodies are given to the revision as a
+     * LazyDocumentProperties, so they're only decoded if something reads them (a filter, say).
+     * JSON text bodies are spliced as usual, as that's already as cheap as it gets.
+     */
+    private void expandStoredJSONIntoRevisionWithAttachments(byte[] json, RevisionInternal rev, EnumSet<TDContentOptions> contentOptions, boolean lazily) {
         Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
-        if(json != null && json.length > 0) {
+        if(lazily && (BinaryJson.isSmile(json) || BodyCompressor.isCompressed(json))) {
+            rev.setProperties(new LazyDocumentProperties(json, extra, bodyCompressor));
+        }
+        else if(BinaryJson.isSmile(json) || BodyCompressor.isCompressed(json)) {
+            try {
+                Map<String,Object> properties = BinaryJson.readProperties(bodyCompressor.decompress(json));
+                properties.putAll(extra);
+                rev.setProperties(properties);
+            } catch (IOException e) {
+                Log.e(Database.TAG, "Error decoding stored revision body", e);
+                rev.setProperties(extra);
+            }
+        }
+        else if(json != null && json.length > 0) {
             rev.setJson(appendDictToJSON(json, extra));
         }
         else {
@@ -1398,20 +1940,13 @@ public final class Database {
         RevisionInternal rev = new RevisionInternal(docId, revId, deleted, this);
         rev.setSequence(sequence);
         Map<String, Object> extra = extraPropertiesForRevision(rev, contentOptions);
-        if (json == null) {
+        if (json == null || json.length == 0) {
+            // A missing or empty body has nothing besides the special properties:
             return extra;
         }
 
-        Map<String, Object> docProperties = null;
-        try {
-            docProperties = Manager.getObjectMapper().readValue(json, Map.class);
-            docProperties.putAll(extra);
-            return docProperties;
-        } catch (Exception e) {
-            Log.e(Database.TAG, "Error serializing properties to JSON", e);
-        }
-
-        return docProperties;
+        // Decoded only if something besides the special properties is read:
+        return new LazyDocumentProperties(json, extra, bodyCompressor);
     }
 
     /**
@@ -1422,25 +1957,28 @@ public final class Database {
         RevisionInternal result = null;
         String sql;
 
+        String cols = "revid, deleted, sequence, no_attachments";
+        if(!contentOptions.contains(TDContentOptions.TDNoBody)) {
+            cols += ", json";
+        }
+        if(rev != null) {
+            sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id AND revid=? LIMIT 1";
+            //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? AND revid=? AND json notnull LIMIT 1";}
+        }
+        else {
+            sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";
+            //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";}
+        }
+
+        SQLiteStatement statement = null;
         Cursor cursor = null;
         try {
-            cursor = null;
-            String cols = "revid, deleted, sequence, no_attachments";
-            if(!contentOptions.contains(TDContentOptions.TDNoBody)) {
-                cols += ", json";
-            }
+            statement = statements.acquire(sql);
+            statement.bindString(1, id);
             if(rev != null) {
-                sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id AND revid=? LIMIT 1";
-                //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? AND revid=? AND json notnull LIMIT 1";}
-                String[] args = {id, rev};
-                cursor = database.rawQuery(sql, args);
-            }
-            else {
-                sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";
-                //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";}
-                String[] args = {id};
-                cursor = database.rawQuery(sql, args);
+                statement.bindString(2, rev);
             }
+            cursor = statement.query();
 
             if(cursor.moveToNext()) {
                 if(rev == null) {
@@ -1465,6 +2003,7 @@ public final class Database {
             if(cursor != null) {
                 cursor.close();
             }
+            statements.release(sql, statement);
         }
         return result;
     }
@@ -1525,15 +2064,26 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public long getDocNumericID(String docId) {
+        // Rows in docs are never deleted or renumbered (purging only deletes revs), so once a
+        // docid's numeric ID is known it stays valid (inserts are cached only once committed).
+        Long cached = cachedDocNumericID(docId);
+        if(cached != null) {
+            return cached;
+        }
+
+        String sql = "SELECT doc_id FROM docs WHERE docid=?";
+        SQLiteStatement statement = null;
         Cursor cursor = null;
-        String[] args = { docId };
 
         long result = -1;
         try {
-            cursor = database.rawQuery("SELECT doc_id FROM docs WHERE docid=?", args);
+            statement = statements.acquire(sql);
+            statement.bindString(1, docId);
+            cursor = statement.query();
 
             if(cursor.moveToNext()) {
                 result = cursor.getLong(0);
+                cacheDocNumericID(docId, result);
             }
             else {
                 result = 0;
@@ -1544,6 +2094,7 @@ public final class Database {
             if(cursor != null) {
                 cursor.close();
             }
+            statements.release(sql, statement);
         }
 
         return result;
@@ -1557,41 +2108,20 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public RevisionList getAllRevisionsOfDocumentID(String docId, long docNumericID, boolean onlyCurrent) {
-
-        String sql = null;
-        if(onlyCurrent) {
-            sql = "SELECT sequence, revid, deleted FROM revs " +
-                    "WHERE doc_id=? AND current ORDER BY sequence DESC";
-        }
-        else {
-            sql = "SELECT sequence, revid, deleted FROM revs " +
-                    "WHERE doc_id=? ORDER BY sequence DESC";
+        RevisionTree tree = getRevisionTree(docNumericID);
+        if(tree == null) {
+            return null;
         }
 
-        String[] args = { Long.toString(docNumericID) };
-        Cursor cursor = null;
-
-        cursor = database.rawQuery(sql, args);
-
-        RevisionList result;
-        try {
-            cursor.moveToNext();
-            result = new RevisionList();
-            while(!cursor.isAfterLast()) {
-                RevisionInternal rev = new RevisionInternal(docId, cursor.getString(1), (cursor.getInt(2) > 0), this);
-                rev.setSequence(cursor.getLong(0));
-                result.add(rev);
-                cursor.moveToNext();
-            }
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting all revisions of document", e);
-            return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+        RevisionList result = new RevisionList();
+        for(RevisionTree.Node node : tree.getNodes()) {
+            if(onlyCurrent && !node.isCurrent()) {
+                continue;
             }
+            RevisionInternal rev = new RevisionInternal(docId, node.getRevId(), node.isDeleted(), this);
+            rev.setSequence(node.getSequence());
+            result.add(rev);
         }
-
         return result;
     }
 
@@ -1625,7 +2155,7 @@ public final class Database {
         List<String> result = new ArrayList<String>();
         Cursor cursor = null;
         try {
-            String[] args = { Long.toString(docIdNumeric) };
+            Object[] args = { docIdNumeric };
             cursor = database.rawQuery("SELECT revid FROM revs WHERE doc_id=? AND current " +
                                            "ORDER BY revid DESC OFFSET 1", args);
             cursor.moveToNext();
@@ -1666,29 +2196,20 @@ public final class Database {
         if (docNumericID <= 0)
             return null;
 
-        int sqlLimit = limit > 0 ? (int)limit : -1;     // SQL uses -1, not 0, to denote 'no limit'
-        String sql = "SELECT revid, sequence FROM revs WHERE doc_id=? and revid < ?" +
-        " and deleted=0 and json not null" +
-        " ORDER BY sequence DESC LIMIT ?";
-        String[] args = {Long.toString(docNumericID),generation+"-",Integer.toString(sqlLimit)};
-
-            Cursor cursor = null;
-            try {
-                cursor = database.rawQuery(sql, args);
-                cursor.moveToNext();
-                if (!cursor.isAfterLast()) {
-                    if (matchingRevs.size() == 0)
-                        hasAttachment.set(sequenceHasAttachments(cursor.getLong(1)));
-                    matchingRevs.add(cursor.getString(0));
-                }
+        RevisionTree tree = getRevisionTree(docNumericID);
+        if (tree == null)
+            return matchingRevs;
 
-            } catch (SQLException e) {
-                Log.e(Database.TAG, "Error getting all revisions of document", e);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+        // Latest non-deleted revision with a body and a lower generation:
+        for (RevisionTree.Node node : tree.getNodes()) {
+            if (node.isDeleted() || node.isMissing()
+                    || RevisionInternal.generationFromRevID(node.getRevId()) >= generation) {
+                continue;
             }
+            hasAttachment.set(sequenceHasAttachments(node.getSequence()));
+            matchingRevs.add(node.getRevId());
+            break;
+        }
         return matchingRevs;
     }
 
@@ -1706,25 +2227,18 @@ public final class Database {
         long docNumericID = getDocNumericID(docId);
         if (docNumericID <= 0)
             return null;
-        String quotedRevIds = joinQuoted(revIDs);
-        String sql = "SELECT revid FROM revs " +
-                "WHERE doc_id=? and revid in (" + quotedRevIds + ") and revid <= ? " +
-                "ORDER BY revid DESC LIMIT 1";
-        String[] args = {Long.toString(docNumericID)};
-
-        Cursor cursor = null;
-        try {
-            cursor = database.rawQuery(sql, args);
-            cursor.moveToNext();
-            if (!cursor.isAfterLast()) {
-                result = cursor.getString(0);
-            }
+        RevisionTree tree = getRevisionTree(docNumericID);
+        if (tree == null)
+            return null;
 
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting all revisions of document", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        // The highest of the given revIDs that the doc has, not counting ones above rev itself:
+        Set<String> candidates = new HashSet<String>(revIDs);
+        for (RevisionTree.Node node : tree.getNodes()) {
+            String revId = node.getRevId();
+            if (candidates.contains(revId)
+                    && RevisionInternal.CBLCollateRevIDs(revId, rev.getRevId()) <= 0
+                    && (result == null || RevisionInternal.CBLCollateRevIDs(revId, result) > 0)) {
+                result = revId;
             }
         }
 
@@ -1749,52 +2263,248 @@ public final class Database {
             return new ArrayList<RevisionInternal>();
         }
 
-        String sql = "SELECT sequence, parent, revid, deleted, json isnull FROM revs " +
-                    "WHERE doc_id=? ORDER BY sequence DESC";
-        String[] args = { Long.toString(docNumericId) };
-        Cursor cursor = null;
+        RevisionTree tree = getRevisionTree(docNumericId);
+        if(tree == null) {
+            return null;
+        }
 
-        List<RevisionInternal> result;
-        try {
-            cursor = database.rawQuery(sql, args);
-
-            cursor.moveToNext();
-            long lastSequence = 0;
-            result = new ArrayList<RevisionInternal>();
-            while(!cursor.isAfterLast()) {
-                long sequence = cursor.getLong(0);
-                boolean matches = false;
+        // Nodes are in descending sequence order and parents always have lower sequences than
+        // their children, so the whole history is found in one pass:
+        long lastSequence = 0;
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>();
+        for(RevisionTree.Node node : tree.getNodes()) {
+            boolean matches;
+            if(lastSequence == 0) {
+                matches = revId.equals(node.getRevId());
+            }
+            else {
+                matches = (node.getSequence() == lastSequence);
+            }
+            if(matches) {
+                RevisionInternal aRev = new RevisionInternal(docId, node.getRevId(), node.isDeleted(), this);
+                aRev.setMissing(node.isMissing());
+                aRev.setSequence(node.getSequence());
+                result.add(aRev);
+                lastSequence = node.getParentSequence();
                 if(lastSequence == 0) {
-                    matches = revId.equals(cursor.getString(2));
-                }
-                else {
-                    matches = (sequence == lastSequence);
-                }
-                if(matches) {
-                    revId = cursor.getString(2);
-                    boolean deleted = (cursor.getInt(3) > 0);
-                    boolean missing = (cursor.getInt(4) > 0);
-                    RevisionInternal aRev = new RevisionInternal(docId, revId, deleted, this);
-                    aRev.setMissing(missing);
-                    aRev.setSequence(cursor.getLong(0));
-                    result.add(aRev);
-                    lastSequence = cursor.getLong(1);
-                    if(lastSequence == 0) {
-                        break;
-                    }
+                    break;
                 }
-                cursor.moveToNext();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the revision tree of a document, from the cache or else loaded from the revs table.
+     * Returns null on a database error.
+     */
+    private RevisionTree getRevisionTree(long docNumericID) {
+        RevisionTree tree = cachedRevisionTree(docNumericID);
+        if (tree != null) {
+            return tree;
+        }
+
+        // The query runs without the cache lock, which committing transactions take to publish
+        // their trees. A tree loaded while the cache changed may miss the change, so it's only
+        // cached if the generation is still the one it started at.
+        boolean inTransaction = (transactionThread == Thread.currentThread());
+        long generation = revisionTreesGeneration();
+        List<RevisionTree.Node> nodes = new ArrayList<RevisionTree.Node>();
+        String sql = "SELECT sequence, parent, revid, deleted, json isnull, current FROM revs " +
+                "WHERE doc_id=? ORDER BY sequence DESC";
+        SQLiteStatement statement = null;
+        Cursor cursor = null;
+        try {
+            statement = statements.acquire(sql);
+            statement.bindLong(1, docNumericID);
+            cursor = statement.query();
+            while (cursor.moveToNext()) {
+                nodes.add(new RevisionTree.Node(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                        cursor.getInt(3) > 0, cursor.getInt(4) > 0, cursor.getInt(5) > 0));
             }
         } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting revision history", e);
+            Log.e(Database.TAG, "Error loading revision tree", e);
             return null;
         } finally {
-            if(cursor != null) {
+            if (cursor != null) {
                 cursor.close();
             }
+            statements.release(sql, statement);
+        }
+        tree = new RevisionTree(nodes);
+        if (inTransaction) {
+            // It may have uncommitted revisions, so other threads can't see it yet:
+            transactionRevisionTrees.put(docNumericID, tree);
+            return tree;
+        }
+        synchronized (revisionTrees) {
+            if (revisionTreesGeneration == generation && revisionTrees.get(docNumericID) == null) {
+                revisionTrees.put(docNumericID, tree);
+            }
         }
+        return tree;
+    }
 
-        return result;
+    /**
+     * Returns the cached revision tree of a document, if any. The thread with the open transaction
+     * gets its own version of the trees it has changed.
+     */
+    private RevisionTree cachedRevisionTree(long docNumericID) {
+        if (transactionThread == Thread.currentThread() && transactionRevisionTrees.containsKey(docNumericID)) {
+            return transactionRevisionTrees.get(docNumericID);
+        }
+        return revisionTrees.get(docNumericID);
+    }
+
+    /**
+     * Loads the revision trees of many documents into the cache at once, with one query per
+     * MAX_IN_CLAUSE_VALUES documents. Trees that are already cached are left alone.
+     */
+    private void loadRevisionTrees(Collection<Long> docNumericIDs) {
+        List<Long> toLoad = new ArrayList<Long>();
+        for (Long docNumericID : docNumericIDs) {
+            if (cachedRevisionTree(docNumericID) == null) {
+                toLoad.add(docNumericID);
+            }
+        }
+        boolean inTransaction = (transactionThread == Thread.currentThread());
+
+        for (int start = 0; start < toLoad.size(); start += MAX_IN_CLAUSE_VALUES) {
+            List<Long> chunk = toLoad.subList(start, Math.min(start + MAX_IN_CLAUSE_VALUES, toLoad.size()));
+            Map<Long, List<RevisionTree.Node>> nodesByDoc = new HashMap<Long, List<RevisionTree.Node>>();
+            for (Long docNumericID : chunk) {
+                nodesByDoc.put(docNumericID, new ArrayList<RevisionTree.Node>());
+            }
+            // As in getRevisionTree(), query without the cache lock and check the generation:
+            long generation = revisionTreesGeneration();
+            String sql = "SELECT doc_id, sequence, parent, revid, deleted, json isnull, current FROM revs " +
+                    "WHERE doc_id IN (" + placeholders(chunk.size()) + ") ORDER BY doc_id, sequence DESC";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, chunk.toArray());
+                while (cursor.moveToNext()) {
+                    nodesByDoc.get(cursor.getLong(0)).add(new RevisionTree.Node(cursor.getLong(1),
+                            cursor.getLong(2), cursor.getString(3), cursor.getInt(4) > 0,
+                            cursor.getInt(5) > 0, cursor.getInt(6) > 0));
+                }
+            } catch (SQLException e) {
+                // Not fatal; the trees will be loaded one at a time as they're needed.
+                Log.w(Database.TAG, "Error loading revision trees", e);
+                return;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            if (inTransaction) {
+                // As in getRevisionTree(), kept private until the transaction commits:
+                for (Map.Entry<Long, List<RevisionTree.Node>> entry : nodesByDoc.entrySet()) {
+                    transactionRevisionTrees.put(entry.getKey(), new RevisionTree(entry.getValue()));
+                }
+                continue;
+            }
+            synchronized (revisionTrees) {
+                if (revisionTreesGeneration != generation) {
+                    return;
+                }
+                for (Map.Entry<Long, List<RevisionTree.Node>> entry : nodesByDoc.entrySet()) {
+                    if (revisionTrees.get(entry.getKey()) == null) {
+                        revisionTrees.put(entry.getKey(), new RevisionTree(entry.getValue()));
+                    }
+                }
+            }
+        }
+    }
+
+    private long revisionTreesGeneration() {
+        synchronized (revisionTrees) {
+            return revisionTreesGeneration;
+        }
+    }
+
+    /**
+     * Updates the cached revision tree (if any) of a document that a revision was just added to.
+     */
+    private void revisionTreeAddRevision(long docNumericID, RevisionTree.Node node) {
+        if (transactionThread == Thread.currentThread()) {
+            RevisionTree tree = cachedRevisionTree(docNumericID);
+            transactionRevisionTrees.put(docNumericID, (tree != null) ? tree.withRevision(node) : null);
+            return;
+        }
+        synchronized (revisionTrees) {
+            revisionTreesGeneration++;
+            RevisionTree tree = revisionTrees.get(docNumericID);
+            if (tree != null) {
+                revisionTrees.put(docNumericID, tree.withRevision(node));
+            }
+        }
+    }
+
+    /**
+     * Updates the cached revision tree (if any) of a document whose revision was made non-current.
+     */
+    private void revisionTreeSetNotCurrent(long docNumericID, long sequence) {
+        if (transactionThread == Thread.currentThread()) {
+            RevisionTree tree = cachedRevisionTree(docNumericID);
+            transactionRevisionTrees.put(docNumericID, (tree != null) ? tree.withNotCurrent(sequence) : null);
+            return;
+        }
+        synchronized (revisionTrees) {
+            revisionTreesGeneration++;
+            RevisionTree tree = revisionTrees.get(docNumericID);
+            if (tree != null) {
+                revisionTrees.put(docNumericID, tree.withNotCurrent(sequence));
+            }
+        }
+    }
+
+    /**
+     * Drops the cached revision tree of a document whose revisions were deleted.
+     */
+    private void revisionTreeRemove(long docNumericID) {
+        if (transactionThread == Thread.currentThread()) {
+            transactionRevisionTrees.put(docNumericID, null);
+            return;
+        }
+        synchronized (revisionTrees) {
+            revisionTreesGeneration++;
+            revisionTrees.remove(docNumericID);
+        }
+    }
+
+    /**
+     * Drops all cached revision trees (after changes to many documents, or a rollback).
+     */
+    private void revisionTreesEvictAll() {
+        if (transactionThread == Thread.currentThread()) {
+            transactionRevisionTrees.clear();
+        }
+        synchronized (revisionTrees) {
+            revisionTreesGeneration++;
+            revisionTrees.evictAll();
+        }
+    }
+
+    /**
+     * Replaces the shared revision trees with the ones the transaction that just committed changed
+     * (or dropped), so other threads see its revisions only now.
+     */
+    private void revisionTreesPublishTransaction() {
+        if (transactionRevisionTrees.isEmpty()) {
+            return;
+        }
+        synchronized (revisionTrees) {
+            revisionTreesGeneration++;
+            for (Map.Entry<Long, RevisionTree> entry : transactionRevisionTrees.entrySet()) {
+                if (entry.getValue() != null) {
+                    revisionTrees.put(entry.getKey(), entry.getValue());
+                } else {
+                    revisionTrees.remove(entry.getKey());
+                }
+            }
+        }
+        transactionRevisionTrees.clear();
     }
 
     /**
@@ -1916,6 +2626,22 @@ public final class Database {
             options = new ChangesOptions();
         }
 
+        if(options.isSortBySequence()) {
+            // Stream them in sequence order, so only up to the limit are read:
+            RevisionList changes = new RevisionList();
+            ChangesIterator iterator = changesIteratorSince(lastSeq, options, filter);
+            try {
+                while(iterator.hasNext()) {
+                    changes.add(iterator.next());
+                }
+            } catch (ChangesIterator.ReadException e) {
+                Log.e(Database.TAG, "Error reading changes since %d", e, lastSeq);
+                return null;
+            }
+            return changes;
+        }
+
+        // Otherwise group the changes by document, with conflicting revisions adjacent:
         boolean includeDocs = options.isIncludeDocs() || (filter != null);
         String additionalSelectColumns =  "";
         if(includeDocs) {
@@ -1926,12 +2652,13 @@ public final class Database {
                         + "WHERE sequence > ? AND current=1 "
                         + "AND revs.doc_id = docs.doc_id "
                         + "ORDER BY revs.doc_id, revid DESC";
-        String[] args = {Long.toString(lastSeq)};
+        Object[] args = { lastSeq };
+        SQLiteStorageEngine connection = acquireReadConnection();
         Cursor cursor = null;
         RevisionList changes = null;
 
         try {
-            cursor = database.rawQuery(sql, args);
+            cursor = connection.rawQuery(sql, args);
             cursor.moveToNext();
             changes = new RevisionList();
             long lastDocId = 0;
@@ -1949,7 +2676,7 @@ public final class Database {
                 RevisionInternal rev = new RevisionInternal(cursor.getString(2), cursor.getString(3), (cursor.getInt(4) > 0), this);
                 rev.setSequence(cursor.getLong(0));
                 if(includeDocs) {
-                    expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(5), rev, options.getContentOptions());
+                    expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(5), rev, options.getContentOptions(), true);
                 }
                 Map<String, Object> paramsFixMe = null;  // TODO: these should not be null
                 if (runFilter(filter, paramsFixMe, rev)) {
@@ -1963,15 +2690,162 @@ public final class Database {
             if(cursor != null) {
                 cursor.close();
             }
+            releaseReadConnection(connection);
         }
 
-        if(options.isSortBySequence()) {
-            changes.sortBySequence();
-        }
         changes.limit(options.getLimit());
         return changes;
     }
 
+    /**
+     * Returns the changes since the given sequence, in sequence order, reading them from the
+     * database a page at a time as they're iterated, so that only as many rows as are consumed
+     * (up to options.getLimit()) are ever read. options.isSortBySequence() is ignored.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public ChangesIterator changesIteratorSince(long lastSeq, ChangesOptions options, ReplicationFilter filter) {
+        if(options == null) {
+            options = new ChangesOptions();
+        }
+        return new ChangesIterator(this, lastSeq, options, filter);
+    }
+
+    /**
+     * Reads the next page of the changes feed for ChangesIterator: up to pageSize current
+     * revisions with sequences after afterSequence, in sequence order. Revisions that are
+     * filtered out, or that lost a conflict (unless the options include conflicts), are read
+     * but not added to outChanges. Returns the sequence of the last row read, or 0 if there
+     * are no more rows; a failed query is thrown rather than being taken for the end.
+     */
+    @InterfaceAudience.Private
+    /* package */ long readChangesPage(long since, long afterSequence, int pageSize, ChangesOptions options,
+                                       ReplicationFilter filter, List<RevisionInternal> outChanges)
+            throws CouchbaseLiteException {
+        boolean includeDocs = options.isIncludeDocs() || (filter != null);
+        boolean skipConflicts = !options.isIncludeConflicts();
+        // Unless conflicts are included, also count each document's current revisions, to spot
+        // the (rare) documents that have more than one:
+        String sql = "SELECT sequence, revs.doc_id, docid, revid, deleted" +
+                (skipConflicts ? ", (SELECT COUNT(*) FROM revs AS cur WHERE cur.doc_id=revs.doc_id " +
+                        "AND cur.current=1 AND cur.sequence > ?)" : ", 1") +
+                (includeDocs ? ", json" : "") +
+                " FROM revs, docs WHERE current=1 AND sequence > ? AND revs.doc_id = docs.doc_id " +
+                "ORDER BY sequence LIMIT ?";
+        Object[] args = skipConflicts ? new Object[] { since, afterSequence, pageSize }
+                                      : new Object[] { afterSequence, pageSize };
+        List<RevisionInternal> page = new ArrayList<RevisionInternal>();
+        List<Long> docNumericIDs = new ArrayList<Long>();
+        List<Long> conflictedDocNumericIDs = new ArrayList<Long>();
+        List<byte[]> bodies = includeDocs ? new ArrayList<byte[]>() : null;
+        long lastSequenceRead = 0;
+
+        SQLiteStorageEngine connection = acquireReadConnection();
+        Cursor cursor = null;
+        try {
+            cursor = connection.rawQuery(sql, args);
+            while(cursor.moveToNext()) {
+                RevisionInternal rev = new RevisionInternal(cursor.getString(2), cursor.getString(3), (cursor.getInt(4) > 0), this);
+                rev.setSequence(cursor.getLong(0));
+                page.add(rev);
+                docNumericIDs.add(cursor.getLong(1));
+                if(cursor.getInt(5) > 1) {
+                    conflictedDocNumericIDs.add(cursor.getLong(1));
+                }
+                if(includeDocs) {
+                    bodies.add(cursor.getBlob(6));
+                }
+                lastSequenceRead = rev.getSequence();
+            }
+            cursor.close();
+            cursor = null;
+
+            Map<Long, Long> winningSequences = null;
+            if(!conflictedDocNumericIDs.isEmpty()) {
+                winningSequences = winningChangeSequences(connection, since, conflictedDocNumericIDs);
+            }
+
+            // The filter can query the database itself, so it mustn't run while this thread holds
+            // one of the (few) pooled connections; all the rows have been read by now.
+            releaseReadConnection(connection);
+            connection = null;
+
+            for(int i = 0; i < page.size(); i++) {
+                RevisionInternal rev = page.get(i);
+                if(winningSequences != null) {
+                    Long winningSequence = winningSequences.get(docNumericIDs.get(i));
+                    if(winningSequence != null && winningSequence != rev.getSequence()) {
+                        continue;  // a losing conflict; the winner is reported at its own sequence
+                    }
+                }
+                if(includeDocs) {
+                    expandStoredJSONIntoRevisionWithAttachments(bodies.get(i), rev, options.getContentOptions(), true);
+                }
+                Map<String, Object> paramsFixMe = null;  // TODO: these should not be null
+                if(runFilter(filter, paramsFixMe, rev)) {
+                    outChanges.add(rev);
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error looking for changes", e);
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+            if(connection != null) {
+                releaseReadConnection(connection);
+            }
+        }
+        return lastSequenceRead;
+    }
+
+    /**
+     * For documents with more than one current revision after the given sequence, finds the
+     * sequence of the one the changes feed reports (the one with the highest revision ID).
+     */
+    private Map<Long, Long> winningChangeSequences(SQLiteStorageEngine connection, long since, List<Long> docNumericIDs) {
+        Map<Long, Long> result = new HashMap<Long, Long>();
+        List<Long> distinctIDs = new ArrayList<Long>(new HashSet<Long>(docNumericIDs));
+        bestCurrentRevisions(connection, "sequence > ?", since, true, distinctIDs, new HashMap<Long, String>(), result);
+        return result;
+    }
+
+    /**
+     * Finds the best current revision (the one with the highest revision ID) of each of the given
+     * documents, among those whose sequence meets the condition ("sequence > ?" or "sequence <= ?",
+     * say). The revision IDs and sequences of the winners go into the maps, keyed by document.
+     */
+    private void bestCurrentRevisions(SQLiteStorageEngine connection, String sequenceCondition, long sequence,
+                                      boolean includeDeleted, List<Long> docNumericIDs,
+                                      Map<Long, String> outRevIDs, Map<Long, Long> outSequences) {
+        for (int start = 0; start < docNumericIDs.size(); start += MAX_IN_CLAUSE_VALUES) {
+            List<Long> chunk = docNumericIDs.subList(start, Math.min(start + MAX_IN_CLAUSE_VALUES, docNumericIDs.size()));
+            Object[] args = new Object[chunk.size() + 1];
+            args[0] = sequence;
+            for (int i = 0; i < chunk.size(); i++) {
+                args[i + 1] = chunk.get(i);
+            }
+            // Compare the revision IDs here rather than with the REVID collation in SQL:
+            Cursor cursor = connection.rawQuery("SELECT doc_id, revid, sequence FROM revs " +
+                    "WHERE " + sequenceCondition + " AND current!=0" + (includeDeleted ? "" : " AND deleted=0") +
+                    " AND doc_id IN (" + placeholders(chunk.size()) + ")", args);
+            try {
+                while (cursor.moveToNext()) {
+                    long docNumericID = cursor.getLong(0);
+                    String revID = cursor.getString(1);
+                    String bestRevID = outRevIDs.get(docNumericID);
+                    if (bestRevID == null || RevisionInternal.CBLCompareRevIDs(revID, bestRevID) > 0) {
+                        outRevIDs.put(docNumericID, revID);
+                        outSequences.put(docNumericID, cursor.getLong(2));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * @exclude
      */
@@ -2027,11 +2901,33 @@ public final class Database {
         return view;
     }
 
+    /**
+     * The View objects created so far (by getView() and friends); only these can have map
+     * functions set.
+     */
+    /* package */ Collection<View> getRegisteredViews() {
+        if (views == null) {
+            return Collections.emptyList();
+        }
+        return views.values();
+    }
+
     /**
      * @exclude
      */
     @InterfaceAudience.Private
     public List<QueryRow> queryViewNamed(String viewName, QueryOptions options, List<Long> outLastSequence) throws CouchbaseLiteException {
+        return queryViewNamed(viewName, options, outLastSequence, null);
+    }
+
+    /**
+     * Like queryViewNamed(viewName, options, outLastSequence), but when querying _all_docs (a null
+     * viewName) also adds the token for the next page, if there is one, to outNextPageToken.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<QueryRow> queryViewNamed(String viewName, QueryOptions options, List<Long> outLastSequence,
+                                         List<String> outNextPageToken) throws CouchbaseLiteException {
 
         long before = System.currentTimeMillis();
         long lastSequence = 0;
@@ -2044,7 +2940,7 @@ public final class Database {
             }
             lastSequence = view.getLastSequenceIndexed();
             if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
-                view.updateIndex();
+                updateIndexes(view.getViewsInGroup());
                 lastSequence = view.getLastSequenceIndexed();
             } else if (options.getStale() == Query.IndexUpdateMode.AFTER && lastSequence < getLastSequenceNumber()) {
 
@@ -2052,7 +2948,7 @@ public final class Database {
                     @Override
                     public void run() {
                         try {
-                            view.updateIndex();
+                            updateIndexes(view.getViewsInGroup());
                         } catch (CouchbaseLiteException e) {
                             Log.e(Database.TAG, "Error updating view index on background thread", e);
                         }
@@ -2071,6 +2967,10 @@ public final class Database {
             Map<String,Object> allDocsResult = getAllDocs(options);
             rows = (List<QueryRow>) allDocsResult.get("rows");
             lastSequence = getLastSequenceNumber();
+            String nextPageToken = (String) allDocsResult.get("next_page_token");
+            if (nextPageToken != null && outNextPageToken != null) {
+                outNextPageToken.add(nextPageToken);
+            }
         }
         outLastSequence.add(lastSequence);
 
@@ -2082,73 +2982,412 @@ public final class Database {
     }
 
     /**
+     * Updates the indexes of the given views (incrementally) if necessary, in a single pass over
+     * the revisions added since the least up-to-date of them was last indexed. Each document is
+     * read and decoded once and passed to the map function of every view that hasn't indexed it
+     * yet. Views without a map function are skipped.
      * @exclude
      */
     @InterfaceAudience.Private
-    View makeAnonymousView() {
-        for (int i=0; true; ++i) {
-            String name = String.format("anon%d", i);
-            View existing = getExistingView(name);
-            if (existing == null) {
-                // this name has not been used yet, so let's use it
-                return getView(name);
-            }
-        }
-    }
-
-    /**
-     * @exclude
-     */
-    @InterfaceAudience.Private
-    public List<View> getAllViews() {
+    public void updateIndexes(List<View> views) throws CouchbaseLiteException {
+        beginTransaction();
+        Status result = new Status(Status.INTERNAL_SERVER_ERROR);
         Cursor cursor = null;
-        List<View> result = null;
+        ViewMapPipeline pipeline = null;
 
         try {
-            cursor = database.rawQuery("SELECT name FROM views", null);
-            cursor.moveToNext();
-            result = new ArrayList<View>();
-            while(!cursor.isAfterLast()) {
-                result.add(getView(cursor.getString(0)));
-                cursor.moveToNext();
+            // Find the views that are out of date, and how far each one has got:
+            long dbMaxSequence = getLastSequenceNumber();
+            List<View> outdatedViews = new ArrayList<View>(views.size());
+            List<Long> lastSequences = new ArrayList<Long>(views.size());
+            long minLastSequence = dbMaxSequence;
+            for (View view : views) {
+                if (view.getMap() == null) {
+                    Log.w(Log.TAG_VIEW, "Cannot index view %s: no map function registered", view.getName());
+                    continue;
+                }
+                if (view.getViewId() <= 0) {
+                    String msg = String.format("getViewId() < 0");
+                    throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
+                }
+                long lastSequence = view.getLastSequenceIndexed();
+                if (lastSequence < 0) {
+                    String msg = String.format("lastSequence < 0 (%s)", lastSequence);
+                    throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
+                }
+                // (A view can be up to date but for its reduced results, if compaction removed rows.)
+                if ((lastSequence < dbMaxSequence || view.isReduceIndexStale(lastSequence))
+                        && !outdatedViews.contains(view)) {
+                    Log.v(Log.TAG_VIEW, "Re-indexing view: %s", view.getName());
+                    outdatedViews.add(view);
+                    lastSequences.add(lastSequence);
+                    minLastSequence = Math.min(minLastSequence, lastSequence);
+                }
             }
-        } catch (Exception e) {
-            Log.e(Database.TAG, "Error getting all views", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+            if (outdatedViews.isEmpty()) {
+                // nothing to do (eg,  kCBLStatusNotModified)
+                Log.v(Log.TAG_VIEW, "Views already indexed up to dbMaxSequence (%s), nothing to do",
+                        dbMaxSequence);
+                result.setCode(Status.NOT_MODIFIED);
+                return;
             }
-        }
 
-        return result;
-    }
+            // See whether each view's reduced results can be updated for just the keys whose rows
+            // change, or have to be rebuilt:
+            boolean[] rebuildReduces = new boolean[outdatedViews.size()];
+            for (int i = 0; i < outdatedViews.size(); i++) {
+                rebuildReduces[i] = outdatedViews.get(i).prepareReduceIndex(lastSequences.get(i));
+            }
 
-    /**
-     * @exclude
-     */
-    @InterfaceAudience.Private
-    public Status deleteViewNamed(String name) {
-        Status result = new Status(Status.INTERNAL_SERVER_ERROR);
-        try {
-            String[] whereArgs = { name };
-            int rowsAffected = database.delete("views", "name=?", whereArgs);
-            if(rowsAffected > 0) {
-                result.setCode(Status.OK);
+            // First remove obsolete emitted results from the 'maps' table:
+            int deleted = 0;
+            for (int i = 0; i < outdatedViews.size(); i++) {
+                int viewId = outdatedViews.get(i).getViewId();
+                long lastSequence = lastSequences.get(i);
+                if (lastSequence == 0) {
+                    // If the lastSequence has been reset to 0, make sure to remove
+                    // any leftover rows:
+                    Object[] args = { viewId };
+                    database.execSQL("DELETE FROM maps WHERE view_id=?", args);
+                } else {
+                    // Delete all obsolete map results (ones from since-replaced
+                    // revisions):
+                    Object[] args = { viewId, lastSequence, lastSequence };
+                    database.execSQL(
+                            "DELETE FROM maps WHERE view_id=? AND sequence IN ("
+                                    + "SELECT parent FROM revs WHERE sequence>? "
+                                    + "AND parent>0 AND parent<=?)", args);
+                }
+                cursor = database.rawQuery("SELECT changes()", null);
+                cursor.moveToNext();
+                deleted += cursor.getInt(0);
+                cursor.close();
+                cursor = null;
             }
-            else {
-                result.setCode(Status.NOT_FOUND);
+
+            // Emitted rows are buffered and written to 'maps' in batches:
+            List<Object[]> mapRows = new ArrayList<Object[]>(View.MAP_INSERT_BATCH_SIZE);
+            ViewMapPipeline.RowCollector collector = new ViewMapPipeline.RowCollector(mapRows);
+
+            // With several indexer threads, map functions run on those while this thread reads
+            // documents and writes the rows; not worth it for a few changes:
+            int indexerThreads = manager.getOptions().getViewIndexerThreads();
+            if (indexerThreads > 1 && dbMaxSequence - minLastSequence > ViewMapPipeline.CHUNK_SIZE) {
+                pipeline = new ViewMapPipeline(manager.getIndexerExecutor(), indexerThreads);
             }
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error deleting view", e);
-        }
-        return result;
-    }
 
+            // Now scan every revision added since the least up-to-date view was
+            // indexed:
+            Object[] selectArgs = { minLastSequence };
+            cursor = database.rawQuery(
+                    "SELECT revs.doc_id, sequence, docid, revid, json, no_attachments FROM revs, docs "
+                            + "WHERE sequence>? AND current!=0 AND deleted=0 "
+                            + "AND revs.doc_id = docs.doc_id "
+                            + "ORDER BY revs.doc_id, revid DESC", selectArgs);
 
-    /**
-     * Hack because cursor interface does not support cursor.getColumnIndex("deleted") yet.
-     * @exclude
-     */
+            // Documents are mapped in batches, so that the rows of revisions they replace can be
+            // found and deleted with a few statements per batch:
+            List<IndexedDocument> batch = new ArrayList<IndexedDocument>(MAX_IN_CLAUSE_VALUES);
+            boolean keepGoing = cursor.moveToNext();
+            while (keepGoing) {
+                IndexedDocument doc = new IndexedDocument();
+                doc.docNumericID = cursor.getLong(0);
+                doc.sequence = cursor.getLong(1);
+                doc.docId = cursor.getString(2);
+                doc.revId = cursor.getString(3);
+                doc.json = cursor.getBlob(4);
+                doc.noAttachments = cursor.getInt(5) > 0;
+
+                // Rows with the same doc_id are losing conflicts. Some views may have indexed
+                // some of these revisions already, though, so note them all:
+                doc.revIds.add(doc.revId);
+                doc.sequences.add(doc.sequence);
+                doc.maxSequence = doc.sequence;
+                while ((keepGoing = cursor.moveToNext()) && cursor.getLong(0) == doc.docNumericID) {
+                    doc.revIds.add(cursor.getString(3));
+                    doc.sequences.add(cursor.getLong(1));
+                    doc.maxSequence = Math.max(doc.maxSequence, cursor.getLong(1));
+                }
+
+                if (doc.docId.startsWith("_design/")) {  // design docs don't get indexed!
+                    continue;
+                }
+
+                // The views that haven't seen the latest of these revisions:
+                doc.views = outdatedViews;
+                for (int i = 0; i < outdatedViews.size(); i++) {
+                    if (lastSequences.get(i) >= doc.maxSequence) {
+                        doc.views = new ArrayList<View>(outdatedViews.size());
+                        for (int j = 0; j < outdatedViews.size(); j++) {
+                            if (lastSequences.get(j) < doc.maxSequence) {
+                                doc.views.add(outdatedViews.get(j));
+                            }
+                        }
+                        break;
+                    }
+                }
+                if (doc.views.isEmpty()) {
+                    continue;
+                }
+
+                batch.add(doc);
+                if (batch.size() >= MAX_IN_CLAUSE_VALUES) {
+                    mapDocumentBatch(batch, outdatedViews, lastSequences, minLastSequence, pipeline, collector, mapRows);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                mapDocumentBatch(batch, outdatedViews, lastSequences, minLastSequence, pipeline, collector, mapRows);
+                batch.clear();
+            }
+            if (pipeline != null) {
+                pipeline.finish(mapRows);
+            }
+            if (!mapRows.isEmpty()) {
+                database.executeBatch(View.INSERT_MAP_ROW_SQL, mapRows);
+                mapRows.clear();
+            }
+
+            // Finally, bring the reduced results up to date and record the last revision
+            // sequence number that was indexed:
+            for (int i = 0; i < outdatedViews.size(); i++) {
+                View view = outdatedViews.get(i);
+                long reduceSequence = 0;
+                if (view.getReduce() != null) {
+                    // A negative reduce_sequence records that reducing failed at this sequence,
+                    // so the view isn't taken for stale (and reduced again) until it changes:
+                    reduceSequence = view.updateReduceIndex(rebuildReduces[i]) ? dbMaxSequence : -dbMaxSequence;
+                }
+                Object[] updateArgs = { dbMaxSequence, reduceSequence, view.reducerIdentity(), view.getViewId() };
+                database.execSQL("UPDATE views SET lastSequence=?, reduce_sequence=?, reduce_identity=? " +
+                        "WHERE view_id=?", updateArgs);
+            }
+
+            // FIXME actually count number added :)
+            Log.v(Log.TAG_VIEW, "Finished re-indexing %d views "
+                    + " up to sequence %s"
+                    + " (deleted %s added ?)", outdatedViews.size(), dbMaxSequence, deleted);
+            result.setCode(Status.OK);
+
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, new Status(Status.DB_ERROR));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
+            if (!result.isSuccessful()) {
+                Log.w(Log.TAG_VIEW, "Failed to update view indexes.  Result code: %d", result.getCode());
+            }
+            endTransaction(result.isSuccessful());
+        }
+    }
+
+    /**
+     * A document updateIndexes() is about to map: its current revisions added since the least
+     * up-to-date view was indexed (in descending revid order), and the one to map.
+     */
+    private static final class IndexedDocument {
+        long docNumericID;
+        String docId;
+        String revId;
+        long sequence;
+        byte[] json;
+        boolean noAttachments;
+        long maxSequence;
+        List<String> revIds = new ArrayList<String>();
+        List<Long> sequences = new ArrayList<Long>();
+        List<View> views;
+    }
+
+    /**
+     * Maps a batch of (at most MAX_IN_CLAUSE_VALUES) documents for updateIndexes(). First the
+     * rows each view had emitted for the revisions that used to win the documents' conflicts are
+     * deleted; the older current revisions this needs, and the bodies of any of them that still
+     * win, are read with one statement for the whole batch.
+     */
+    private void mapDocumentBatch(List<IndexedDocument> batch, List<View> views, List<Long> lastSequences,
+                                  long minLastSequence, ViewMapPipeline pipeline,
+                                  ViewMapPipeline.RowCollector collector, List<Object[]> mapRows)
+            throws CouchbaseLiteException {
+
+        // Find conflicts with documents from previous indexings: the best current revision of
+        // each document that is older than all the ones scanned.
+        Map<Long, String> oldRevIDs = new HashMap<Long, String>();
+        Map<Long, Long> oldSequences = new HashMap<Long, Long>();
+        if (minLastSequence > 0) {
+            List<Long> docNumericIDs = new ArrayList<Long>(batch.size());
+            for (IndexedDocument doc : batch) {
+                docNumericIDs.add(doc.docNumericID);
+            }
+            bestCurrentRevisions(database, "sequence <= ?", minLastSequence, false, docNumericIDs,
+                    oldRevIDs, oldSequences);
+        }
+
+        // Each view's rows for the revision that used to be the 'winner' (the best one it had
+        // indexed) have to go:
+        for (int i = 0; i < views.size(); i++) {
+            long lastSequence = lastSequences.get(i);
+            if (lastSequence <= 0) {
+                continue;
+            }
+            List<Object> obsoleteSequences = new ArrayList<Object>();
+            obsoleteSequences.add(views.get(i).getViewId());
+            for (IndexedDocument doc : batch) {
+                if (lastSequence >= doc.maxSequence) {
+                    continue;
+                }
+                String indexedRevID = oldRevIDs.get(doc.docNumericID);
+                Long indexedSequence = oldSequences.get(doc.docNumericID);
+                for (int j = 0; j < doc.revIds.size(); j++) {
+                    // (In descending revid order, so the first one the view has seen:)
+                    if (doc.sequences.get(j) <= lastSequence) {
+                        if (indexedRevID == null || RevisionInternal.CBLCompareRevIDs(doc.revIds.get(j), indexedRevID) > 0) {
+                            indexedSequence = doc.sequences.get(j);
+                        }
+                        break;
+                    }
+                }
+                if (indexedSequence != null) {
+                    obsoleteSequences.add(indexedSequence);
+                }
+            }
+            if (obsoleteSequences.size() > 1) {
+                database.execSQL("DELETE FROM maps WHERE view_id=? AND sequence IN (" +
+                        placeholders(obsoleteSequences.size() - 1) + ")", obsoleteSequences.toArray());
+            }
+        }
+
+        // Where an older revision still 'wins' the conflict, it's the one that
+        // should be mapped [again], not the current revision!
+        List<Object> rewonSequences = new ArrayList<Object>();
+        for (IndexedDocument doc : batch) {
+            String oldRevID = oldRevIDs.get(doc.docNumericID);
+            if (oldRevID != null && RevisionInternal.CBLCompareRevIDs(oldRevID, doc.revId) > 0) {
+                doc.revId = oldRevID;
+                doc.sequence = oldSequences.get(doc.docNumericID);
+                doc.json = null;
+                rewonSequences.add(doc.sequence);
+            }
+        }
+        if (!rewonSequences.isEmpty()) {
+            Map<Long, byte[]> bodies = new HashMap<Long, byte[]>();
+            Cursor cursor = database.rawQuery("SELECT sequence, json FROM revs " +
+                    "WHERE sequence IN (" + placeholders(rewonSequences.size()) + ")", rewonSequences.toArray());
+            try {
+                while (cursor.moveToNext()) {
+                    bodies.put(cursor.getLong(0), cursor.getBlob(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            for (IndexedDocument doc : batch) {
+                if (doc.json == null) {
+                    doc.json = bodies.get(doc.sequence);
+                }
+            }
+        }
+
+        for (IndexedDocument doc : batch) {
+            // Get the document properties, to pass to the map functions:
+            EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(TDContentOptions.class);
+            if (doc.noAttachments) {
+                contentOptions.add(TDContentOptions.TDNoAttachments);
+            }
+            Map<String, Object> properties = documentPropertiesFromJSON(
+                    doc.json,
+                    doc.docId,
+                    doc.revId,
+                    false,
+                    doc.sequence,
+                    contentOptions
+            );
+            if (properties != null) {
+                // Call the user-defined map()s to emit new key/value
+                // pairs from this revision:
+                if (pipeline != null) {
+                    pipeline.add(doc.sequence, properties, doc.views, mapRows);
+                } else {
+                    ViewMapPipeline.mapDocument(doc.sequence, properties, doc.views, collector);
+                }
+                if (mapRows.size() >= View.MAP_INSERT_BATCH_SIZE) {
+                    database.executeBatch(View.INSERT_MAP_ROW_SQL, mapRows);
+                    mapRows.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    View makeAnonymousView() {
+        for (int i=0; true; ++i) {
+            String name = String.format("anon%d", i);
+            View existing = getExistingView(name);
+            if (existing == null) {
+                // this name has not been used yet, so let's use it
+                return getView(name);
+            }
+        }
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<View> getAllViews() {
+        Cursor cursor = null;
+        List<View> result = null;
+
+        try {
+            cursor = database.rawQuery("SELECT name FROM views", null);
+            cursor.moveToNext();
+            result = new ArrayList<View>();
+            while(!cursor.isAfterLast()) {
+                result.add(getView(cursor.getString(0)));
+                cursor.moveToNext();
+            }
+        } catch (Exception e) {
+            Log.e(Database.TAG, "Error getting all views", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public Status deleteViewNamed(String name) {
+        Status result = new Status(Status.INTERNAL_SERVER_ERROR);
+        try {
+            String[] whereArgs = { name };
+            int rowsAffected = database.delete("views", "name=?", whereArgs);
+            if(rowsAffected > 0) {
+                result.setCode(Status.OK);
+            }
+            else {
+                result.setCode(Status.NOT_FOUND);
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error deleting view", e);
+        }
+        return result;
+    }
+
+
+    /**
+     * Hack because cursor interface does not support cursor.getColumnIndex("deleted") yet.
+     * @exclude
+     */
     @InterfaceAudience.Private
     public int getDeletedColumnIndex(QueryOptions options) {
         if (options.isIncludeDocs()) {
@@ -2178,6 +3417,11 @@ public final class Database {
             updateSeq = getLastSequenceNumber();  // TODO: needs to be atomic with the following SELECT
         }
 
+        List<Object> keys = options.getKeys();
+        if (keys != null && keys.size() == 0) {
+            return result;
+        }
+
         StringBuffer sql = new StringBuffer("SELECT revs.doc_id, docid, revid, sequence");
         if (options.isIncludeDocs()) {
             sql.append(", json");
@@ -2185,19 +3429,15 @@ public final class Database {
         if (includeDeletedDocs) {
             sql.append(", deleted");
         }
-        sql.append(" FROM revs, docs WHERE");
-        if (options.getKeys() != null) {
-            if (options.getKeys().size() == 0) {
-                return result;
-            }
-            String commaSeperatedIds = joinQuotedObjects(options.getKeys());
-            sql.append(String.format(" revs.doc_id IN (SELECT doc_id FROM docs WHERE docid IN (%s)) AND", commaSeperatedIds));
-        }
-        sql.append(" docs.doc_id = revs.doc_id AND current=1");
+        // Walk docs in docid order and look up each one's current revs, so that a LIMIT (or a
+        // page token) stops the query early instead of sorting every current revision first.
+        // (CROSS JOIN fixes the join order; the "+"s keep SQLite on the revs_current index, as
+        // otherwise it may pick revs_cur_deleted and scan every current revision per doc.)
+        sql.append(" FROM docs CROSS JOIN revs WHERE docs.doc_id = revs.doc_id AND +current=1");
         if (!includeDeletedDocs) {
-            sql.append(" AND deleted=0");
+            sql.append(" AND +deleted=0");
         }
-        List<String> args = new ArrayList<String>();
+        List<Object> args = new ArrayList<Object>();
         Object minKey = options.getStartKey();
         Object maxKey = options.getEndKey();
         boolean inclusiveMin = true;
@@ -2211,36 +3451,128 @@ public final class Database {
         if (minKey != null) {
             assert(minKey instanceof String);
             sql.append((inclusiveMin ? " AND docid >= ?" :  " AND docid > ?"));
-            args.add((String)minKey);
+            args.add(minKey);
         }
         if (maxKey != null) {
             assert(maxKey instanceof String);
             sql.append((inclusiveMax ? " AND docid <= ?" :  " AND docid < ?"));
-            args.add((String)maxKey);
+            args.add(maxKey);
         }
 
-        sql.append(
-                String.format(
-                        " ORDER BY docid %s, %s revid DESC LIMIT ? OFFSET ?",
-                        (options.isDescending() ? "DESC" : "ASC"),
-                        (includeDeletedDocs ? "deleted ASC," : "")
-                )
+        String orderBy = String.format(
+                " ORDER BY docid %s, %s revid DESC",
+                (options.isDescending() ? "DESC" : "ASC"),
+                (includeDeletedDocs ? "deleted ASC," : "")
         );
 
-        args.add(Integer.toString(options.getLimit()));
-        args.add(Integer.toString(options.getSkip()));
+        int offset = options.getSkip();
+        SQLiteStorageEngine connection = acquireReadConnection();
+        try {
+            if (keys != null) {
+                // Look the keys up MAX_IN_CLAUSE_VALUES at a time, binding them as parameters.
+                // Skip and limit apply to the rows in the order of the keys, so they're done here:
+                Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
+                List<String> docIDs = new ArrayList<String>();
+                for (Object key : keys) {
+                    if (key instanceof String) {
+                        docIDs.add((String) key);
+                    }
+                }
+                for (int start = 0; start < docIDs.size(); start += MAX_IN_CLAUSE_VALUES) {
+                    List<String> chunk = docIDs.subList(start, Math.min(start + MAX_IN_CLAUSE_VALUES, docIDs.size()));
+                    List<Object> chunkArgs = new ArrayList<Object>(args);
+                    chunkArgs.addAll(chunk);
+                    String chunkSql = sql + " AND docid IN (" + placeholders(chunk.size()) + ")" + orderBy;
+                    List<QueryRow> found = new ArrayList<QueryRow>();
+                    readAllDocsRows(connection, chunkSql, chunkArgs, options, Integer.MAX_VALUE, found, null);
+                    for (QueryRow row : found) {
+                        docs.put((String) row.getKey(), row);
+                    }
+                }
 
-        Cursor cursor = null;
-        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
+                int skip = options.getSkip();
+                for (String docId : docIDs) {
+                    if (rows.size() >= options.getLimit()) {
+                        break;
+                    }
+                    if (skip > 0) {
+                        --skip;
+                        continue;
+                    }
+                    QueryRow change = docs.get(docId);
+                    if (change == null) {
+                        Map<String, Object> value = new HashMap<String, Object>();
+                        long docNumericID = getDocNumericID(docId);
+                        if (docNumericID > 0) {
+                            List<Boolean> outIsDeleted = new ArrayList<Boolean>();
+                            List<Boolean> outIsConflict = new ArrayList<Boolean>();
+                            String revId = winningRevIDOfDoc(docNumericID, outIsDeleted, outIsConflict);
+                            if (revId != null) {
+                                value.put("rev", revId);
+                                value.put("deleted", true);
+                            }
+                        }
+                        change = new QueryRow((value != null ? docId : null), 0, docId, value, null);
+                        change.setDatabase(this);
+                    }
+                    rows.add(change);
+                }
+            } else {
+                // Resume after the last document of the previous page by seeking past its docID,
+                // rather than skipping over every row before it. The skip was applied to the first
+                // page, so it isn't applied again:
+                if (options.getPageToken() != null) {
+                    sql.append(options.isDescending() ? " AND docid < ?" : " AND docid > ?");
+                    args.add(docIDFromPageToken(options.getPageToken()));
+                    offset = 0;
+                }
+                // The limit is applied while reading, so that a page never ends partway through a
+                // document's conflicting revisions (the next page starts after its docID):
+                sql.append(orderBy).append(" LIMIT -1 OFFSET ?");
+                args.add(offset);
+
+                String[] outLastDocID = new String[1];
+                int rowsRead = readAllDocsRows(connection, sql.toString(), args, options, options.getLimit(), rows, outLastDocID);
+                if (rowsRead >= options.getLimit() && outLastDocID[0] != null) {
+                    result.put("next_page_token", allDocsPageToken(outLastDocID[0]));
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        } finally {
+            releaseReadConnection(connection);
+        }
+
+        result.put("rows", rows);
+        result.put("total_rows", rows.size());
+        result.put("offset", offset);
+        if(updateSeq != 0) {
+            result.put("update_seq", updateSeq);
+        }
+
+        return result;
+    }
 
 
+    /**
+     * Runs an all-docs query and adds a row for each document to outRows, folding each document's
+     * conflicting revisions (the rows following its first one) into it. Once maxRows SQL rows have
+     * been read it stops, but only after the rest of the current document's rows. Returns the
+     * number of SQL rows read; outLastDocID, if given, gets the docID of the last document read.
+     */
+    private int readAllDocsRows(SQLiteStorageEngine connection, String sql, List<Object> args,
+                                QueryOptions options, int maxRows, List<QueryRow> outRows, String[] outLastDocID) {
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        int rowsRead = 0;
+        Cursor cursor = null;
         try {
-            cursor = database.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+            cursor = connection.rawQuery(sql, args.toArray());
 
             boolean keepGoing = cursor.moveToNext();
 
-            while(keepGoing) {
-
+            while(keepGoing && rowsRead < maxRows) {
+                ++rowsRead;
                 long docNumericID = cursor.getLong(0);
                 String docId = cursor.getString(1);
                 String revId = cursor.getString(2);
@@ -2251,11 +3583,15 @@ public final class Database {
                     byte[] json = cursor.getBlob(4);
                     docContents = documentPropertiesFromJSON(json, docId, revId, deleted, sequenceNumber, options.getContentOptions());
                 }
+                if (outLastDocID != null) {
+                    outLastDocID[0] = docId;
+                }
 
                 // Iterate over following rows with the same doc_id -- these are conflicts.
                 // Skip them, but collect their revIDs if the 'conflicts' option is set:
                 List<String> conflicts = new ArrayList<String>();
                 while (((keepGoing = cursor.moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
+                    ++rowsRead;
                     if (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS || options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
                         if (conflicts.isEmpty()) {
                             conflicts.add(revId);
@@ -2276,63 +3612,43 @@ public final class Database {
                 }
                 QueryRow change = new QueryRow(docId, sequenceNumber, docId, value, docContents);
                 change.setDatabase(this);
-                if (options.getKeys() != null) {
-                    docs.put(docId, change);
-                } else {
-                    rows.add(change);
-                }
-            }
-
-            if (options.getKeys() != null) {
-                for (Object docIdObject : options.getKeys()) {
-                    if (docIdObject instanceof String) {
-                        String docId = (String) docIdObject;
-                        QueryRow change = docs.get(docId);
-                        if (change == null) {
-                            Map<String, Object> value = new HashMap<String, Object>();
-                            long docNumericID = getDocNumericID(docId);
-                            if (docNumericID > 0) {
-                                boolean deleted;
-                                List<Boolean> outIsDeleted = new ArrayList<Boolean>();
-                                List<Boolean> outIsConflict = new ArrayList<Boolean>();
-                                String revId = winningRevIDOfDoc(docNumericID, outIsDeleted, outIsConflict);
-                                if (outIsDeleted.size() > 0) {
-                                    deleted = true;
-                                }
-                                if (revId != null) {
-                                    value.put("rev", revId);
-                                    value.put("deleted", true);
-                                }
-                            }
-                            change = new QueryRow((value != null ? docId : null), 0, docId, value, null);
-                            change.setDatabase(this);
-                        }
-                        rows.add(change);
-                    }
-                }
-
+                outRows.add(change);
             }
-
-
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting all docs", e);
-            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
         }
+        return rowsRead;
+    }
 
-        result.put("rows", rows);
-        result.put("total_rows", rows.size());
-        result.put("offset", options.getSkip());
-        if(updateSeq != 0) {
-            result.put("update_seq", updateSeq);
+    /**
+     * Returns the opaque token that continues an all-docs query after the given document
+     * (see QueryOptions.setPageToken).
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public static String allDocsPageToken(String docId) {
+        try {
+            return Base64.encodeBytes(docId.getBytes("UTF-8"), Base64.URL_SAFE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-
-        return result;
     }
 
+    private static String docIDFromPageToken(String pageToken) throws CouchbaseLiteException {
+        try {
+            String docId = new String(Base64.decode(pageToken, Base64.URL_SAFE), "UTF-8");
+            if (docId.length() > 0) {
+                return docId;
+            }
+        } catch (IOException e) {
+            // fall through
+        } catch (IllegalArgumentException e) {
+            // fall through
+        }
+        throw new CouchbaseLiteException("Invalid page token", new Status(Status.BAD_REQUEST));
+    }
 
     /**
      * Returns the rev ID of the 'winning' revision of this document, and whether it's deleted.
@@ -2341,47 +3657,48 @@ public final class Database {
     @InterfaceAudience.Private
     String winningRevIDOfDoc(long docNumericId, List<Boolean> outIsDeleted, List<Boolean> outIsConflict) throws CouchbaseLiteException {
 
-        Cursor cursor = null;
-        String sql = "SELECT revid, deleted FROM revs" +
-                " WHERE doc_id=? and current=1" +
-                " ORDER BY deleted asc, revid desc LIMIT 2";
-
-        String[] args = { Long.toString(docNumericId) };
-        String revId = null;
-
-        try {
-            cursor = database.rawQuery(sql, args);
+        RevisionTree tree = getRevisionTree(docNumericId);
+        if (tree == null) {
+            throw new CouchbaseLiteException("Error", new Status(Status.INTERNAL_SERVER_ERROR));
+        }
 
-            cursor.moveToNext();
-            if (!cursor.isAfterLast()) {
-                revId = cursor.getString(0);
-                boolean deleted = cursor.getInt(1) > 0;
-                if (deleted) {
-                    outIsDeleted.add(true);
-                }
-                // The document is in conflict if there are two+ result rows that are not deletions.
-                boolean hasNextResult = cursor.moveToNext();
-                if (hasNextResult) {
-                    boolean isNextDeleted = cursor.getInt(1) > 0;
-                    boolean isInConflict = !deleted && hasNextResult && !isNextDeleted;
-                    if (isInConflict) {
-                        outIsConflict.add(true);
-                    }
-                }
+        // The top two current revisions, ordered as "ORDER BY deleted asc, revid desc":
+        RevisionTree.Node winner = null;
+        RevisionTree.Node runnerUp = null;
+        for (RevisionTree.Node node : tree.getNodes()) {
+            if (!node.isCurrent()) {
+                continue;
+            }
+            if (winner == null || beatsRevision(node, winner)) {
+                runnerUp = winner;
+                winner = node;
+            } else if (runnerUp == null || beatsRevision(node, runnerUp)) {
+                runnerUp = node;
             }
+        }
 
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error", e);
-            throw new CouchbaseLiteException("Error", e, new Status(Status.INTERNAL_SERVER_ERROR));
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+        String revId = null;
+        if (winner != null) {
+            revId = winner.getRevId();
+            if (winner.isDeleted()) {
+                outIsDeleted.add(true);
+            }
+            // The document is in conflict if there are two+ current revisions that are not deletions.
+            if (!winner.isDeleted() && runnerUp != null && !runnerUp.isDeleted()) {
+                outIsConflict.add(true);
             }
         }
 
         return revId;
     }
 
+    private static boolean beatsRevision(RevisionTree.Node node, RevisionTree.Node other) {
+        if (node.isDeleted() != other.isDeleted()) {
+            return !node.isDeleted();
+        }
+        return RevisionInternal.CBLCollateRevIDs(node.getRevId(), other.getRevId()) > 0;
+    }
+
 
     /*************************************************************************************************/
     /*** Database+Attachments                                                                    ***/
@@ -2400,6 +3717,37 @@ public final class Database {
                 attachment.getBlobKey());
     }
 
+    /**
+     * Inserts the rows for several attachments of the same revision with a single batch statement.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    void insertAttachmentsForSequence(List<AttachmentInternal> attachmentList, long sequence) throws CouchbaseLiteException {
+        if (attachmentList.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<Object[]>(attachmentList.size());
+        for (AttachmentInternal attachment : attachmentList) {
+            BlobKey key = attachment.getBlobKey();
+            Object[] row = {
+                    sequence,
+                    attachment.getName(),
+                    (key != null ? key.getBytes() : null),
+                    attachment.getContentType(),
+                    (key != null ? attachments.getSizeOfBlob(key) : null),
+                    attachment.getRevpos()
+            };
+            rows.add(row);
+        }
+        try {
+            database.executeBatch("INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)", rows);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error inserting attachments", e);
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     /**
      * @exclude
      */
@@ -2494,7 +3842,7 @@ public final class Database {
 
         Cursor cursor = null;
 
-        String[] args = { Long.toString(toSeq), name, Long.toString(fromSeq), name };
+        Object[] args = { toSeq, name, fromSeq, name };
         try {
             database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
                     "SELECT ?, ?, key, type, length, revpos FROM attachments " +
@@ -2532,7 +3880,7 @@ public final class Database {
 
         Cursor cursor = null;
 
-        String[] args = { Long.toString(sequence), filename };
+        Object[] args = { sequence, filename };
         try {
             cursor = database.rawQuery("SELECT key, type FROM attachments WHERE sequence=? AND filename=?", args);
 
@@ -2576,7 +3924,7 @@ public final class Database {
         Cursor cursor = null;
         String filePath = null;
 
-        String args[] = { Long.toString(sequence), filename };
+        Object[] args = { sequence, filename };
         try {
             cursor = database.rawQuery("SELECT key, type, encoding FROM attachments WHERE sequence=? AND filename=?", args);
 
@@ -2603,7 +3951,7 @@ public final class Database {
 
         Cursor cursor = null;
 
-        String args[] = { Long.toString(sequence) };
+        Object[] args = { sequence };
         try {
             cursor = database.rawQuery("SELECT 1 FROM attachments WHERE sequence=? LIMIT 1", args);
 
@@ -2633,7 +3981,7 @@ public final class Database {
 
         Cursor cursor = null;
 
-        String args[] = { Long.toString(sequence) };
+        Object[] args = { sequence };
         try {
             cursor = database.rawQuery("SELECT filename, key, type, length, revpos FROM attachments WHERE sequence=?", args);
 
@@ -2891,6 +4239,47 @@ public final class Database {
     }
 
 
+    /**
+     * Makes sure processAttachmentsForRevision() will find each attachment that's only a stub in
+     * the new revision in its parent, before anything of the revision is written.
+     */
+    @SuppressWarnings("unchecked")
+    private void checkAttachmentStubs(Map<String, AttachmentInternal> attachments, RevisionInternal rev, long parentSequence) throws CouchbaseLiteException {
+        Map<String, Object> properties = rev.getProperties();
+        Map<String, Object> revAttachments = null;
+        if (properties != null) {
+            revAttachments = (Map<String, Object>) properties.get("_attachments");
+        }
+        if (revAttachments == null || revAttachments.size() == 0 || rev.isDeleted()) {
+            return;
+        }
+        for (String name : revAttachments.keySet()) {
+            if (attachments.get(name) != null) {
+                continue;
+            }
+            boolean found = false;
+            if (parentSequence > 0) {
+                Cursor cursor = null;
+                try {
+                    cursor = database.rawQuery("SELECT 1 FROM attachments WHERE sequence=? AND filename=?",
+                            new Object[] { parentSequence, name });
+                    found = cursor.moveToNext();
+                } catch (SQLException e) {
+                    Log.e(Database.TAG, "Error looking up attachment", e);
+                    throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+            if (!found) {
+                Log.w(Database.TAG, "Can't find inherited attachment %s from seq# %s for %s", name, parentSequence, rev);
+                throw new CouchbaseLiteException(Status.NOT_FOUND);
+            }
+        }
+    }
+
     /**
      * Given a newly-added revision, adds the necessary attachment rows to the sqliteDb and
      * stores inline attachments into the blob store.
@@ -2915,6 +4304,7 @@ public final class Database {
             return;
         }
 
+        List<AttachmentInternal> newAttachments = new ArrayList<AttachmentInternal>();
         for (String name : revAttachments.keySet()) {
             AttachmentInternal attachment = attachments.get(name);
             if (attachment != null) {
@@ -2927,8 +4317,7 @@ public final class Database {
                     Log.w(Database.TAG, "Attachment %s %s has unexpected revpos %s, setting to %s", rev, name, attachment.getRevpos(), generation);
                     attachment.setRevpos(generation);
                 }
-                // Finally insert the attachment:
-                insertAttachmentForSequence(attachment, newSequence);
+                newAttachments.add(attachment);
 
             }
             else {
@@ -2939,6 +4328,9 @@ public final class Database {
 
         }
 
+        // Finally insert the new attachments, all in one batch:
+        insertAttachmentsForSequence(newAttachments, newSequence);
+
     }
 
 
@@ -3055,28 +4447,87 @@ public final class Database {
       */
      @InterfaceAudience.Private
     public Status garbageCollectAttachments() {
-        // First delete attachment rows for already-cleared revisions:
-        // OPT: Could start after last sequence# we GC'd up to
-
+        // First delete attachment rows for cleared revisions added since the last GC. (Bodies
+        // cleared by compaction have their attachment rows deleted along with them.)
+        long lastGCSequence = -1;
+        long lastSequence = getLastSequenceNumber();
         try {
-            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
-                    "(SELECT sequence from revs WHERE json IS null)");
+            String info = stringForQuery("SELECT value FROM info WHERE key=?",
+                    new Object[] { ATTACHMENT_GC_SEQUENCE_KEY });
+            if (info != null) {
+                lastGCSequence = Long.parseLong(info);
+            }
+            Object[] args = { lastGCSequence, lastSequence, lastGCSequence, lastSequence };
+            database.execSQL("DELETE FROM attachments WHERE sequence > ? AND sequence <= ? AND sequence IN " +
+                    "(SELECT sequence FROM revs WHERE sequence > ? AND sequence <= ? AND json IS null)", args);
         }
         catch(SQLException e) {
             Log.e(Database.TAG, "Error deleting attachments", e);
         }
+        catch(NumberFormatException e) {
+            Log.w(Database.TAG, "Invalid %s, ignoring it", ATTACHMENT_GC_SEQUENCE_KEY);
+        }
 
-        // Now collect all remaining attachment IDs and tell the store to delete all but these:
+        // The first time around, also sweep out any files no attachment row was ever counted for:
+        Status status = (lastGCSequence < 0) ? deleteUncountedBlobs() : deleteUnreferencedBlobs();
+        if (status.isSuccessful()) {
+            try {
+                Object[] args = { ATTACHMENT_GC_SEQUENCE_KEY, Long.toString(lastSequence) };
+                database.execSQL("INSERT OR REPLACE INTO info (key, value) VALUES (?, ?)", args);
+            } catch (SQLException e) {
+                Log.w(Database.TAG, "Error saving %s", e, ATTACHMENT_GC_SEQUENCE_KEY);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Deletes the blobs that no attachment row refers to any more, i.e. whose blob_refs count has
+     * dropped to zero.
+     */
+    @InterfaceAudience.Private
+    /* package */ Status deleteUnreferencedBlobs() {
+        List<BlobKey> unreferenced = new ArrayList<BlobKey>();
+        boolean shouldCommit = false;
         Cursor cursor = null;
+        beginTransaction();
         try {
-            cursor = database.rawQuery("SELECT DISTINCT key FROM attachments", null);
+            cursor = database.rawQuery("SELECT key FROM blob_refs WHERE refcount <= 0", null);
+            while (cursor.moveToNext()) {
+                unreferenced.add(new BlobKey(cursor.getBlob(0)));
+            }
+            cursor.close();
+            cursor = null;
+            database.execSQL("DELETE FROM blob_refs WHERE refcount <= 0");
+            shouldCommit = true;
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error finding unreferenced attachments", e);
+            return new Status(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            endTransaction(shouldCommit);
+        }
 
-            cursor.moveToNext();
-            List<BlobKey> allKeys = new ArrayList<BlobKey>();
-            while(!cursor.isAfterLast()) {
-                BlobKey key = new BlobKey(cursor.getBlob(0));
-                allKeys.add(key);
-                cursor.moveToNext();
+        int numDeleted = attachments.deleteBlobsWithKeys(unreferenced);
+        Log.v(Database.TAG, "Deleted %d attachments", numDeleted);
+        return new Status(Status.OK);
+    }
+
+    /**
+     * Deletes every blob file that isn't counted in blob_refs as being in use. Unlike
+     * deleteUnreferencedBlobs() this lists the whole store, so it also finds files that were
+     * stored but never got an attachment row.
+     */
+    private Status deleteUncountedBlobs() {
+        Cursor cursor = null;
+        try {
+            database.execSQL("DELETE FROM blob_refs WHERE refcount <= 0");
+            cursor = database.rawQuery("SELECT key FROM blob_refs", null);
+            Set<BlobKey> allKeys = new HashSet<BlobKey>();
+            while (cursor.moveToNext()) {
+                allKeys.add(new BlobKey(cursor.getBlob(0)));
             }
 
             int numDeleted = attachments.deleteBlobsExceptWithKeys(allKeys);
@@ -3097,6 +4548,89 @@ public final class Database {
         }
     }
 
+    /**
+     * Clears the JSON of the non-current revisions with sequences in (afterSequence, lastSequence],
+     * and deletes their attachment rows, in one transaction. Returns the number of bodies cleared.
+     * Used by IncrementalCompactor to do compact()'s work a sequence range at a time.
+     */
+    @InterfaceAudience.Private
+    /* package */ int clearNonCurrentBodies(long afterSequence, long lastSequence) throws CouchbaseLiteException {
+        Object[] args = { afterSequence, lastSequence };
+        boolean shouldCommit = false;
+        int cleared = 0;
+        beginTransaction();
+        try {
+            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
+                    "(SELECT sequence FROM revs WHERE sequence > ? AND sequence <= ? " +
+                    "AND current=0 AND json NOT NULL)", args);
+            cleared = (int) longForQuery("SELECT COUNT(*) FROM revs WHERE sequence > ? AND sequence <= ? " +
+                    "AND current=0 AND json NOT NULL", args);
+            if (cleared > 0) {
+                database.execSQL("UPDATE revs SET json=null WHERE sequence > ? AND sequence <= ? " +
+                        "AND current=0 AND json NOT NULL", args);
+                // The cached trees know which revisions still have bodies:
+                revisionTreesEvictAll();
+            }
+            shouldCommit = true;
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error clearing old revision bodies", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            endTransaction(shouldCommit);
+        }
+        return cleared;
+    }
+
+    /**
+     * Is the database file in incremental auto-vacuum mode, so incrementalVacuum() can shrink it?
+     */
+    @InterfaceAudience.Private
+    /* package */ boolean isIncrementalVacuumEnabled() {
+        try {
+            return longForQuery("PRAGMA auto_vacuum", null) == 2;
+        } catch (SQLException e) {
+            Log.w(Database.TAG, "Error reading auto_vacuum mode", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns up to maxPages free pages to the filesystem, in one transaction. Returns the number
+     * of free pages still left in the file.
+     */
+    @InterfaceAudience.Private
+    /* package */ long incrementalVacuum(int maxPages) throws CouchbaseLiteException {
+        boolean shouldCommit = false;
+        beginTransaction();
+        try {
+            long freePages = longForQuery("PRAGMA freelist_count", null);
+            // Each step of incremental_vacuum frees one page, and execSQL() only steps once:
+            for (int i = 0; i < maxPages && freePages > 0; i++, freePages--) {
+                database.execSQL("PRAGMA incremental_vacuum(1)");
+            }
+            shouldCommit = true;
+            return freePages;
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error vacuuming database", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            endTransaction(shouldCommit);
+        }
+    }
+
+    /**
+     * The highest numeric document ID in use.
+     */
+    @InterfaceAudience.Private
+    /* package */ long getLastDocNumericID() {
+        try {
+            return longForQuery("SELECT MAX(doc_id) FROM docs", null);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting last doc_id", e);
+            return 0;
+        }
+    }
+
     /*************************************************************************************************/
     /*** Database+Insertion                                                                      ***/
     /*************************************************************************************************/
@@ -3132,27 +4666,26 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public String generateIDForRevision(RevisionInternal rev, byte[] json, Map<String, AttachmentInternal> attachments, String previousRevisionId) {
-
-        MessageDigest md5Digest;
-
-        // Revision IDs have a generation count, a hyphen, and a UUID.
-
-        int generation = 0;
-        if(previousRevisionId != null) {
-            generation = RevisionInternal.generationFromRevID(previousRevisionId);
-            if(generation == 0) {
-                return null;
-            }
+        MessageDigest md5Digest = startRevisionDigest(rev, attachments, previousRevisionId);
+        if (md5Digest == null) {
+            return null;
         }
+        if (json != null) {
+            md5Digest.update(json);
+        }
+        return finishRevisionID(md5Digest, previousRevisionId);
+    }
 
-        // Generate a digest for this revision based on the previous revision ID, document JSON,
-        // and attachment digests. This doesn't need to be secure; we just need to ensure that this
-        // code consistently generates the same ID given equivalent revisions.
-
-        try {
-            md5Digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+    /**
+     * Starts the digest a new revision's ID is generated from: it's based on the previous revision
+     * ID, the deletion flag, the attachment digests and finally the document's canonical JSON,
+     * which the caller adds before calling finishRevisionID(). This doesn't need to be secure; we
+     * just need to ensure that this code consistently generates the same ID given equivalent
+     * revisions. Returns this thread's (reset) digest, or null if previousRevisionId is invalid.
+     */
+    private static MessageDigest startRevisionDigest(RevisionInternal rev, Map<String, AttachmentInternal> attachments, String previousRevisionId) {
+        if(previousRevisionId != null && RevisionInternal.generationFromRevID(previousRevisionId) == 0) {
+            return null;
         }
 
         int length = 0;
@@ -3163,14 +4696,11 @@ public final class Database {
         if (length > 0xFF) {
             return null;
         }
-        byte lengthByte = (byte) (length & 0xFF);
-        byte[] lengthBytes = new byte[] { lengthByte };
-
-        md5Digest.update(lengthBytes);
 
-        int isDeleted = ((rev.isDeleted() != false) ? 1 : 0);
-        byte[] deletedByte = new byte[] { (byte) isDeleted };
-        md5Digest.update(deletedByte);
+        MessageDigest md5Digest = REVISION_DIGESTS.get();
+        md5Digest.reset();
+        md5Digest.update((byte) (length & 0xFF));
+        md5Digest.update((byte) (rev.isDeleted() ? 1 : 0));
 
         List<String> attachmentKeys = new ArrayList<String>(attachments.keySet());
         Collections.sort(attachmentKeys);
@@ -3178,17 +4708,20 @@ public final class Database {
             AttachmentInternal attachment = attachments.get(key);
             md5Digest.update(attachment.getBlobKey().getBytes());
         }
+        return md5Digest;
+    }
 
-        if (json != null) {
-            md5Digest.update(json);
+    /**
+     * Returns the new revision ID from a digest begun by startRevisionDigest().
+     */
+    private static String finishRevisionID(MessageDigest md5Digest, String previousRevisionId) {
+        // Revision IDs have a generation count, a hyphen, and a UUID.
+        int generation = 0;
+        if(previousRevisionId != null) {
+            generation = RevisionInternal.generationFromRevID(previousRevisionId);
         }
-        byte[] md5DigestResult = md5Digest.digest();
-
-        String digestAsHex = Utils.bytesToHex(md5DigestResult);
-
-        int generationIncremented = generation + 1;
-        return String.format("%d-%s", generationIncremented, digestAsHex);
-
+        String digestAsHex = Utils.bytesToHex(md5Digest.digest());
+        return String.format("%d-%s", generation + 1, digestAsHex);
     }
 
     /**
@@ -3201,6 +4734,9 @@ public final class Database {
             ContentValues args = new ContentValues();
             args.put("docid", docId);
             rowId = database.insert("docs", null, args);
+            if (rowId > 0) {
+                cacheDocNumericID(docId, rowId);
+            }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error inserting document id", e);
         }
@@ -3219,6 +4755,94 @@ public final class Database {
         return docNumericId;
     }
 
+    /**
+     * Returns the cached numeric ID of a document, if any. The thread with the open transaction
+     * also sees the ones it has looked up or inserted.
+     */
+    private Long cachedDocNumericID(String docId) {
+        if (transactionThread == Thread.currentThread()) {
+            Long docNumericID = transactionDocNumericIDs.get(docId);
+            if (docNumericID != null) {
+                return docNumericID;
+            }
+        }
+        return docNumericIDs.get(docId);
+    }
+
+    /**
+     * Caches the numeric ID of a document; in a transaction, only once the transaction commits.
+     */
+    private void cacheDocNumericID(String docId, long docNumericID) {
+        if (transactionThread == Thread.currentThread()) {
+            transactionDocNumericIDs.put(docId, docNumericID);
+        } else {
+            docNumericIDs.put(docId, docNumericID);
+        }
+    }
+
+    /**
+     * Looks up (inserting as needed) the numeric IDs of a set of documents, with one query per
+     * MAX_IN_CLAUSE_VALUES documents rather than one per document. Must be called in a transaction.
+     */
+    private Map<String, Long> getOrInsertDocNumericIDs(Collection<String> docIDs) {
+        Map<String, Long> result = new HashMap<String, Long>(docIDs.size());
+        List<String> allDocIDs = new ArrayList<String>(docIDs.size());
+        for (String docID : docIDs) {
+            Long cached = cachedDocNumericID(docID);
+            if (cached != null) {
+                result.put(docID, cached);
+            } else {
+                allDocIDs.add(docID);
+            }
+        }
+        for (int start = 0; start < allDocIDs.size(); start += MAX_IN_CLAUSE_VALUES) {
+            List<String> chunk = allDocIDs.subList(start, Math.min(start + MAX_IN_CLAUSE_VALUES, allDocIDs.size()));
+            selectDocNumericIDs(chunk, result);
+
+            List<Object[]> missing = new ArrayList<Object[]>();
+            for (String docID : chunk) {
+                if (!result.containsKey(docID)) {
+                    missing.add(new Object[] { docID });
+                }
+            }
+            if (!missing.isEmpty()) {
+                database.executeBatch("INSERT INTO docs (docid) VALUES (?)", missing);
+                selectDocNumericIDs(chunk, result);
+            }
+        }
+        return result;
+    }
+
+    private void selectDocNumericIDs(List<String> docIDs, Map<String, Long> result) {
+        String sql = "SELECT docid, doc_id FROM docs WHERE docid IN (" + placeholders(docIDs.size()) + ")";
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, docIDs.toArray());
+            while (cursor.moveToNext()) {
+                result.put(cursor.getString(0), cursor.getLong(1));
+                cacheDocNumericID(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns "?, ?, ..." with the given number of parameters, for an "IN (...)" clause.
+     */
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
     /**
      * Parses the _revisions dict from a document into an array of revision ID strings
      * @exclude
@@ -3245,55 +4869,133 @@ public final class Database {
 
     /** INSERTION: **/
 
+    /**
+     * Converts a JSON body, such as one from encodeDocumentJSON(), into the format it's stored in
+     * (Smile). Bodies from encodeDocumentBody() are already Smile and pass straight through, and
+     * so do empty ones, which would otherwise be stored as a bare Smile header.
+     */
+    private byte[] encodeBodyForStorage(byte[] json) {
+        if (json == null || json.length == 0 || BinaryJson.isSmile(json)) {
+            return json;
+        }
+        try {
+            return BinaryJson.jsonToSmile(json);
+        } catch (IOException e) {
+            Log.w(Database.TAG, "Error encoding revision body as Smile, storing it as JSON", e);
+            return json;
+        }
+    }
+
     /**
      * @exclude
      */
     @InterfaceAudience.Private
     public byte[] encodeDocumentJSON(RevisionInternal rev) {
 
-        Map<String,Object> origProps = rev.getProperties();
-        if(origProps == null) {
+        Map<String,Object> properties = rev.getProperties();
+        if(properties == null) {
+            return null;
+        }
+        List<String> keys = storedKeysOfDocument(properties);
+        if(keys == null) {
             return null;
         }
 
-        List<String> specialKeysToLeave = Arrays.asList(
-                "_removed",
-                "_replication_id",
-                "_replication_state",
-                "_replication_state_time");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            JsonGenerator generator = BinaryJson.createJsonGenerator(out);
+            new CanonicalJsonWriter(generator).writeProperties(properties, keys);
+            generator.close();
+        } catch (Exception e) {
+            Log.e(Database.TAG, "Error serializing " + rev + " to JSON", e);
+            return null;
+        }
+        return out.toByteArray();
+    }
 
-        // Don't allow any "_"-prefixed keys. Known ones we'll ignore, unknown ones are an error.
-        Map<String,Object> properties = new HashMap<String,Object>(origProps.size());
-        for (String key : origProps.keySet()) {
-            boolean shouldAdd = false;
+    /**
+     * Returns the keys of the properties that are stored in a document's body, in canonical
+     * order, or null if there's an unknown "_"-prefixed key. Known special keys are left out,
+     * except for the few that are kept (SPECIAL_KEYS_TO_LEAVE).
+     */
+    private static List<String> storedKeysOfDocument(Map<String, Object> properties) {
+        List<String> keys = new ArrayList<String>(properties.size());
+        for (String key : properties.keySet()) {
             if(key.startsWith("_")) {
                 if(!KNOWN_SPECIAL_KEYS.contains(key)) {
                     Log.e(TAG, "Database: Invalid top-level key '%s' in document to be inserted", key);
                     return null;
                 }
-                if (specialKeysToLeave.contains(key)) {
-                    shouldAdd = true;
+                if (!SPECIAL_KEYS_TO_LEAVE.contains(key)) {
+                    continue;
                 }
-            } else {
-                shouldAdd = true;
-            }
-            if (shouldAdd) {
-                properties.put(key, origProps.get(key));
             }
+            keys.add(key);
+        }
+        Collections.sort(keys, CanonicalJsonWriter.KEY_ORDER);
+        return keys;
+    }
+
+    /**
+     * Encodes a document's stored properties (see storedKeysOfDocument()) in the format they're
+     * stored in, Smile. If md5Digest isn't null the canonical JSON text of the properties, which
+     * the revision ID is generated from, is added to it in the same pass; the text itself is
+     * never buffered.
+     */
+    private static byte[] encodeDocumentBody(Map<String, Object> properties, List<String> keys, final MessageDigest md5Digest) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        JsonGenerator smileGenerator = BinaryJson.createSmileGenerator(body);
+        if (md5Digest == null) {
+            new CanonicalJsonWriter(smileGenerator).writeProperties(properties, keys);
+            smileGenerator.close();
+        } else {
+            JsonGenerator jsonGenerator = BinaryJson.createJsonGenerator(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    md5Digest.update((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    md5Digest.update(b, off, len);
+                }
+            });
+            new CanonicalJsonWriter(smileGenerator, jsonGenerator).writeProperties(properties, keys);
+            smileGenerator.close();
+            jsonGenerator.close();
         }
+        return body.toByteArray();
+    }
 
-        byte[] json = null;
+    /**
+     * Encodes a revision's body for storage, without a revision ID; returns null if it has an
+     * invalid special key.
+     */
+    private byte[] encodeDocumentBody(RevisionInternal rev) {
+        Map<String, Object> properties = rev.getProperties();
+        if (properties == null) {
+            return null;
+        }
+        List<String> keys = storedKeysOfDocument(properties);
+        if (keys == null) {
+            return null;
+        }
         try {
-            json = Manager.getObjectMapper().writeValueAsBytes(properties);
-        } catch (Exception e) {
+            return encodeDocumentBody(properties, keys, null);
+        } catch (IOException e) {
             Log.e(Database.TAG, "Error serializing " + rev + " to JSON", e);
+            return null;
         }
-        return json;
     }
 
 
     @InterfaceAudience.Private
     private void postChangeNotifications() {
+        if (changeNotificationDelay > 0) {
+            queueChangeNotifications();
+            return;
+        }
+
         // This is a 'while' instead of an 'if' because when we finish posting notifications, there
         // might be new ones that have arrived as a result of notification handlers making document
         // changes of their own (the replicator manager will do this.) So we need to check again.
@@ -3308,31 +5010,13 @@ public final class Database {
                 outgoingChanges.addAll(changesToNotify);
                 changesToNotify.clear();
 
-                // TODO: change this to match iOS and call cachedDocumentWithID
-                /*
-                BOOL external = NO;
-                for (CBLDatabaseChange* change in changes) {
-                    // Notify the corresponding instantiated CBLDocument object (if any):
-                    [[self _cachedDocumentWithID: change.documentID] revisionAdded: change];
-                    if (change.source != nil)
-                        external = YES;
-                }
-                */
-
-                boolean isExternal = false;
-                for (DocumentChange change: outgoingChanges) {
-                    Document document = getDocument(change.getDocumentId());
-                    document.revisionAdded(change);
-                    if (change.getSourceUrl() != null) {
-                        isExternal = true;
+                for (DocumentChange change : outgoingChanges) {
+                    Document document = getCachedDocument(change.getDocumentId());
+                    if (document != null) {
+                        document.revisionAdded(change);
                     }
                 }
-
-                ChangeEvent changeEvent = new ChangeEvent(this, isExternal, outgoingChanges);
-
-                for (ChangeListener changeListener : changeListeners) {
-                    changeListener.changed(changeEvent);
-                }
+                deliverChangeNotifications(outgoingChanges);
 
             } catch (Exception e) {
                 Log.e(Database.TAG, this + " got exception posting change notifications", e);
@@ -3345,15 +5029,239 @@ public final class Database {
 
     }
 
+    /**
+     * Tells the change listeners about a batch of changes. (Instantiated Documents are told
+     * before this; a Document that nobody has asked for yet will read the new revision when it's
+     * created, so there's no need to instantiate one.)
+     */
+    private void deliverChangeNotifications(List<DocumentChange> outgoingChanges) {
+        boolean isExternal = false;
+        for (DocumentChange change: outgoingChanges) {
+            if (change.getSourceUrl() != null) {
+                isExternal = true;
+            }
+        }
+
+        ChangeEvent changeEvent = new ChangeEvent(this, isExternal, outgoingChanges);
+
+        for (ChangeListener changeListener : changeListeners) {
+            changeListener.changed(changeEvent);
+        }
+    }
+
+    /**
+     * In asynchronous notification mode, moves the changes of committed transactions to the
+     * queue for the notification thread, and makes sure they're delivered within the window.
+     */
+    private void queueChangeNotifications() {
+        if (transactionLevel > 0 || changesToNotify == null || changesToNotify.isEmpty()) {
+            return;
+        }
+        List<DocumentChange> changes = new ArrayList<DocumentChange>(changesToNotify);
+        changesToNotify.clear();
+        queueChangeNotifications(changes);
+    }
+
+    private void queueChangeNotifications(List<DocumentChange> changes) {
+        updateCachedDocuments(changes);
+        scheduleChangeNotifications(changes);
+    }
+
+    /**
+     * Instantiated Documents have to show the new revisions as soon as they're committed;
+     * only their listeners can wait.
+     */
+    private void updateCachedDocuments(List<DocumentChange> changes) {
+        for (DocumentChange change : changes) {
+            Document document = getCachedDocument(change.getDocumentId());
+            if (document != null) {
+                document.updateCurrentRevision(change);
+            }
+        }
+    }
+
+    /**
+     * Adds changes whose Documents have already been updated to the queue for the notification
+     * thread, and makes sure they're delivered within the window.
+     */
+    private void scheduleChangeNotifications(List<DocumentChange> changes) {
+        synchronized (notificationLock) {
+            changesAwaitingDispatch.addAll(changes);
+            if (notificationFuture == null) {
+                notificationFuture = manager.getNotificationExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchChangeNotifications();
+                    }
+                }, changeNotificationDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Delivers all the queued change notifications as a single ChangeEvent.
+     */
+    private void dispatchChangeNotifications() {
+        List<DocumentChange> outgoingChanges;
+        synchronized (notificationLock) {
+            if (notificationFuture != null) {
+                notificationFuture.cancel(false);
+                notificationFuture = null;
+            }
+            if (changesAwaitingDispatch.isEmpty() || !isOpen()) {
+                return;
+            }
+            outgoingChanges = changesAwaitingDispatch;
+            changesAwaitingDispatch = new ArrayList<DocumentChange>();
+        }
+        try {
+            for (DocumentChange change : outgoingChanges) {
+                Document document = getCachedDocument(change.getDocumentId());
+                if (document != null) {
+                    document.notifyChangeListeners(change);
+                }
+            }
+            deliverChangeNotifications(outgoingChanges);
+        } catch (Exception e) {
+            Log.e(Database.TAG, this + " got exception posting change notifications", e);
+        }
+    }
+
     private void notifyChange(DocumentChange documentChange) {
+        if (transactionThread == Thread.currentThread()) {
+            // Held back until the transaction ends, in case it's rolled back:
+            transactionChanges.add(documentChange);
+            return;
+        }
         if (changesToNotify == null) {
             changesToNotify = new ArrayList<DocumentChange>();
         }
         changesToNotify.add(documentChange);
 
+        if (groupCommitDelay > 0) {
+            deferChangeNotificationsUntilSynced();
+        }
         postChangeNotifications();
     }
 
+    /**
+     * In group commit mode, moves the changes of committed transactions aside until they've been
+     * synced to disk, and makes sure a sync happens within the group commit window. Only the
+     * listeners wait for the sync; instantiated Documents are updated now.
+     */
+    private void deferChangeNotificationsUntilSynced() {
+        if (transactionLevel > 0 || changesToNotify == null || changesToNotify.isEmpty()) {
+            return;
+        }
+        updateCachedDocuments(changesToNotify);
+        boolean syncNow;
+        synchronized (groupCommitLock) {
+            changesAwaitingSync.addAll(changesToNotify);
+            changesToNotify.clear();
+            syncNow = changesAwaitingSync.size() >= groupCommitMaxRevisions;
+            if (!syncNow) {
+                scheduleGroupCommitSync();
+            }
+        }
+        if (syncNow) {
+            syncGroupCommit();
+        }
+    }
+
+    /**
+     * Makes sure syncGroupCommit() runs within the group commit window. Call with groupCommitLock held.
+     */
+    private void scheduleGroupCommitSync() {
+        if (groupCommitFuture == null && groupCommitDelay > 0) {
+            groupCommitFuture = manager.getWorkExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    syncGroupCommit();
+                }
+            }, groupCommitDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Makes all committed transactions durable with a single sync of the WAL, then posts the
+     * change notifications that were waiting for it.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    void syncGroupCommit() {
+        List<DocumentChange> synced;
+        synchronized (groupCommitLock) {
+            if (groupCommitFuture != null) {
+                groupCommitFuture.cancel(false);
+                groupCommitFuture = null;
+            }
+            if (changesAwaitingSync.isEmpty() || !isOpen()) {
+                return;
+            }
+            // The sync is a transaction of its own, which can't be nested in one on this thread;
+            // try again after the next window. (Another thread's transaction just makes the sync
+            // wait: the storage engine blocks other threads' statements until it ends.)
+            if (transactionThread == Thread.currentThread()) {
+                scheduleGroupCommitSync();
+                return;
+            }
+            synced = changesAwaitingSync;
+            changesAwaitingSync = new ArrayList<DocumentChange>();
+        }
+
+        // With synchronous=FULL, a commit in WAL mode syncs the log, and with it the frames of
+        // every transaction committed before it. So a tiny write transaction committed that way
+        // makes the whole window durable. Unlike a checkpoint it doesn't copy anything into the
+        // database file, so it never has to wait for readers (such as the pooled read connections).
+        try {
+            database.execSQL("PRAGMA synchronous = FULL");
+            try {
+                database.beginTransaction();
+                try {
+                    database.execSQL("UPDATE info SET value=value WHERE key='privateUUID'");
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            } finally {
+                database.execSQL("PRAGMA synchronous = NORMAL");
+            }
+        } catch (SQLException e) {
+            Log.w(Database.TAG, "%s: WAL sync failed; %d changes wait for the next one", e, this, synced.size());
+            synchronized (groupCommitLock) {
+                synced.addAll(changesAwaitingSync);
+                changesAwaitingSync = synced;
+                scheduleGroupCommitSync();
+            }
+            return;
+        }
+
+        postSyncedChangeNotifications(synced);
+    }
+
+    /**
+     * Posts the notifications of changes that a group commit sync has made durable. This runs on
+     * the work executor, so it doesn't go through changesToNotify, which belongs to the writers.
+     * The cached Documents were updated when the changes were committed.
+     */
+    private void postSyncedChangeNotifications(List<DocumentChange> synced) {
+        if (changeNotificationDelay > 0) {
+            scheduleChangeNotifications(synced);
+            return;
+        }
+        try {
+            for (DocumentChange change : synced) {
+                Document document = getCachedDocument(change.getDocumentId());
+                if (document != null) {
+                    document.notifyChangeListeners(change);
+                }
+            }
+            deliverChangeNotifications(synced);
+        } catch (Exception e) {
+            Log.e(Database.TAG, this + " got exception posting change notifications", e);
+        }
+    }
+
     private void notifyChanges(List<DocumentChange> documentChanges) {
         if (changesToNotify == null) {
             changesToNotify = new ArrayList<DocumentChange>();
@@ -3385,21 +5293,37 @@ public final class Database {
     @InterfaceAudience.Private
     public long insertRevision(RevisionInternal rev, long docNumericID, long parentSequence, boolean current, boolean hasAttachments, byte[] data) {
         long rowId = 0;
+        String sql = "INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?)";
+        SQLiteStatement statement = null;
         try {
-            ContentValues args = new ContentValues();
-            args.put("doc_id", docNumericID);
-            args.put("revid", rev.getRevId());
+            statement = statements.acquire(sql);
+            statement.bindLong(1, docNumericID);
+            statement.bindString(2, rev.getRevId());
             if(parentSequence != 0) {
-                args.put("parent", parentSequence);
+                statement.bindLong(3, parentSequence);
+            } else {
+                statement.bindNull(3);
+            }
+            statement.bindLong(4, current ? 1 : 0);
+            statement.bindLong(5, rev.isDeleted() ? 1 : 0);
+            statement.bindLong(6, hasAttachments ? 0 : 1);
+            if(data != null) {
+                statement.bindBlob(7, bodyCompressor.compress(encodeBodyForStorage(data)));
+            } else {
+                statement.bindNull(7);
             }
-            args.put("current", current);
-            args.put("deleted", rev.isDeleted());
-            args.put("no_attachments",!hasAttachments);
-            args.put("json", data);
-            rowId = database.insert("revs", null, args);
+            rowId = statement.executeInsert();
             rev.setSequence(rowId);
+            if(rowId > 0) {
+                revisionTreeAddRevision(docNumericID, new RevisionTree.Node(rowId, parentSequence, rev.getRevId(),
+                        rev.isDeleted(), data == null, current));
+                revisionFilterAdd(rev.getDocId(), rev.getRevId());
+            }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error inserting revision", e);
+        } finally {
+            statements.release(sql, statement);
         }
         return rowId;
     }
@@ -3412,31 +5336,110 @@ public final class Database {
         return putRevision(rev, prevRevId, false, resultStatus);
     }
 
-    /**
-     * @exclude
-     */
-    @InterfaceAudience.Private
-    public RevisionInternal putRevision(RevisionInternal rev, String prevRevId,  boolean allowConflict) throws CouchbaseLiteException {
-        Status ignoredStatus = new Status();
-        return putRevision(rev, prevRevId, allowConflict, ignoredStatus);
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public RevisionInternal putRevision(RevisionInternal rev, String prevRevId,  boolean allowConflict) throws CouchbaseLiteException {
+        Status ignoredStatus = new Status();
+        return putRevision(rev, prevRevId, allowConflict, ignoredStatus);
+    }
+
+
+    /**
+     * Stores a new (or initial) revision of a document.
+     *
+     * This is what's invoked by a PUT or POST. As with those, the previous revision ID must be supplied when necessary and the call will fail if it doesn't match.
+     *
+     * @param oldRev The revision to add. If the docID is null, a new UUID will be assigned. Its revID must be null. It must have a JSON body.
+     * @param prevRevId The ID of the revision to replace (same as the "?rev=" parameter to a PUT), or null if this is a new document.
+     * @param allowConflict If false, an error status 409 will be returned if the insertion would create a conflict, i.e. if the previous revision already has a child.
+     * @param resultStatus On return, an HTTP status code indicating success or failure.
+     * @return A new RevisionInternal with the docID, revID and sequence filled in (but no body).
+     * @exclude
+     */
+    @SuppressWarnings("unchecked")
+    @InterfaceAudience.Private
+    public RevisionInternal putRevision(RevisionInternal oldRev, String prevRevId, boolean allowConflict, Status resultStatus) throws CouchbaseLiteException {
+        beginTransaction();
+        try {
+            return putRevisionInTransaction(oldRev, prevRevId, allowConflict, resultStatus);
+        } finally {
+            endTransaction(resultStatus.isSuccessful());
+        }
+    }
+
+    /**
+     * Saves new revisions of many documents in one transaction, as Document.putProperties() would
+     * one at a time. The change notifications are posted together, as a single ChangeEvent, when
+     * the transaction commits. A document that can't be saved (e.g. because of a conflict or a
+     * failed validation) doesn't stop the others from being saved.
+     *
+     * @param documents the properties of each document: "_id" is the document ID (one is generated
+     *                  if it's missing), "_rev" the ID of the revision being replaced, and
+     *                  "_deleted": true deletes the document.
+     * @param outStatuses if not null, receives each document's status: CREATED (OK for a deletion),
+     *                    or the error, such as CONFLICT or FORBIDDEN.
+     * @return the new revision of each document, or null for the ones that weren't saved.
+     * @throws CouchbaseLiteException if a database error occurs; then none of the documents are
+     *                                saved, and no change notifications or cached Documents are
+     *                                updated for the ones that had been saved before the error.
+     */
+    @SuppressWarnings("unchecked")
+    @InterfaceAudience.Public
+    public List<SavedRevision> putDocuments(List<Map<String, Object>> documents, List<Status> outStatuses) throws CouchbaseLiteException {
+        List<SavedRevision> result = new ArrayList<SavedRevision>(documents.size());
+
+        boolean success = false;
+        beginTransaction();
+        try {
+            for (Map<String, Object> properties : documents) {
+                properties = new HashMap<String, Object>(properties);
+                Map<String, Object> attachments = (Map<String, Object>) properties.get("_attachments");
+                if (attachments != null && attachments.size() > 0) {
+                    properties.put("_attachments", Attachment.installAttachmentBodies(attachments, this));
+                }
+                boolean deleted = Boolean.TRUE.equals(properties.get("_deleted"));
+                RevisionInternal rev = new RevisionInternal((String) properties.get("_id"), null, deleted, this);
+                rev.setProperties(properties);
+
+                Status status = new Status();
+                RevisionInternal newRev = null;
+                try {
+                    newRev = putRevisionInTransaction(rev, (String) properties.get("_rev"), false, status);
+                    if (newRev == null) {
+                        // A database error, possibly after part of the revision was written:
+                        throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                    }
+                } catch (CouchbaseLiteException e) {
+                    // putRevisionInTransaction() only reports these before it has written
+                    // anything, so the rest can go on:
+                    int code = e.getCBLStatus().getCode();
+                    if (code != Status.BAD_REQUEST && code != Status.NOT_FOUND && code != Status.CONFLICT
+                            && code != Status.FORBIDDEN) {
+                        throw e;
+                    }
+                    status = e.getCBLStatus();
+                }
+
+                result.add(newRev != null ? new SavedRevision(this, newRev) : null);
+                if (outStatuses != null) {
+                    outStatuses.add(status);
+                }
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+        return result;
     }
 
-
     /**
-     * Stores a new (or initial) revision of a document.
-     *
-     * This is what's invoked by a PUT or POST. As with those, the previous revision ID must be supplied when necessary and the call will fail if it doesn't match.
-     *
-     * @param oldRev The revision to add. If the docID is null, a new UUID will be assigned. Its revID must be null. It must have a JSON body.
-     * @param prevRevId The ID of the revision to replace (same as the "?rev=" parameter to a PUT), or null if this is a new document.
-     * @param allowConflict If false, an error status 409 will be returned if the insertion would create a conflict, i.e. if the previous revision already has a child.
-     * @param resultStatus On return, an HTTP status code indicating success or failure.
-     * @return A new RevisionInternal with the docID, revID and sequence filled in (but no body).
-     * @exclude
+     * The body of putRevision(); must be called in a transaction. Errors that are thrown before
+     * anything is written (bad request, not found, conflict, validation failure) leave the
+     * transaction intact; anything that goes wrong after that is reported as an internal error.
      */
-    @SuppressWarnings("unchecked")
-    @InterfaceAudience.Private
-    public RevisionInternal putRevision(RevisionInternal oldRev, String prevRevId, boolean allowConflict, Status resultStatus) throws CouchbaseLiteException {
+    private RevisionInternal putRevisionInTransaction(RevisionInternal oldRev, String prevRevId, boolean allowConflict, Status resultStatus) throws CouchbaseLiteException {
         // prevRevId is the rev ID being replaced, or nil if an insert
         String docId = oldRev.getDocId();
         boolean deleted = oldRev.isDeleted();
@@ -3445,7 +5448,6 @@ public final class Database {
             throw new CouchbaseLiteException(Status.BAD_REQUEST);
         }
 
-        beginTransaction();
         Cursor cursor = null;
         boolean inConflict = false;
         RevisionInternal winningRev = null;
@@ -3456,6 +5458,7 @@ public final class Database {
         long docNumericID = (docId != null) ? getDocNumericID(docId) : 0;
         long parentSequence = 0;
         String oldWinningRevID = null;
+        boolean written = false;
 
         try {
 
@@ -3524,13 +5527,7 @@ public final class Database {
 
                 if(docId != null) {
                     // Inserting first revision, with docID given (PUT):
-                    if(docNumericID <= 0) {
-                        // Doc doesn't exist at all; create it:
-                        docNumericID = insertDocumentID(docId);
-                        if(docNumericID <= 0) {
-                            return null;
-                        }
-                    } else {
+                    if(docNumericID > 0) {
 
                         // Doc ID exists; check whether current winning revision is deleted:
                         if (oldWinnerWasDeletion == true) {
@@ -3547,11 +5544,8 @@ public final class Database {
                 else {
                     // Inserting first revision, with no docID given (POST): generate a unique docID:
                     docId = Database.generateDocumentId();
-                    docNumericID = insertDocumentID(docId);
-                    if(docNumericID <= 0) {
-                        return null;
-                    }
                 }
+                // (If the doc doesn't exist at all, it's created in part III.)
             }
 
             // There may be a conflict if (a) the document was already in conflict, or
@@ -3568,22 +5562,31 @@ public final class Database {
             // Get the attachments:
             Map<String, AttachmentInternal> attachments = getAttachmentsFromRevision(oldRev);
 
-            // Bump the revID and update the JSON:
-            byte[] json = null;
-            if(oldRev.getProperties() != null && oldRev.getProperties().size() > 0) {
-                json = encodeDocumentJSON(oldRev);
-                if(json == null) {
-                    // bad or missing json
+            // Bump the revID and encode the body, in one pass over the properties:
+            Map<String, Object> properties = oldRev.getProperties();
+            List<String> keys = null;
+            if(properties != null && properties.size() > 0) {
+                keys = storedKeysOfDocument(properties);
+                if(keys == null) {
+                    // bad json
                     throw new CouchbaseLiteException(Status.BAD_REQUEST);
                 }
+            }
 
-                if(json.length == 2 && json[0] == '{' && json[1] == '}') {
-                    json = null;
+            byte[] json = null;
+            String newRevId = null;
+            MessageDigest md5Digest = startRevisionDigest(oldRev, attachments, prevRevId);
+            if(keys != null && keys.size() > 0) {
+                try {
+                    json = encodeDocumentBody(properties, keys, md5Digest);
+                } catch (IOException e) {
+                    Log.e(Database.TAG, "Error serializing " + oldRev + " to JSON", e);
+                    throw new CouchbaseLiteException(Status.BAD_REQUEST);
                 }
-
             }
-
-            String newRevId = generateIDForRevision(oldRev, json, attachments, prevRevId);
+            if(md5Digest != null) {
+                newRevId = finishRevisionID(md5Digest, prevRevId);
+            }
             newRev = oldRev.copyWithDocID(docId, newRevId);
             stubOutAttachmentsInRevision(attachments, newRev);
 
@@ -3593,11 +5596,23 @@ public final class Database {
             if(json == null)
                 json = new byte[0];
 
+            // The previous revision has to have the attachments that are only stubs in this one:
+            checkAttachmentStubs(attachments, newRev, parentSequence);
+
             //// PART III: In which the actual insertion finally takes place:
 
             int attachmentSize = attachments.size();
             boolean hasAttachments = attachments.size() > 0;
 
+            written = true;
+            if(docNumericID <= 0) {
+                // Doc doesn't exist at all; create it:
+                docNumericID = insertDocumentID(docId);
+                if(docNumericID <= 0) {
+                    return null;
+                }
+            }
+
             // Now insert the rev itself:
             long newSequence = insertRevision(newRev, docNumericID, parentSequence, true, (attachments.size() > 0), json);
             if(newSequence == 0) {
@@ -3606,9 +5621,9 @@ public final class Database {
 
             // Make replaced rev non-current:
             try {
-                ContentValues args = new ContentValues();
-                args.put("current", 0);
-                database.update("revs", args, "sequence=?", new String[] {String.valueOf(parentSequence)});
+                Object[] args = { parentSequence };
+                database.execSQL("UPDATE revs SET current=0 WHERE sequence=?", args);
+                revisionTreeSetNotCurrent(docNumericID, parentSequence);
             } catch (SQLException e) {
                 Log.e(Database.TAG, "Error setting parent rev non-current", e);
                 throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
@@ -3635,14 +5650,19 @@ public final class Database {
         } catch (SQLException e1) {
             Log.e(Database.TAG, "Error putting revision", e1);
             return null;
+        } catch (CouchbaseLiteException e) {
+            if (written && e.getCBLStatus().getCode() != Status.INTERNAL_SERVER_ERROR) {
+                // Not an error the caller can carry on the transaction after:
+                throw new CouchbaseLiteException(e.getMessage(), e, new Status(Status.INTERNAL_SERVER_ERROR));
+            }
+            throw e;
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
-            endTransaction(resultStatus.isSuccessful());
         }
 
-        //// EPILOGUE: A change notification is sent...
+        //// EPILOGUE: A change notification is sent (once the transaction ends)...
         notifyChange(newRev, winningRev, null, inConflict);
         return newRev;
     }
@@ -3696,12 +5716,16 @@ public final class Database {
     private long getSequenceOfDocument(long docNumericId, String revId, boolean onlyCurrent) {
 
         long result = -1;
+        String sql = onlyCurrent ?
+                "SELECT sequence FROM revs WHERE doc_id=? AND revid=? AND current=1 LIMIT 1" :
+                "SELECT sequence FROM revs WHERE doc_id=? AND revid=? LIMIT 1";
+        SQLiteStatement statement = null;
         Cursor cursor = null;
         try {
-            String extraSql = (onlyCurrent ? "AND current=1" : "");
-            String sql = String.format("SELECT sequence FROM revs WHERE doc_id=? AND revid=? %s LIMIT 1", extraSql);
-            String[] args = { ""+docNumericId, revId };
-            cursor = database.rawQuery(sql, args);
+            statement = statements.acquire(sql);
+            statement.bindLong(1, docNumericId);
+            statement.bindString(2, revId);
+            cursor = statement.query();
 
             if(cursor.moveToNext()) {
                 result = cursor.getLong(0);
@@ -3715,6 +5739,7 @@ public final class Database {
             if(cursor != null) {
                 cursor.close();
             }
+            statements.release(sql, statement);
         }
         return result;
     }
@@ -3812,151 +5837,248 @@ public final class Database {
         // TODO: creates a mutable copy.  We should do the same here.
         // TODO: see github.com/couchbase/couchbase-lite-java-core/issues/206#issuecomment-44364624
 
-        RevisionInternal winningRev = null;
-        boolean inConflict = false;
+        revHistory = checkForceInsertArguments(rev, revHistory);
+
+        boolean success = false;
+        beginTransaction();
+        try {
+            long docNumericID = getOrInsertDocNumericID(rev.getDocId());
+            forceInsert(rev, revHistory, source, docNumericID);
+            success = true;
+        } catch(SQLException e) {
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            endTransaction(success);
+        }
 
+    }
+
+    /**
+     * Inserts a batch of already-existing revisions replicated from a remote database, like calling
+     * forceInsert() on each, but in one transaction: the document IDs and locally-known revisions
+     * of the whole batch are looked up with a few set-based queries, and the changes are posted as
+     * a single ChangeEvent.
+     *
+     * @param revHistories the history of each revision, as for forceInsert()
+     * @return the status of each revision: CREATED, or the error it was rejected with (such as
+     * BAD_REQUEST, FORBIDDEN or NOT_FOUND for a missing attachment). Each of those is found before
+     * anything of that revision is written, so the rest of the batch goes on. A database error
+     * (INTERNAL_SERVER_ERROR) aborts (rolls back) the whole batch and is thrown; then no changes of
+     * the batch are posted.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<Status> forceInsertRevisions(List<RevisionInternal> revs, List<List<String>> revHistories, URL source) throws CouchbaseLiteException {
+        List<List<String>> histories = new ArrayList<List<String>>(revs.size());
+        Set<String> docIDs = new HashSet<String>();
+        for (int i = 0; i < revs.size(); i++) {
+            RevisionInternal rev = revs.get(i);
+            try {
+                histories.add(checkForceInsertArguments(rev, revHistories.get(i)));
+                docIDs.add(rev.getDocId());
+            } catch (CouchbaseLiteException e) {
+                histories.add(null);
+            }
+        }
+
+        List<Status> results = new ArrayList<Status>(revs.size());
+        boolean success = false;
+        beginTransaction();
+        try {
+            Map<String, Long> docNumericIDs = getOrInsertDocNumericIDs(docIDs);
+            loadRevisionTrees(docNumericIDs.values());
+
+            for (int i = 0; i < revs.size(); i++) {
+                RevisionInternal rev = revs.get(i);
+                List<String> history = histories.get(i);
+                if (history == null) {
+                    results.add(new Status(Status.BAD_REQUEST));
+                    continue;
+                }
+                try {
+                    forceInsert(rev, history, source, docNumericIDs.get(rev.getDocId()));
+                    results.add(new Status(Status.CREATED));
+                } catch (CouchbaseLiteException e) {
+                    // forceInsert() only reports other errors before it has written anything:
+                    if (e.getCBLStatus().getCode() == Status.INTERNAL_SERVER_ERROR) {
+                        throw e;
+                    }
+                    results.add(e.getCBLStatus());
+                }
+            }
+            success = true;
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            endTransaction(success);
+        }
+        return results;
+    }
+
+    /**
+     * Checks a revision and its history for forceInsert(), returning the history to insert.
+     */
+    private static List<String> checkForceInsertArguments(RevisionInternal rev, List<String> revHistory) throws CouchbaseLiteException {
         String docId = rev.getDocId();
         String revId = rev.getRevId();
         if(!isValidDocumentId(docId) || (revId == null)) {
             throw new CouchbaseLiteException(Status.BAD_REQUEST);
         }
 
-        int historyCount = 0;
-        if (revHistory != null) {
-            historyCount = revHistory.size();
-        }
-        if(historyCount == 0) {
+        if(revHistory == null || revHistory.size() == 0) {
             revHistory = new ArrayList<String>();
             revHistory.add(revId);
-            historyCount = 1;
-        } else if(!revHistory.get(0).equals(rev.getRevId())) {
+        } else if(!revHistory.get(0).equals(revId)) {
             throw new CouchbaseLiteException(Status.BAD_REQUEST);
         }
+        return revHistory;
+    }
 
-        boolean success = false;
-        beginTransaction();
-        try {
-            // First look up all locally-known revisions of this document:
-            long docNumericID = getOrInsertDocNumericID(docId);
-            RevisionList localRevs = getAllRevisionsOfDocumentID(docId, docNumericID, false);
-            if(localRevs == null) {
-                throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+    /**
+     * The body of forceInsert(); must be called in a transaction. Errors about the revision itself
+     * (a failed validation, a body that can't be encoded, bad or missing attachments) are thrown
+     * before anything is written, leaving the transaction intact; anything that goes wrong after
+     * that is reported as an internal error.
+     */
+    private void forceInsert(RevisionInternal rev, List<String> revHistory, URL source, long docNumericID) throws CouchbaseLiteException {
+        RevisionInternal winningRev = null;
+        boolean inConflict = false;
+
+        String docId = rev.getDocId();
+        String revId;
+        int historyCount = revHistory.size();
+
+        // First look up all locally-known revisions of this document:
+        RevisionList localRevs = getAllRevisionsOfDocumentID(docId, docNumericID, false);
+        if(localRevs == null) {
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        }
+
+        // Validate against the latest common ancestor:
+        if(validations != null && validations.size() > 0) {
+            RevisionInternal oldRev = null;
+            for (int i = 1; i < historyCount; i++) {
+                oldRev = localRevs.revWithDocIdAndRevId(docId, revHistory.get(i));
+                if (oldRev != null) {
+                    break;
+                }
             }
+            String parentRevId = (historyCount > 1) ? revHistory.get(1) : null;
+            validateRevision(rev, oldRev, parentRevId);
+        }
 
-            // Validate against the latest common ancestor:
-            if(validations != null && validations.size() > 0) {
-                RevisionInternal oldRev = null;
-                for (int i = 1; i < historyCount; i++) {
-                    oldRev = localRevs.revWithDocIdAndRevId(docId, revHistory.get(i));
-                    if (oldRev != null) {
-                        break;
-                    }
+        List<Boolean> outIsDeleted = new ArrayList<Boolean>();
+        List<Boolean> outIsConflict = new ArrayList<Boolean>();
+        boolean oldWinnerWasDeletion = false;
+        String oldWinningRevID = winningRevIDOfDoc(docNumericID, outIsDeleted, outIsConflict);
+        if (outIsDeleted.size() > 0) {
+            oldWinnerWasDeletion = true;
+        }
+        if (outIsConflict.size() > 0) {
+           inConflict = true;
+        }
+
+        // Find the latest locally-known ancestor, and encode the body and check the attachments of
+        // the new revision while nothing has been written yet:
+        long localParentSequence = 0;
+        for (int i = historyCount - 1; i > 0; --i) {
+            RevisionInternal localRev = localRevs.revWithDocIdAndRevId(docId, revHistory.get(i));
+            if (localRev != null) {
+                localParentSequence = localRev.getSequence();
+            }
+        }
+        byte[] data = null;
+        Map<String, AttachmentInternal> attachments = null;
+        if (localRevs.revWithDocIdAndRevId(docId, rev.getRevId()) == null) {
+            if (!rev.isDeleted()) {
+                data = encodeDocumentBody(rev);
+                if (data == null) {
+                    throw new CouchbaseLiteException(Status.BAD_REQUEST);
                 }
-                String parentRevId = (historyCount > 1) ? revHistory.get(1) : null;
-                validateRevision(rev, oldRev, parentRevId);
             }
+            attachments = getAttachmentsFromRevision(rev);
+            checkAttachmentStubs(attachments, rev, localParentSequence);
+        }
 
-            List<Boolean> outIsDeleted = new ArrayList<Boolean>();
-            List<Boolean> outIsConflict = new ArrayList<Boolean>();
-            boolean oldWinnerWasDeletion = false;
-            String oldWinningRevID = winningRevIDOfDoc(docNumericID, outIsDeleted, outIsConflict);
-            if (outIsDeleted.size() > 0) {
-                oldWinnerWasDeletion = true;
-            }
-            if (outIsConflict.size() > 0) {
-               inConflict = true;
-            }
-
-            // Walk through the remote history in chronological order, matching each revision ID to
-            // a local revision. When the list diverges, start creating blank local revisions to fill
-            // in the local history:
-            long sequence = 0;
-            long localParentSequence = 0;
-            String localParentRevID = null;
-            for(int i = revHistory.size() - 1; i >= 0; --i) {
-                revId = revHistory.get(i);
-                RevisionInternal localRev = localRevs.revWithDocIdAndRevId(docId, revId);
-                if(localRev != null) {
-                    // This revision is known locally. Remember its sequence as the parent of the next one:
-                    sequence = localRev.getSequence();
-                    assert(sequence > 0);
-                    localParentSequence = sequence;
-                    localParentRevID = revId;
+        // Walk through the remote history in chronological order, matching each revision ID to
+        // a local revision. When the list diverges, start creating blank local revisions to fill
+        // in the local history:
+        long sequence = 0;
+        for(int i = revHistory.size() - 1; i >= 0; --i) {
+            revId = revHistory.get(i);
+            RevisionInternal localRev = localRevs.revWithDocIdAndRevId(docId, revId);
+            if(localRev != null) {
+                // This revision is known locally. Remember its sequence as the parent of the next one:
+                sequence = localRev.getSequence();
+                assert(sequence > 0);
+                localParentSequence = sequence;
+            }
+            else {
+                // This revision isn't known, so add it:
+
+                RevisionInternal newRev;
+                byte[] newRevData = null;
+                boolean hasAttachments = false;
+                boolean current = false;
+                if(i == 0) {
+                    // Hey, this is the leaf revision we're inserting:
+                   newRev = rev;
+                   newRevData = data;
+                   hasAttachments = attachments.size() > 0;
+                   current = true;
                 }
                 else {
-                    // This revision isn't known, so add it:
-
-                    RevisionInternal newRev;
-                    byte[] data = null;
-                    boolean current = false;
-                    if(i == 0) {
-                        // Hey, this is the leaf revision we're inserting:
-                       newRev = rev;
-                       if(!rev.isDeleted()) {
-                           data = encodeDocumentJSON(rev);
-                           if(data == null) {
-                               throw new CouchbaseLiteException(Status.BAD_REQUEST);
-                           }
-                       }
-                       current = true;
-                    }
-                    else {
-                        // It's an intermediate parent, so insert a stub:
-                        newRev = new RevisionInternal(docId, revId, false, this);
-                    }
+                    // It's an intermediate parent, so insert a stub:
+                    newRev = new RevisionInternal(docId, revId, false, this);
+                }
 
-                    // Insert it:
-                    sequence = insertRevision(newRev, docNumericID, sequence, current, (getAttachmentsFromRevision(newRev).size() > 0), data);
+                // Insert it:
+                sequence = insertRevision(newRev, docNumericID, sequence, current, hasAttachments, newRevData);
 
-                    if(sequence <= 0) {
-                        throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
-                    }
+                if(sequence <= 0) {
+                    throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                }
 
-                    if(i == 0) {
-                        // Write any changed attachments for the new revision. As the parent sequence use
-                        // the latest local revision (this is to copy attachments from):
-                        Map<String, AttachmentInternal> attachments = getAttachmentsFromRevision(rev);
-                        if (attachments != null) {
-                            processAttachmentsForRevision(attachments, rev, localParentSequence);
-                            stubOutAttachmentsInRevision(attachments, rev);
-                        }
+                if(i == 0) {
+                    // Write any changed attachments for the new revision. As the parent sequence use
+                    // the latest local revision (this is to copy attachments from):
+                    try {
+                        processAttachmentsForRevision(attachments, rev, localParentSequence);
+                    } catch (CouchbaseLiteException e) {
+                        // The stubs were checked above, so this is a database error:
+                        throw new CouchbaseLiteException(e.getMessage(), e, new Status(Status.INTERNAL_SERVER_ERROR));
                     }
-
+                    stubOutAttachmentsInRevision(attachments, rev);
                 }
+
             }
+        }
 
-            // Mark the latest local rev as no longer current:
-            if(localParentSequence > 0 && localParentSequence != sequence) {
-                ContentValues args = new ContentValues();
-                args.put("current", 0);
-                String[] whereArgs = { Long.toString(localParentSequence) };
-                int numRowsChanged = 0;
-                try {
-                    numRowsChanged = database.update("revs", args, "sequence=? AND current!=0", whereArgs);
-                    if (numRowsChanged == 0) {
-                        inConflict = true;  // local parent wasn't a leaf, ergo we just created a branch
-                    }
-                } catch (SQLException e) {
-                    throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        // Mark the latest local rev as no longer current:
+        if(localParentSequence > 0 && localParentSequence != sequence) {
+            String sql = "UPDATE revs SET current=0 WHERE sequence=? AND current!=0";
+            SQLiteStatement statement = null;
+            int numRowsChanged = 0;
+            try {
+                statement = statements.acquire(sql);
+                statement.bindLong(1, localParentSequence);
+                numRowsChanged = statement.executeUpdateDelete();
+                if (numRowsChanged == 0) {
+                    inConflict = true;  // local parent wasn't a leaf, ergo we just created a branch
+                } else {
+                    revisionTreeSetNotCurrent(docNumericID, localParentSequence);
                 }
+            } catch (SQLException e) {
+                throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+            } finally {
+                statements.release(sql, statement);
             }
-
-            winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion, rev);
-
-            success = true;
-
-            // Notify and return:
-            notifyChange(rev, winningRev, source, inConflict);
-
-
-        } catch(SQLException e) {
-            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
-        } finally {
-            endTransaction(success);
         }
 
+        winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion, rev);
 
-
+        // Notify and return:
+        notifyChange(rev, winningRev, source, inConflict);
     }
 
     /** VALIDATION **/
@@ -4174,36 +6296,144 @@ public final class Database {
             return numRevisionsRemoved;
         }
 
-        String quotedDocIds = joinQuoted(touchRevs.getAllDocIds());
-        String quotedRevIds = joinQuoted(touchRevs.getAllRevIds());
+        // Revisions the filter has never seen are definitely missing; only look up the rest.
+        BloomFilter filter = getRevisionFilter();
+        List<RevisionInternal> candidates = new ArrayList<RevisionInternal>();
+        for (RevisionInternal rev : touchRevs) {
+            if (filter == null || filter.mightContain(revisionFilterKey(rev.getDocId(), rev.getRevId()))) {
+                candidates.add(rev);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return numRevisionsRemoved;
+        }
 
-        String sql = "SELECT docid, revid FROM revs, docs " +
-                      "WHERE docid IN (" +
-                      quotedDocIds +
-                      ") AND revid in (" +
-                      quotedRevIds + ")" +
-                      " AND revs.doc_id == docs.doc_id";
+        // Look the candidates up by numeric doc ID, comparing the rev IDs here rather than in SQL
+        // (where each comparison would go through the REVID collation):
+        Set<String> candidateDocIDs = new HashSet<String>();
+        for (RevisionInternal rev : candidates) {
+            candidateDocIDs.add(rev.getDocId());
+        }
+        Map<Long, String> docIDsByNumericID = new HashMap<Long, String>();
+        List<String> uncachedDocIDs = new ArrayList<String>();
+        for (String docID : candidateDocIDs) {
+            Long docNumericID = cachedDocNumericID(docID);
+            if (docNumericID != null) {
+                docIDsByNumericID.put(docNumericID, docID);
+            } else {
+                uncachedDocIDs.add(docID);
+            }
+        }
+        for (int start = 0; start < uncachedDocIDs.size(); start += MAX_IN_CLAUSE_VALUES) {
+            Map<String, Long> selected = new HashMap<String, Long>();
+            selectDocNumericIDs(uncachedDocIDs.subList(start, Math.min(start + MAX_IN_CLAUSE_VALUES, uncachedDocIDs.size())), selected);
+            for (Map.Entry<String, Long> entry : selected.entrySet()) {
+                docIDsByNumericID.put(entry.getValue(), entry.getKey());
+            }
+        }
 
-        Cursor cursor = null;
-        try {
-            cursor = database.rawQuery(sql, null);
-            cursor.moveToNext();
-            while(!cursor.isAfterLast()) {
-                RevisionInternal rev = touchRevs.revWithDocIdAndRevId(cursor.getString(0), cursor.getString(1));
+        Set<String> found = new HashSet<String>();
+        List<Long> numericIDs = new ArrayList<Long>(docIDsByNumericID.keySet());
+        for (int start = 0; start < numericIDs.size(); start += MAX_IN_CLAUSE_VALUES) {
+            List<Long> chunk = numericIDs.subList(start, Math.min(start + MAX_IN_CLAUSE_VALUES, numericIDs.size()));
+            String sql = "SELECT doc_id, revid FROM revs WHERE doc_id IN (" + placeholders(chunk.size()) + ")";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, chunk.toArray());
+                while (cursor.moveToNext()) {
+                    found.add(revisionFilterKey(docIDsByNumericID.get(cursor.getLong(0)), cursor.getString(1)));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        // Remove the found revisions in one pass:
+        List<RevisionInternal> missing = new ArrayList<RevisionInternal>(touchRevs.size());
+        for (RevisionInternal rev : touchRevs) {
+            if (found.contains(revisionFilterKey(rev.getDocId(), rev.getRevId()))) {
+                numRevisionsRemoved += 1;
+            } else {
+                missing.add(rev);
+            }
+        }
+        touchRevs.clear();
+        touchRevs.addAll(missing);
+        return numRevisionsRemoved;
+    }
+
+    private static String revisionFilterKey(String docId, String revId) {
+        return docId + '\u0000' + revId;
+    }
 
-                if(rev != null) {
-                    touchRevs.remove(rev);
-                    numRevisionsRemoved += 1;
+    /**
+     * Records a newly inserted revision in the revision filter (if there is one yet).
+     */
+    private void revisionFilterAdd(String docId, String revId) {
+        synchronized (revisionFilterLock) {
+            if (revisionFilter == null && revisionFilterPendingKeys == null) {
+                return;
+            }
+            String key = revisionFilterKey(docId, revId);
+            if (revisionFilter != null) {
+                revisionFilter.add(key);
+                if (revisionFilter.getCount() > revisionFilter.getCapacity()) {
+                    revisionFilter = null;  // too full to be useful; rebuild it on next use
                 }
+            }
+            if (revisionFilterPendingKeys != null) {
+                revisionFilterPendingKeys.add(key);
+            }
+        }
+    }
 
-                cursor.moveToNext();
+    /**
+     * Returns the revision filter, building it from the revs table the first time. Returns null
+     * if it couldn't be built, in which case every revision has to be looked up.
+     */
+    private BloomFilter getRevisionFilter() {
+        synchronized (revisionFilterLock) {
+            if (revisionFilter != null) {
+                return revisionFilter;
+            }
+            if (revisionFilterPendingKeys != null) {
+                return null;  // another thread is building it
+            }
+            revisionFilterPendingKeys = new ArrayList<String>();
+        }
+
+        BloomFilter filter = null;
+        Cursor cursor = null;
+        try {
+            // Leave room to grow, so the filter isn't rebuilt again soon:
+            long numRevs = longForQuery("SELECT COUNT(*) FROM revs", null);
+            int capacity = (int) Math.min(Integer.MAX_VALUE / 16, Math.max(REVISION_FILTER_MIN_CAPACITY, 2 * numRevs));
+            filter = new BloomFilter(capacity, REVISION_FILTER_FALSE_POSITIVE_RATE);
+            cursor = database.rawQuery("SELECT docid, revid FROM revs, docs WHERE revs.doc_id = docs.doc_id", (Object[]) null);
+            while (cursor.moveToNext()) {
+                filter.add(revisionFilterKey(cursor.getString(0), cursor.getString(1)));
             }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error building revision filter", e);
+            filter = null;
         } finally {
-            if(cursor != null) {
+            if (cursor != null) {
                 cursor.close();
             }
         }
-        return numRevisionsRemoved;
+
+        synchronized (revisionFilterLock) {
+            if (filter != null) {
+                for (String key : revisionFilterPendingKeys) {
+                    filter.add(key);
+                }
+            }
+            revisionFilterPendingKeys = null;
+            revisionFilter = filter;
+            return filter;
+        }
     }
 
     /*************************************************************************************************/
@@ -4230,7 +6460,7 @@ public final class Database {
 
         if(!revision.isDeleted()) {
             // PUT:
-            byte[] json = encodeDocumentJSON(revision);
+            byte[] json = encodeDocumentBody(revision);
             String newRevID;
             if(prevRevID != null) {
                 int generation = RevisionInternal.generationFromRevID(prevRevID);
@@ -4293,13 +6523,13 @@ public final class Database {
         // First get the parent's sequence:
         long seq = rev.getSequence();
         if (seq > 0) {
-            seq = longForQuery("SELECT parent FROM revs WHERE sequence=?", new String[] { Long.toString(seq) });
+            seq = longForQuery("SELECT parent FROM revs WHERE sequence=?", new Object[] { seq });
         } else {
             long docNumericID = getDocNumericID(rev.getDocId());
             if (docNumericID <= 0) {
                 return null;
             }
-            String[] args = new String[] { Long.toString(docNumericID), rev.getRevId() } ;
+            Object[] args = { docNumericID, rev.getRevId() };
             seq = longForQuery("SELECT parent FROM revs WHERE doc_id=? and revid=?", args);
         }
 
@@ -4310,7 +6540,7 @@ public final class Database {
         // Now get its revID and deletion status:
         RevisionInternal result = null;
 
-        String[] args = { Long.toString(seq) };
+        Object[] args = { seq };
         String queryString = "SELECT revid, deleted FROM revs WHERE sequence=?";
         Cursor cursor = null;
 
@@ -4332,7 +6562,7 @@ public final class Database {
      * @exclude
      */
     @InterfaceAudience.Private
-    long longForQuery(String sqlQuery, String[] args) throws SQLException {
+    long longForQuery(String sqlQuery, Object[] args) throws SQLException {
         Cursor cursor = null;
         long result = 0;
         try {
@@ -4348,6 +6578,26 @@ public final class Database {
         return result;
     }
 
+    /**
+     * Returns the first column of the first row of the query as a string, or null if there are
+     * no rows.
+     */
+    private String stringForQuery(String sqlQuery, Object[] args) throws SQLException {
+        Cursor cursor = null;
+        String result = null;
+        try {
+            cursor = database.rawQuery(sqlQuery, args);
+            if(cursor.moveToNext()) {
+                result = cursor.getString(0);
+            }
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
     /**
      * Purges specific revisions, which deletes them completely from the local database _without_ adding a "tombstone" revision. It's as though they were never there.
      * This operation is described here: http://wiki.apache.org/couchdb/Purge_Documents
@@ -4376,8 +6626,9 @@ public final class Database {
                     } else if (revIDs.contains("*")) {
                         // Delete all revisions if magic "*" revision ID is given:
                         try {
-                            String[] args = {Long.toString(docNumericID)};
+                            Object[] args = { docNumericID };
                             database.execSQL("DELETE FROM revs WHERE doc_id=?", args);
+                            revisionTreeRemove(docNumericID);
                         } catch (SQLException e) {
                             Log.e(Database.TAG, "Error deleting revisions", e);
                             return false;
@@ -4391,7 +6642,7 @@ public final class Database {
                         Cursor cursor = null;
 
                         try {
-                            String[] args = {Long.toString(docNumericID)};
+                            Object[] args = { docNumericID };
                             String queryString = "SELECT revid, sequence, parent FROM revs WHERE doc_id=? ORDER BY sequence DESC";
                             cursor = database.rawQuery(queryString, args);
                             if (!cursor.moveToNext()) {
@@ -4432,6 +6683,7 @@ public final class Database {
                                 String sql = String.format("DELETE FROM revs WHERE sequence in (%s)", seqsToPurgeList);
                                 try {
                                     database.execSQL(sql);
+                                    revisionTreeRemove(docNumericID);
                                 } catch (SQLException e) {
                                     Log.e(Database.TAG, "Error deleting revisions via: " + sql, e);
                                     return false;
@@ -4503,7 +6755,7 @@ public final class Database {
                 byte[] json = cursor.getBlob(1);
                 Map<String,Object> properties = null;
                 try {
-                    properties = Manager.getObjectMapper().readValue(json, Map.class);
+                    properties = BinaryJson.readProperties(json);
                     properties.put("_id", docID);
                     properties.put("_rev", gotRevID);
                     result = new RevisionInternal(docID, gotRevID, false, this);
@@ -4589,6 +6841,16 @@ public final class Database {
      */
     @InterfaceAudience.Private
     /* package */ int pruneRevsToMaxDepth(int maxDepth) throws CouchbaseLiteException {
+        return pruneRevsInDocRange(maxDepth, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Prunes the revisions of the documents whose numeric IDs are in (afterDocID, lastDocID] to
+     * the given max depth, in one transaction. Used by pruneRevsToMaxDepth() and, a range at a
+     * time, by IncrementalCompactor.
+     */
+    @InterfaceAudience.Private
+    /* package */ int pruneRevsInDocRange(int maxDepth, long afterDocID, long lastDocID) throws CouchbaseLiteException {
 
         int outPruned = 0;
         boolean shouldCommit = false;
@@ -4601,47 +6863,46 @@ public final class Database {
         // First find which docs need pruning, and by how much:
 
         Cursor cursor = null;
-        String[] args = { };
-
-        long docNumericID = -1;
-        int minGen = 0;
-        int maxGen = 0;
+        Object[] args = { afterDocID, lastDocID };
 
         try {
 
-            cursor = database.rawQuery("SELECT doc_id, MIN(revid), MAX(revid) FROM revs GROUP BY doc_id", args);
+            cursor = database.rawQuery("SELECT doc_id, MIN(revid), MAX(revid) FROM revs " +
+                    "WHERE doc_id > ? AND doc_id <= ? GROUP BY doc_id", args);
 
             while(cursor.moveToNext()) {
-                docNumericID = cursor.getLong(0);
-                String minGenRevId = cursor.getString(1);
-                String maxGenRevId = cursor.getString(2);
-                minGen = Revision.generationFromRevID(minGenRevId);
-                maxGen = Revision.generationFromRevID(maxGenRevId);
+                long docNumericID = cursor.getLong(0);
+                int minGen = Revision.generationFromRevID(cursor.getString(1));
+                int maxGen = Revision.generationFromRevID(cursor.getString(2));
                 if ((maxGen - minGen + 1) > maxDepth) {
-                    toPrune.put(docNumericID, (maxGen - minGen));
+                    // Keep the newest maxDepth generations:
+                    toPrune.put(docNumericID, maxGen - maxDepth + 1);
                 }
-
             }
-
-            beginTransaction();
+            cursor.close();
+            cursor = null;
 
             if (toPrune.size() == 0) {
                 return 0;
             }
 
-            for (Long docNumericIDLong : toPrune.keySet()) {
-                String minIDToKeep = String.format("%d-", toPrune.get(docNumericIDLong).intValue() + 1);
-                String[] deleteArgs = { Long.toString(docNumericID), minIDToKeep};
-                int rowsDeleted = database.delete("revs", "doc_id=? AND revid < ? AND current=0", deleteArgs);
-                outPruned += rowsDeleted;
+            beginTransaction();
+            try {
+                for (Map.Entry<Long, Integer> entry : toPrune.entrySet()) {
+                    String minIDToKeep = String.format("%d-", entry.getValue().intValue());
+                    String[] deleteArgs = { Long.toString(entry.getKey()), minIDToKeep };
+                    int rowsDeleted = database.delete("revs", "doc_id=? AND revid < ? AND current=0", deleteArgs);
+                    outPruned += rowsDeleted;
+                }
+                revisionTreesEvictAll();
+                shouldCommit = true;
+            } finally {
+                endTransaction(shouldCommit);
             }
 
-            shouldCommit = true;
-
-        } catch (Exception e) {
+        } catch (SQLException e) {
             throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
         } finally {
-            endTransaction(shouldCommit);
             if(cursor != null) {
                 cursor.close();
             }
@@ -483,6 +483,16 @@ public final class Document {
      */
     @InterfaceAudience.Private
     /* package */ void revisionAdded(DocumentChange documentChange) {
+        updateCurrentRevision(documentChange);
+        notifyChangeListeners(documentChange);
+    }
+
+    /**
+     * The part of revisionAdded() that has to happen right away, as the change is committed.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ void updateCurrentRevision(DocumentChange documentChange) {
 
         RevisionInternal rev = documentChange.getWinningRevision();
         if (rev == null) {
@@ -496,7 +506,14 @@ public final class Document {
                 currentRevision = null;
             }
         }
+    }
 
+    /**
+     * The part of revisionAdded() that can be deferred to the notification thread.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ void notifyChangeListeners(DocumentChange documentChange) {
         for (ChangeListener listener : changeListeners) {
             listener.changed(new ChangeEvent(this, documentChange));
         }
@@ -0,0 +1,376 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Does the work of Database.compact() in the background, a small slice at a time, so that the
+ * database is never locked for more than one short transaction and other work can run between
+ * slices. The slices run on the Manager's work executor.
+ *
+ * The compactor prunes revision trees (by numeric document ID range), clears the JSON of
+ * non-current revisions (by sequence range), deletes unused attachment files and finally gives
+ * free pages back to the filesystem with incremental vacuuming. Revisions added after the
+ * compactor starts aren't compacted until the next run.
+ *
+ * Incremental vacuuming needs the database file to be in incremental auto-vacuum mode. New
+ * databases are; older ones are switched over the next time Database.compact() runs. Until then
+ * the vacuum step is skipped.
+ */
+public final class IncrementalCompactor {
+
+    /**
+     * The default number of documents (while pruning) or sequences (while clearing bodies)
+     * handled per slice.
+     */
+    public static final int DEFAULT_SLICE_SIZE = 1000;
+
+    /**
+     * The default number of free pages vacuumed per slice.
+     */
+    public static final int DEFAULT_VACUUM_PAGES = 256;
+
+    /**
+     * The default pause between slices, in milliseconds.
+     */
+    public static final long DEFAULT_SLICE_DELAY = 50;
+
+    /**
+     * The steps a compaction goes through, in order.
+     */
+    @InterfaceAudience.Public
+    public enum Stage {
+        IDLE, PRUNING, CLEARING_BODIES, DELETING_ATTACHMENTS, VACUUMING, FINISHED, STOPPED
+    }
+
+    // Share of the overall progress given to each working stage:
+    private static final float PRUNING_WEIGHT = 0.2f;
+    private static final float CLEARING_WEIGHT = 0.5f;
+    private static final float DELETING_WEIGHT = 0.1f;
+    private static final float VACUUMING_WEIGHT = 0.2f;
+
+    private final Database database;
+    private final ScheduledExecutorService workExecutor;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+
+    private int sliceSize = DEFAULT_SLICE_SIZE;
+    private int vacuumPages = DEFAULT_VACUUM_PAGES;
+    private long sliceDelay = DEFAULT_SLICE_DELAY;
+
+    private volatile Stage stage = Stage.IDLE;
+    private volatile float progress;
+    private volatile Throwable error;
+    private Future<?> sliceFuture;
+
+    // Position within the current stage. Only touched by the slice being run:
+    private long lastDocID;
+    private long lastSequence;
+    private long position;
+    private long initialFreePages = -1;
+
+    /**
+     * Constructor
+     */
+    @InterfaceAudience.Private
+    /* package */ IncrementalCompactor(Database database, ScheduledExecutorService workExecutor) {
+        this.database = database;
+        this.workExecutor = workExecutor;
+    }
+
+    /**
+     * Starts compacting in the background. Does nothing if the compactor is already running or
+     * has finished; use a new compactor to compact again.
+     */
+    @InterfaceAudience.Public
+    public synchronized void start() {
+        if (stage != Stage.IDLE) {
+            return;
+        }
+        lastDocID = database.getLastDocNumericID();
+        lastSequence = database.getLastSequenceNumber();
+        position = 0;
+        boolean prune = database.getMaxRevTreeDepth() != Integer.MAX_VALUE;
+        setStage(prune ? Stage.PRUNING : Stage.CLEARING_BODIES);
+        Log.v(Database.TAG, "%s: starting incremental compaction of %s (up to doc_id %d, sequence %d)",
+                this, database, lastDocID, lastSequence);
+        scheduleSlice(0);
+    }
+
+    /**
+     * Stops compacting after the slice in progress, if any. Everything compacted so far stays
+     * compacted.
+     */
+    @InterfaceAudience.Public
+    public synchronized void stop() {
+        if (stage == Stage.IDLE || stage == Stage.FINISHED || stage == Stage.STOPPED) {
+            return;
+        }
+        if (sliceFuture != null) {
+            sliceFuture.cancel(false);
+            sliceFuture = null;
+        }
+        setStage(Stage.STOPPED);
+        notifyChangeListeners();
+    }
+
+    /**
+     * The step the compactor is on.
+     */
+    @InterfaceAudience.Public
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * How much of the compaction is done, from 0.0 to 1.0.
+     */
+    @InterfaceAudience.Public
+    public float getProgress() {
+        return progress;
+    }
+
+    /**
+     * Is the compactor still working?
+     */
+    @InterfaceAudience.Public
+    public boolean isRunning() {
+        Stage current = stage;
+        return current != Stage.IDLE && current != Stage.FINISHED && current != Stage.STOPPED;
+    }
+
+    /**
+     * The error that stopped the compaction, if any.
+     */
+    @InterfaceAudience.Public
+    public Throwable getLastError() {
+        return error;
+    }
+
+    /**
+     * Sets how many documents or sequences are handled per slice. Smaller slices hold the
+     * database for less time, but the whole compaction takes longer.
+     */
+    @InterfaceAudience.Public
+    public void setSliceSize(int sliceSize) {
+        this.sliceSize = Math.max(1, sliceSize);
+    }
+
+    /**
+     * Sets how many free pages are given back to the filesystem per slice.
+     */
+    @InterfaceAudience.Public
+    public void setVacuumPages(int vacuumPages) {
+        this.vacuumPages = Math.max(1, vacuumPages);
+    }
+
+    /**
+     * Sets the pause between slices, in milliseconds, during which other work can use the database.
+     */
+    @InterfaceAudience.Public
+    public void setSliceDelay(long sliceDelay) {
+        this.sliceDelay = Math.max(0, sliceDelay);
+    }
+
+    /**
+     * Add a change listener to be notified as the compaction progresses, and when it finishes
+     * or stops.
+     */
+    @InterfaceAudience.Public
+    public void addChangeListener(ChangeListener changeListener) {
+        changeListeners.add(changeListener);
+    }
+
+    /**
+     * Remove previously added change listener
+     */
+    @InterfaceAudience.Public
+    public void removeChangeListener(ChangeListener changeListener) {
+        changeListeners.remove(changeListener);
+    }
+
+    /**
+     * The type of event raised when the compactor's progress or stage changes.
+     */
+    @InterfaceAudience.Public
+    public static class ChangeEvent {
+
+        private IncrementalCompactor source;
+
+        ChangeEvent(IncrementalCompactor source) {
+            this.source = source;
+        }
+
+        public IncrementalCompactor getSource() {
+            return source;
+        }
+    }
+
+    /**
+     * A delegate that can be used to listen for compaction progress.
+     */
+    @InterfaceAudience.Public
+    public static interface ChangeListener {
+        public void changed(ChangeEvent event);
+    }
+
+    private synchronized void scheduleSlice(long delay) {
+        if (stage == Stage.STOPPED) {
+            return;
+        }
+        sliceFuture = workExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runSlice();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runSlice() {
+        if (!isRunning()) {
+            return;
+        }
+        if (!database.isOpen()) {
+            Log.w(Database.TAG, "%s: database closed, stopping compaction", this);
+            stop();
+            return;
+        }
+        try {
+            switch (stage) {
+                case PRUNING:
+                    prunePass();
+                    break;
+                case CLEARING_BODIES:
+                    clearBodiesPass();
+                    break;
+                case DELETING_ATTACHMENTS:
+                    deleteAttachmentsPass();
+                    break;
+                case VACUUMING:
+                    vacuumPass();
+                    break;
+                default:
+                    return;
+            }
+        } catch (Throwable e) {
+            Log.e(Database.TAG, "%s: error compacting, stopping", e, this);
+            error = e;
+            stop();
+            return;
+        }
+        notifyChangeListeners();
+        if (isRunning()) {
+            scheduleSlice(sliceDelay);
+        }
+    }
+
+    private void prunePass() throws CouchbaseLiteException {
+        long end = Math.min(position + sliceSize, lastDocID);
+        database.pruneRevsInDocRange(0, position, end);
+        position = end;
+        setProgress(PRUNING_WEIGHT, fraction(position, lastDocID));
+        if (position >= lastDocID) {
+            position = 0;
+            setStage(Stage.CLEARING_BODIES);
+        }
+    }
+
+    private void clearBodiesPass() throws CouchbaseLiteException {
+        long end = Math.min(position + sliceSize, lastSequence);
+        database.clearNonCurrentBodies(position, end);
+        position = end;
+        setProgress(PRUNING_WEIGHT + CLEARING_WEIGHT, fraction(position, lastSequence));
+        if (position >= lastSequence) {
+            setStage(Stage.DELETING_ATTACHMENTS);
+        }
+    }
+
+    private void deleteAttachmentsPass() throws CouchbaseLiteException {
+        // The attachment rows were deleted along with the bodies; this removes the files.
+        Status status = database.deleteUnreferencedBlobs();
+        if (!status.isSuccessful()) {
+            throw new CouchbaseLiteException(status);
+        }
+        setProgress(PRUNING_WEIGHT + CLEARING_WEIGHT + DELETING_WEIGHT, 1.0f);
+        if (database.isIncrementalVacuumEnabled()) {
+            setStage(Stage.VACUUMING);
+        } else {
+            Log.v(Database.TAG, "%s: %s isn't in incremental auto-vacuum mode; " +
+                    "compact() it once to enable that", this, database);
+            finish();
+        }
+    }
+
+    private void vacuumPass() throws CouchbaseLiteException {
+        long freePages = database.incrementalVacuum(vacuumPages);
+        if (initialFreePages < 0) {
+            initialFreePages = freePages + vacuumPages;
+        }
+        if (freePages <= 0) {
+            finish();
+        } else {
+            setProgress(PRUNING_WEIGHT + CLEARING_WEIGHT + DELETING_WEIGHT + VACUUMING_WEIGHT,
+                    1.0f - fraction(freePages, initialFreePages));
+        }
+    }
+
+    private void finish() {
+        progress = 1.0f;
+        setStage(Stage.FINISHED);
+        Log.v(Database.TAG, "%s: finished incremental compaction of %s", this, database);
+    }
+
+    private synchronized void setStage(Stage stage) {
+        if (this.stage != Stage.STOPPED) {
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * Sets the overall progress to that of a stage ending at stageEnd, the given fraction done.
+     */
+    private void setProgress(float stageEnd, float stageFraction) {
+        float stageWeight;
+        switch (stage) {
+            case PRUNING: stageWeight = PRUNING_WEIGHT; break;
+            case CLEARING_BODIES: stageWeight = CLEARING_WEIGHT; break;
+            case DELETING_ATTACHMENTS: stageWeight = DELETING_WEIGHT; break;
+            default: stageWeight = VACUUMING_WEIGHT; break;
+        }
+        progress = Math.max(progress, stageEnd - stageWeight * (1.0f - stageFraction));
+    }
+
+    private static float fraction(long done, long total) {
+        return total <= 0 ? 1.0f : Math.min(1.0f, (float) done / total);
+    }
+
+    private void notifyChangeListeners() {
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener changeListener : changeListeners) {
+            try {
+                changeListener.changed(event);
+            } catch (Exception e) {
+                Log.e(Database.TAG, "%s: exception in change listener", e, this);
+            }
+        }
+    }
+}
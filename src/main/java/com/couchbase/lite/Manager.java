@@ -25,6 +25,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.Principal; // https://github.com/couchbase/couchbase-lite-java-core/issues/39
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -69,6 +70,8 @@ public final class Manager {
     private Map<String, Database> databases;
     private List<Replication> replications;
     private ScheduledExecutorService workExecutor;
+    private ScheduledExecutorService notificationExecutor;
+    private ExecutorService indexerExecutor;
     private HttpClientFactory defaultHttpClientFactory;
     private Context context;
 
@@ -204,6 +207,16 @@ public final class Manager {
             database.close();
         }
         databases.clear();
+        synchronized (this) {
+            if (notificationExecutor != null) {
+                notificationExecutor.shutdown();
+                notificationExecutor = null;
+            }
+            if (indexerExecutor != null) {
+                indexerExecutor.shutdown();
+                indexerExecutor = null;
+            }
+        }
         context.getNetworkReachabilityManager().stopListening();
         Log.i(Database.TAG, "Closed " + this);
     }
@@ -593,6 +606,14 @@ public final class Manager {
         return repl;
     }
 
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public ManagerOptions getOptions() {
+        return options;
+    }
+
     /**
      * @exclude
      */
@@ -601,6 +622,33 @@ public final class Manager {
         return workExecutor;
     }
 
+    /**
+     * The thread that asynchronous database change notifications are posted on
+     * (see ManagerOptions.setChangeNotificationDelay()). Kept apart from the work executor so
+     * that slow listeners don't hold up replication.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized ScheduledExecutorService getNotificationExecutor() {
+        if (notificationExecutor == null) {
+            notificationExecutor = Executors.newSingleThreadScheduledExecutor();
+        }
+        return notificationExecutor;
+    }
+
+    /**
+     * The threads view map functions run on while indexing
+     * (see ManagerOptions.setViewIndexerThreads()).
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized ExecutorService getIndexerExecutor() {
+        if (indexerExecutor == null) {
+            indexerExecutor = Executors.newFixedThreadPool(Math.max(1, options.getViewIndexerThreads()));
+        }
+        return indexerExecutor;
+    }
+
     @InterfaceAudience.Private
     public Context getContext() {
         return context;
@@ -18,6 +18,27 @@ public class ManagerOptions {
 
     private AuthorizerFactoryManager authorizerFactoryManager; // https://github.com/couchbase/couchbase-lite-java-core/issues/41
 
+    /**
+     *  Group commit window in milliseconds, or 0 (the default) to sync every transaction to disk.
+     */
+    private int groupCommitDelay = 0;
+
+    /**
+     *  Maximum number of revisions to accumulate before a group commit is forced.
+     */
+    private int groupCommitMaxRevisions = 100;
+
+    /**
+     *  Change notification window in milliseconds, or 0 (the default) to notify synchronously.
+     */
+    private int changeNotificationDelay = 0;
+
+    /**
+     *  Number of threads view map functions are run on while indexing; 1 (the default) maps on
+     *  the indexing thread.
+     */
+    private int viewIndexerThreads = 1;
+
     // https://github.com/couchbase/couchbase-lite-java-core/issues/41
     public ManagerOptions() {
         this(new AuthorizerFactoryManager(new ArrayList<AuthorizerFactory>() {{ add(new BuiltInAuthorizerFactory()); }}));
@@ -36,6 +57,59 @@ public class ManagerOptions {
         this.readOnly = readOnly;
     }
 
+    public int getGroupCommitDelay() {
+        return groupCommitDelay;
+    }
+
+    /**
+     * Enables group commit: instead of syncing each transaction to disk when it commits, writes
+     * made within this many milliseconds of each other (or up to getGroupCommitMaxRevisions()
+     * revisions) are made durable together with a single sync. Database change notifications are
+     * posted once the changes are durable, so they arrive up to this much later, and may arrive
+     * on a background thread. A crash can lose writes that haven't been synced yet, but never
+     * corrupts the database. Requires WAL support in the storage engine; ignored otherwise.
+     */
+    public void setGroupCommitDelay(int groupCommitDelay) {
+        this.groupCommitDelay = groupCommitDelay;
+    }
+
+    public int getGroupCommitMaxRevisions() {
+        return groupCommitMaxRevisions;
+    }
+
+    public void setGroupCommitMaxRevisions(int groupCommitMaxRevisions) {
+        this.groupCommitMaxRevisions = groupCommitMaxRevisions;
+    }
+
+    public int getChangeNotificationDelay() {
+        return changeNotificationDelay;
+    }
+
+    /**
+     * Posts database change notifications asynchronously: instead of calling the change
+     * listeners on the writing thread as each transaction commits, the changes of all the
+     * transactions committed within this many milliseconds are delivered together, in one
+     * ChangeEvent, on a dedicated notification thread. Slow listeners then no longer hold up
+     * writers.
+     */
+    public void setChangeNotificationDelay(int changeNotificationDelay) {
+        this.changeNotificationDelay = changeNotificationDelay;
+    }
+
+    public int getViewIndexerThreads() {
+        return viewIndexerThreads;
+    }
+
+    /**
+     * Runs view map functions on this many threads while a view's index is being updated. The
+     * indexing thread keeps reading documents and writing the emitted rows (in sequence order)
+     * while the map functions run, so rebuilding a large index can use several cores. Only
+     * enable this if all map functions are thread-safe (see Mapper.map()).
+     */
+    public void setViewIndexerThreads(int viewIndexerThreads) {
+        this.viewIndexerThreads = viewIndexerThreads;
+    }
+
     // https://github.com/couchbase/couchbase-lite-java-core/issues/41
     public AuthorizerFactoryManager getAuthorizerFactoryManager() { return authorizerFactoryManager; }
 
@@ -26,6 +26,9 @@ public interface Mapper {
 
     /**
      * A "map" function called when a document is to be added to a view.
+     * If ManagerOptions.setViewIndexerThreads() is given more than one thread, map() may be
+     * called for several documents at once on different threads, so it must be thread-safe:
+     * it shouldn't change any state shared between calls without synchronizing.
      * @param document The contents of the document being analyzed.
      * @param emitter A block to be called to add a key/value pair to the view. Your block can call it zero, one or multiple times.
      */
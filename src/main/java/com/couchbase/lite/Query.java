@@ -80,6 +80,12 @@ public class Query {
      */
     private String endKeyDocId;
 
+    /**
+     * If non-nil, the continuation token of the page of an all-docs query to start at
+     * (from QueryEnumerator.getNextPageToken() of the previous page). skip is ignored then.
+     */
+    private String pageToken;
+
     /**
      * If set, the view will not be updated for this query, even if the database has changed.
      * This allows faster results at the expense of returning possibly out-of-date data.
@@ -178,6 +184,7 @@ public class Query {
         mapOnly = query.mapOnly;
         startKeyDocId = query.startKeyDocId;
         endKeyDocId = query.endKeyDocId;
+        pageToken = query.pageToken;
         indexUpdateMode = query.indexUpdateMode;
         allDocsMode = query.allDocsMode;
     }
@@ -261,6 +268,16 @@ public class Query {
         this.endKeyDocId = endKeyDocId;
     }
 
+    @InterfaceAudience.Public
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    @InterfaceAudience.Public
+    public void setPageToken(String pageToken) {
+        this.pageToken = pageToken;
+    }
+
     @InterfaceAudience.Public
     public IndexUpdateMode getIndexUpdateMode() {
         return indexUpdateMode;
@@ -338,10 +355,15 @@ public class Query {
     @InterfaceAudience.Public
     public QueryEnumerator run() throws CouchbaseLiteException {
         List<Long> outSequence = new ArrayList<Long>();
+        List<String> outNextPageToken = new ArrayList<String>();
         String viewName = (view != null) ? view.getName() : null;
-        List<QueryRow> rows = database.queryViewNamed(viewName, getQueryOptions(), outSequence);
+        List<QueryRow> rows = database.queryViewNamed(viewName, getQueryOptions(), outSequence, outNextPageToken);
         lastSequence = outSequence.get(0);
-        return new QueryEnumerator(database, rows, lastSequence);
+        QueryEnumerator enumerator = new QueryEnumerator(database, rows, lastSequence);
+        if (!outNextPageToken.isEmpty()) {
+            enumerator.setNextPageToken(outNextPageToken.get(0));
+        }
+        return enumerator;
     }
 
     /**
@@ -434,6 +456,7 @@ public class Query {
         queryOptions.setAllDocsMode(getAllDocsMode());
         queryOptions.setStartKeyDocId(getStartKeyDocId());
         queryOptions.setEndKeyDocId(getEndKeyDocId());
+        queryOptions.setPageToken(getPageToken());
         return queryOptions;
     }
 
@@ -14,6 +14,7 @@ public class QueryEnumerator implements Iterator<QueryRow> {
     private List<QueryRow> rows;
     private int nextRow;
     private long sequenceNumber;
+    private String nextPageToken;
 
     /**
      * Constructor
@@ -38,6 +39,7 @@ public class QueryEnumerator implements Iterator<QueryRow> {
         this.database = other.database;
         this.rows = other.rows;
         this.sequenceNumber = other.sequenceNumber;
+        this.nextPageToken = other.nextPageToken;
     }
 
     /**
@@ -56,6 +58,20 @@ public class QueryEnumerator implements Iterator<QueryRow> {
         return sequenceNumber;
     }
 
+    /**
+     * For an all-docs query that returned a full page (as many rows as its limit), the token to
+     * set as the pageToken of the query for the next page; otherwise null.
+     */
+    @InterfaceAudience.Public
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    @InterfaceAudience.Private
+    /* package */ void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
+
     /**
      * Gets the next QueryRow from the results, or null
      * if there are no more results.
@@ -48,6 +48,7 @@ public class QueryOptions {
 
     private String startKeyDocId;
     private String endKeyDocId;
+    private String pageToken;
 
 
     public Object getStartKey() {
@@ -194,4 +195,17 @@ public class QueryOptions {
         this.endKeyDocId = endKeyDocId;
     }
 
+    /**
+     * The continuation token returned with the previous page of an all-docs query
+     * ("next_page_token"); the query resumes after the last document of that page. The skip
+     * option only applies to the first page, and is ignored when a token is given.
+     */
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    public void setPageToken(String pageToken) {
+        this.pageToken = pageToken;
+    }
+
 }
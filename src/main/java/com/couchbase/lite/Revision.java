@@ -60,7 +60,7 @@ public abstract class Revision {
      */
     @InterfaceAudience.Public
     public Database getDatabase() {
-        return document.getDatabase();
+        return getDocument().getDatabase();
     }
 
     /**
@@ -219,7 +219,7 @@ public abstract class Revision {
         boolean result = false;
         if(o instanceof SavedRevision) {
             SavedRevision other = (SavedRevision)o;
-            if(document.getId().equals(other.getDocument().getId()) && getId().equals(other.getId())) {
+            if(getDocument().getId().equals(other.getDocument().getId()) && getId().equals(other.getId())) {
                 result = true;
             }
         }
@@ -232,7 +232,7 @@ public abstract class Revision {
     @Override
     @InterfaceAudience.Public
     public int hashCode() {
-        return document.getId().hashCode() ^ getId().hashCode();
+        return getDocument().getId().hashCode() ^ getId().hashCode();
     }
 
     /**
@@ -242,7 +242,7 @@ public abstract class Revision {
     @Override
     @InterfaceAudience.Public
     public String toString() {
-        return "{" + this.document.getId() + " #" + this.getId() + (isDeletion() ? "DEL" : "") + "}";
+        return "{" + getDocument().getId() + " #" + this.getId() + (isDeletion() ? "DEL" : "") + "}";
     }
 
     /**
@@ -17,6 +17,7 @@
 
 package com.couchbase.lite;
 
+import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.util.Log;
@@ -34,6 +35,7 @@ import java.util.Map;
  */
 public final class SavedRevision extends Revision {
 
+    private final Database database;
     private RevisionInternal revisionInternal;
     private boolean checkedProperties;
 
@@ -44,16 +46,20 @@ public final class SavedRevision extends Revision {
     @InterfaceAudience.Private
     /* package */ SavedRevision(Document document, RevisionInternal revision) {
         super(document);
+        this.database = document.getDatabase();
         this.revisionInternal = revision;
     }
 
     /**
-     * Constructor
+     * Constructor. The Document isn't looked up (or instantiated and cached) until it's asked for,
+     * so creating revisions in bulk doesn't fill the database's document cache.
      * @exclude
      */
     @InterfaceAudience.Private
     /* package */ SavedRevision(Database database, RevisionInternal revision) {
-        this(database.getDocument(revision.getDocId()), revision);
+        super();
+        this.database = database;
+        this.revisionInternal = revision;
     }
 
     /**
@@ -61,9 +67,18 @@ public final class SavedRevision extends Revision {
      */
     @InterfaceAudience.Public
     public Document getDocument() {
+        if (document == null) {
+            document = database.getDocument(revisionInternal.getDocId());
+        }
         return document;
     }
 
+    @Override
+    @InterfaceAudience.Public
+    public Database getDatabase() {
+        return database;
+    }
+
     /**
      * Has this object fetched its contents from the database yet?
      */
@@ -82,7 +97,7 @@ public final class SavedRevision extends Revision {
                 revisions.add(this);
             }
             else {
-                SavedRevision revision = document.getRevisionFromRev(internalRevision);
+                SavedRevision revision = getDocument().getRevisionFromRev(internalRevision);
                 revisions.add(revision);
             }
 
@@ -99,7 +114,7 @@ public final class SavedRevision extends Revision {
      */
     @InterfaceAudience.Public
     public UnsavedRevision createRevision() throws CouchbaseLiteException {
-        UnsavedRevision newRevision = new UnsavedRevision(document, this);
+        UnsavedRevision newRevision = new UnsavedRevision(getDocument(), this);
         return newRevision;
     }
 
@@ -110,7 +125,7 @@ public final class SavedRevision extends Revision {
     @InterfaceAudience.Public
     public SavedRevision createRevision(Map<String, Object> properties) throws CouchbaseLiteException {
         boolean allowConflict = false;
-        return document.putProperties(properties, revisionInternal.getRevId(), allowConflict);
+        return getDocument().putProperties(properties, revisionInternal.getRevId(), allowConflict);
     }
 
     @Override
@@ -134,16 +149,34 @@ public final class SavedRevision extends Revision {
     @Override
     @InterfaceAudience.Public
     public Map<String,Object> getProperties() {
-        Map<String, Object> properties = revisionInternal.getProperties();
+        Map<String, Object> properties = getBodyProperties();
         if (properties == null && !checkedProperties) {
             if (loadProperties() == true) {
-                properties = revisionInternal.getProperties();
+                properties = getBodyProperties();
             }
             checkedProperties = true;
         }
         return Collections.unmodifiableMap(properties);
     }
 
+    /**
+     * The body's own read-only map, rather than RevisionInternal.getProperties()'s copy of it.
+     * Besides saving the copy, that leaves a lazily decoded body undecoded when only a few
+     * properties are read (by a replication filter, say).
+     */
+    private Map<String, Object> getBodyProperties() {
+        Body body = revisionInternal.getBody();
+        if (body == null) {
+            return null;
+        }
+        try {
+            return body.getProperties();
+        } catch (IllegalStateException e) {
+            // both the body's json and object are null
+            return null;
+        }
+    }
+
     /**
      * Deletes the document by creating a new deletion-marker revision.
      *
@@ -164,7 +197,7 @@ public final class SavedRevision extends Revision {
     @Override
     @InterfaceAudience.Public
     public String getParentId() {
-        RevisionInternal parRev= getDocument().getDatabase().getParentRevision(revisionInternal);
+        RevisionInternal parRev= getDatabase().getParentRevision(revisionInternal);
         if ( parRev == null){
             return null;
         }
@@ -24,11 +24,13 @@ import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.storage.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatement;
+import com.couchbase.lite.storage.SQLiteStatementCache;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.Log;
-import com.couchbase.lite.util.Utils;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -44,6 +46,13 @@ public final class View {
      * @exclude
      */
     public static final int REDUCE_BATCH_SIZE = 100;
+    public static final int MAP_INSERT_BATCH_SIZE = 500;
+
+    /* package */ static final String INSERT_MAP_ROW_SQL =
+            "INSERT INTO maps (view_id, sequence, key, value) VALUES (?, ?, ?, ?)";
+
+    private static final String INSERT_REDUCE_ROW_SQL =
+            "INSERT INTO reduces (view_id, key, value) VALUES (?, ?, ?)";
 
     /**
      * @exclude
@@ -58,6 +67,7 @@ public final class View {
     private Mapper mapBlock;
     private Reducer reduceBlock;
     private TDViewCollation collation;
+    private boolean rereduceSupported;
     private static ViewCompiler compiler;
 
     /**
@@ -120,6 +130,27 @@ public final class View {
         return reduceBlock;
     }
 
+    /**
+     * Does the reduce function support rereduce? See setRereduceSupported().
+     */
+    @InterfaceAudience.Public
+    public boolean isRereduceSupported() {
+        return rereduceSupported || (reduceBlock instanceof BuiltinReducer);
+    }
+
+    /**
+     * Declares that the reduce function supports rereduce: called with rereduce=true, null keys
+     * and a list of its own earlier results as the values, it returns the result for all the
+     * rows those were reduced from. The reduced result for each distinct key is kept with the
+     * index, so grouped queries don't reduce every row; with rereduce supported, reduce queries
+     * with a group_level or without grouping combine those results instead of reducing every row
+     * as well. (The BuiltinReducers always support rereduce.)
+     */
+    @InterfaceAudience.Public
+    public void setRereduceSupported(boolean rereduceSupported) {
+        this.rereduceSupported = rereduceSupported;
+    }
+
     /**
      * Is the view's index currently out of date?
      */
@@ -134,11 +165,14 @@ public final class View {
     @InterfaceAudience.Public
     public long getLastSequenceIndexed() {
         String sql = "SELECT lastSequence FROM views WHERE name=?";
-        String[] args = { name };
+        SQLiteStatementCache statements = database.getStatementCache();
+        SQLiteStatement statement = null;
         Cursor cursor = null;
         long result = -1;
         try {
-            cursor = database.getDatabase().rawQuery(sql, args);
+            statement = statements.acquire(sql);
+            statement.bindString(1, name);
+            cursor = statement.query();
             if (cursor.moveToNext()) {
                 result = cursor.getLong(0);
             }
@@ -148,6 +182,7 @@ public final class View {
             if (cursor != null) {
                 cursor.close();
             }
+            statements.release(sql, statement);
         }
         return result;
     }
@@ -171,6 +206,9 @@ public final class View {
      *
      * Since the function itself is obviously not stored in the database (only a unique
      * string idenfitying it), you must re-define the view on every launch of the app!
+     * Reduced results are stored with the index too. They're rebuilt when the reduce function
+     * is replaced by one of another class (or another BuiltinReducer), but a changed function of
+     * the same class needs a new version, like a changed map function.
      * If the database needs to rebuild the view but the function hasn't been defined yet,
      * it will fail and the view will be empty, causing weird problems later on.
      *
@@ -256,6 +294,7 @@ public final class View {
             database.beginTransaction();
 
             String[] whereArgs = { Integer.toString(getViewId()) };
+            resetReduceIndex();
             database.getDatabase().delete("maps", "view_id=?", whereArgs);
 
             ContentValues updateValues = new ContentValues();
@@ -365,218 +404,46 @@ public final class View {
      * @return 200 if updated, 304 if already up-to-date, else an error code
      * @exclude
      */
-    @SuppressWarnings("unchecked")
     @InterfaceAudience.Private
     public void updateIndex() throws CouchbaseLiteException {
-        Log.v(Log.TAG_VIEW, "Re-indexing view: %s", name);
-        assert (mapBlock != null);
-
-        if (getViewId() <= 0) {
-            String msg = String.format("getViewId() < 0");
-            throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
-        }
-
-        database.beginTransaction();
-        Status result = new Status(Status.INTERNAL_SERVER_ERROR);
-        Cursor cursor = null;
-
-        try {
-
-            long lastSequence = getLastSequenceIndexed();
-            long dbMaxSequence = database.getLastSequenceNumber();
-            if(lastSequence == dbMaxSequence) {
-                // nothing to do (eg,  kCBLStatusNotModified)
-                Log.v(Log.TAG_VIEW, "lastSequence (%s) == dbMaxSequence (%s), nothing to do",
-                        lastSequence, dbMaxSequence);
-                result.setCode(Status.NOT_MODIFIED);
-                return;
-            }
-
-            // First remove obsolete emitted results from the 'maps' table:
-            long sequence = lastSequence;
-            if (lastSequence < 0) {
-                String msg = String.format("lastSequence < 0 (%s)", lastSequence);
-                throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
-            }
-
-            if (lastSequence == 0) {
-                // If the lastSequence has been reset to 0, make sure to remove
-                // any leftover rows:
-                String[] whereArgs = { Integer.toString(getViewId()) };
-                database.getDatabase().delete("maps", "view_id=?", whereArgs);
-            } else {
-                // Delete all obsolete map results (ones from since-replaced
-                // revisions):
-                String[] args = { Integer.toString(getViewId()),
-                        Long.toString(lastSequence),
-                        Long.toString(lastSequence) };
-                database.getDatabase().execSQL(
-                        "DELETE FROM maps WHERE view_id=? AND sequence IN ("
-                                + "SELECT parent FROM revs WHERE sequence>? "
-                                + "AND parent>0 AND parent<=?)", args);
-            }
-
-            int deleted = 0;
-            cursor = database.getDatabase().rawQuery("SELECT changes()", null);
-            cursor.moveToNext();
-            deleted = cursor.getInt(0);
-            cursor.close();
-
-            // This is the emit() block, which gets called from within the
-            // user-defined map() block
-            // that's called down below.
-            AbstractTouchMapEmitBlock emitBlock = new AbstractTouchMapEmitBlock() {
-
-                @Override
-                public void emit(Object key, Object value) {
-
-                    try {
-                        String valueJson;
-                        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
-                        if (value==null) {
-                            valueJson = null;
-                        } else{
-                            valueJson = Manager.getObjectMapper().writeValueAsString(value);
-                        }
-                        //Log.v(Log.TAG_VIEW, "    emit(" + keyJson + ", "
-                        //        + valueJson + ")");
-
-                        ContentValues insertValues = new ContentValues();
-                        insertValues.put("view_id", getViewId());
-                        insertValues.put("sequence", sequence);
-                        insertValues.put("key", keyJson);
-                        insertValues.put("value", valueJson);
-                        database.getDatabase().insert("maps", null, insertValues);
-                    } catch (Exception e) {
-                        Log.e(Log.TAG_VIEW, "Error emitting", e);
-                        // find a better way to propagate this back
-                    }
-                }
-            };
-
-            // Now scan every revision added since the last time the view was
-            // indexed:
-            String[] selectArgs = { Long.toString(lastSequence) };
-
-            cursor = database.getDatabase().rawQuery(
-                    "SELECT revs.doc_id, sequence, docid, revid, json, no_attachments FROM revs, docs "
-                            + "WHERE sequence>? AND current!=0 AND deleted=0 "
-                            + "AND revs.doc_id = docs.doc_id "
-                            + "ORDER BY revs.doc_id, revid DESC", selectArgs);
-
-
-            boolean keepGoing = cursor.moveToNext();
-            while (keepGoing) {
-                long docID = cursor.getLong(0);
-
-                // Reconstitute the document as a dictionary:
-                sequence = cursor.getLong(1);
-                String docId = cursor.getString(2);
-                if(docId.startsWith("_design/")) {  // design docs don't get indexed!
-                    keepGoing = cursor.moveToNext();
-                    continue;
-                }
-                String revId = cursor.getString(3);
-                byte[] json = cursor.getBlob(4);
-
-                boolean noAttachments = cursor.getInt(5) > 0;
-
-                while ((keepGoing = cursor.moveToNext()) &&  cursor.getLong(0) == docID) {
-                    // Skip rows with the same doc_id -- these are losing conflicts.
-                }
-
-                if (lastSequence > 0) {
-                    // Find conflicts with documents from previous indexings.
-                    String[] selectArgs2 = { Long.toString(docID), Long.toString(lastSequence) };
-
-                    Cursor cursor2 = null;
-                    try {
-                        cursor2 = database.getDatabase().rawQuery(
-                                "SELECT revid, sequence FROM revs "
-                                        + "WHERE doc_id=? AND sequence<=? AND current!=0 AND deleted=0 "
-                                        + "ORDER BY revID DESC "
-                                        + "LIMIT 1", selectArgs2);
-
-                        if (cursor2.moveToNext()) {
-                            String oldRevId = cursor2.getString(0);
-                            // This is the revision that used to be the 'winner'.
-                            // Remove its emitted rows:
-                            long oldSequence = cursor2.getLong(1);
-                            String[] args = {
-                                    Integer.toString(getViewId()),
-                                    Long.toString(oldSequence)
-                            };
-                            database.getDatabase().execSQL(
-                                    "DELETE FROM maps WHERE view_id=? AND sequence=?", args);
-                            if (RevisionInternal.CBLCompareRevIDs(oldRevId, revId) > 0) {
-                                // It still 'wins' the conflict, so it's the one that
-                                // should be mapped [again], not the current revision!
-                                revId = oldRevId;
-                                sequence = oldSequence;
-
-                                String[] selectArgs3 = { Long.toString(sequence) };
-                                json = Utils.byteArrayResultForQuery(database.getDatabase(), "SELECT json FROM revs WHERE sequence=?", selectArgs3);
-
-                            }
-                        }
-                    } finally {
-                        if (cursor2 != null) {
-                            cursor2.close();
-                        }
-                    }
-
-
-                }
+        List<View> views = new ArrayList<View>(1);
+        views.add(this);
+        database.updateIndexes(views);
+    }
 
-                // Get the document properties, to pass to the map function:
-                EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(Database.TDContentOptions.class);
-                if (noAttachments)
-                    contentOptions.add(TDContentOptions.TDNoAttachments);
-                Map<String, Object> properties = database.documentPropertiesFromJSON(
-                        json,
-                        docId,
-                        revId,
-                        false,
-                        sequence,
-                        contentOptions
-                );
-                if (properties != null) {
-                    // Call the user-defined map() to emit new key/value
-                    // pairs from this revision:
-                    emitBlock.setSequence(sequence);
-                    mapBlock.map(properties, emitBlock);
+    /**
+     * This view and the other views of its design document (those named with the same
+     * "designdoc/" prefix) whose map functions are set: the views worth updating together with
+     * Database.updateIndexes().
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<View> getViewsInGroup() {
+        List<View> group = new ArrayList<View>();
+        group.add(this);
+        int slash = name.indexOf('/');
+        if (slash > 0) {
+            String prefix = name.substring(0, slash + 1);
+            for (View view : database.getRegisteredViews()) {
+                if (view != this && view.getName().startsWith(prefix) && view.getMap() != null) {
+                    group.add(view);
                 }
-
-            }
-
-            // Finally, record the last revision sequence number that was
-            // indexed:
-            ContentValues updateValues = new ContentValues();
-            updateValues.put("lastSequence", dbMaxSequence);
-            String[] whereArgs = { Integer.toString(getViewId()) };
-            database.getDatabase().update("views", updateValues, "view_id=?",
-                    whereArgs);
-
-            // FIXME actually count number added :)
-            Log.v(Log.TAG_VIEW, "Finished re-indexing view: %s "
-                    + " up to sequence %s"
-                    + " (deleted %s added ?)", name, dbMaxSequence, deleted);
-            result.setCode(Status.OK);
-
-        } catch (SQLException e) {
-            throw new CouchbaseLiteException(e, new Status(Status.DB_ERROR));
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-            if (!result.isSuccessful()) {
-                Log.w(Log.TAG_VIEW, "Failed to rebuild view %s.  Result code: %d", name, result.getCode());
-            }
-            if(database != null) {
-                database.endTransaction(result.isSuccessful());
             }
         }
+        return group;
+    }
 
+    /**
+     * Makes a row for the 'maps' table from an emitted key and value.
+     */
+    /* package */ static Object[] mapRow(int viewId, long sequence, Object key, Object value) throws IOException {
+        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
+        String valueJson = null;
+        if (value != null) {
+            valueJson = Manager.getObjectMapper().writeValueAsString(value);
+        }
+        Object[] row = { viewId, sequence, keyJson, valueJson };
+        return row;
     }
 
     /**
@@ -584,19 +451,20 @@ public final class View {
      */
     @InterfaceAudience.Private
     public Cursor resultSetWithOptions(QueryOptions options) {
+        return resultSetWithOptions(options, database.getDatabase());
+    }
+
+    /**
+     * Runs the query on the given connection, which may be one of the database's read-only ones.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Cursor resultSetWithOptions(QueryOptions options, SQLiteStorageEngine connection) {
         if (options == null) {
             options = new QueryOptions();
         }
 
-        // OPT: It would be faster to use separate tables for raw-or ascii-collated views so that
-        // they could be indexed with the right collation, instead of having to specify it here.
-        String collationStr = "";
-        if(collation == TDViewCollation.TDViewCollationASCII) {
-            collationStr += " COLLATE JSON_ASCII";
-        }
-        else if(collation == TDViewCollation.TDViewCollationRaw) {
-            collationStr += " COLLATE JSON_RAW";
-        }
+        String collationStr = collationSQL();
 
         String sql = "SELECT key, value, docid, revs.sequence";
         if (options.isIncludeDocs()) {
@@ -604,9 +472,34 @@ public final class View {
         }
         sql = sql + " FROM maps, revs, docs WHERE maps.view_id=?";
 
-        List<String> argsList = new ArrayList<String>();
-        argsList.add(Integer.toString(getViewId()));
+        List<Object> argsList = new ArrayList<Object>();
+        argsList.add(getViewId());
+
+        sql += keyRangeSQL(options, collationStr, argsList);
+
+        sql = sql
+                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY key";
+        sql += collationStr;
+
+        if (options.isDescending()) {
+            sql = sql + " DESC";
+        }
+
+        sql = sql + " LIMIT ? OFFSET ?";
+        argsList.add(options.getLimit());
+        argsList.add(options.getSkip());
+
+        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
 
+        Cursor cursor = connection.rawQuery(sql, argsList.toArray());
+        return cursor;
+    }
+
+    /**
+     * The " AND ..." conditions on the key (and docid) for the query's keys or key range.
+     */
+    private String keyRangeSQL(QueryOptions options, String collationStr, List<Object> argsList) {
+        String sql = "";
         if(options.getKeys() != null) {
             sql += " AND key in (";
             String item = "?";
@@ -668,23 +561,23 @@ public final class View {
             }
         }
 
-        sql = sql
-                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY key";
-        sql += collationStr;
+        return sql;
+    }
 
-        if (options.isDescending()) {
-            sql = sql + " DESC";
+    /**
+     * The COLLATE clause for comparing this view's keys.
+     */
+    private String collationSQL() {
+        // OPT: It would be faster to use separate tables for raw-or ascii-collated views so that
+        // they could be indexed with the right collation, instead of having to specify it here.
+        String collationStr = "";
+        if(collation == TDViewCollation.TDViewCollationASCII) {
+            collationStr += " COLLATE JSON_ASCII";
         }
-
-        sql = sql + " LIMIT ? OFFSET ?";
-        argsList.add(Integer.toString(options.getLimit()));
-        argsList.add(Integer.toString(options.getSkip()));
-
-        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
-
-        Cursor cursor = database.getDatabase().rawQuery(sql,
-                argsList.toArray(new String[argsList.size()]));
-        return cursor;
+        else if(collation == TDViewCollation.TDViewCollationRaw) {
+            collationStr += " COLLATE JSON_RAW";
+        }
+        return collationStr;
     }
 
     /**
@@ -694,7 +587,7 @@ public final class View {
     @InterfaceAudience.Private
     public static boolean groupTogether(Object key1, Object key2, int groupLevel) {
         if(groupLevel == 0 || !(key1 instanceof List) || !(key2 instanceof List)) {
-            return key1.equals(key2);
+            return (key1 == null) ? (key2 == null) : key1.equals(key2);
         }
         @SuppressWarnings("unchecked")
         List<Object> key1List = (List<Object>)key1;
@@ -709,7 +602,8 @@ public final class View {
 
         int end = Math.min(groupLevel, Math.min(key1List.size(), key2List.size()));
         for(int i = 0; i < end; ++i) {
-            if(!key1List.get(i).equals(key2List.get(i))) {
+            Object item1 = key1List.get(i);
+            if(item1 == null ? key2List.get(i) != null : !item1.equals(key2List.get(i))) {
                 return false;
             }
         }
@@ -742,7 +636,7 @@ public final class View {
             return null;
         }
 
-        String[] selectArgs = { Integer.toString(getViewId()) };
+        Object[] selectArgs = { getViewId() };
         Cursor cursor = null;
         List<Map<String, Object>> result = null;
 
@@ -780,6 +674,9 @@ public final class View {
      */
     @InterfaceAudience.Private
     List<QueryRow> reducedQuery(Cursor cursor, boolean group, int groupLevel) throws CouchbaseLiteException {
+        if (reduceBlock instanceof BuiltinReducer) {
+            return builtinReducedQuery(cursor, group, groupLevel, (BuiltinReducer) reduceBlock);
+        }
 
         List<Object> keysToReduce = null;
         List<Object> valuesToReduce = null;
@@ -797,8 +694,9 @@ public final class View {
             assert(keyDoc != null);
 
             Object keyObject = keyDoc.jsonObject();
-            if(group && !groupTogether(keyObject, lastKey, groupLevel)) {
-                if (lastKey != null) {
+            // (A key may be null, so an empty keysToReduce marks the start of a group.)
+            if(group && (keysToReduce.isEmpty() || !groupTogether(keyObject, lastKey, groupLevel))) {
+                if (!keysToReduce.isEmpty()) {
                     // This pair starts a new group, so reduce & record the last one:
                     Object reduced = (reduceBlock != null) ? reduceBlock.reduce(keysToReduce, valuesToReduce, false) : null;
                     Object key = groupKey(lastKey, groupLevel);
@@ -831,6 +729,354 @@ public final class View {
 
     }
 
+    /**
+     * reducedQuery() for a BuiltinReducer: the values are accumulated straight from the stored
+     * JSON, and only a group's first key is parsed (rows whose key has the same JSON as the
+     * row before are in the same group).
+     */
+    private List<QueryRow> builtinReducedQuery(Cursor cursor, boolean group, int groupLevel, BuiltinReducer reducer) {
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        BuiltinReducer.Accumulator accumulator = null;
+        String lastKeyJson = null;
+        Object lastKey = null;
+        while (cursor.moveToNext()) {
+            if (group) {
+                String keyJson = cursor.getString(0);
+                if (!keyJson.equals(lastKeyJson)) {
+                    Object keyObject = new JsonDocument(cursor.getBlob(0)).jsonObject();
+                    if (accumulator != null && !groupTogether(keyObject, lastKey, groupLevel)) {
+                        // This pair starts a new group, so record the last one:
+                        QueryRow row = new QueryRow(null, 0, groupKey(lastKey, groupLevel), accumulator.result(), null);
+                        row.setDatabase(database);
+                        rows.add(row);
+                        accumulator = null;
+                    }
+                    if (accumulator == null) {
+                        lastKey = keyObject;
+                    }
+                    lastKeyJson = keyJson;
+                }
+            }
+            if (accumulator == null) {
+                accumulator = reducer.newAccumulator();
+            }
+            accumulator.addJson(cursor.getBlob(1));
+        }
+        if (accumulator != null) {
+            // Finish the last group (or the entire list, if no grouping):
+            Object key = group ? groupKey(lastKey, groupLevel) : null;
+            QueryRow row = new QueryRow(null, 0, key, accumulator.result(), null);
+            row.setDatabase(database);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /*** Stored reduce results ***/
+
+    /**
+     * Runs a reduced or grouped query from the stored per-key reduce results, or returns null if
+     * they can't answer it: if they're out of date, if the query has docid bounds, skip or
+     * limit (which apply to the rows), or if it needs rereduce and that isn't supported.
+     */
+    private List<QueryRow> reducedQueryFromIndex(QueryOptions options, SQLiteStorageEngine connection,
+                                                 boolean group, int groupLevel) {
+        if (reduceBlock == null || options.getStartKeyDocId() != null || options.getEndKeyDocId() != null
+                || options.getSkip() > 0 || options.getLimit() != Integer.MAX_VALUE) {
+            return null;
+        }
+        boolean rereduce = !group || groupLevel > 0;
+        if (rereduce && !isRereduceSupported()) {
+            return null;
+        }
+
+        Cursor cursor = null;
+        try {
+            Object[] args = { getViewId(), getViewId() };
+            cursor = connection.rawQuery("SELECT lastSequence, reduce_sequence, reduce_identity, " +
+                    "EXISTS (SELECT 1 FROM reduces_dirty WHERE view_id=?) FROM views WHERE view_id=?", args);
+            if (!cursor.moveToNext() || cursor.getLong(0) <= 0 || cursor.getLong(1) != cursor.getLong(0)
+                    || !reducerIdentity().equals(cursor.getString(2)) || cursor.getInt(3) != 0) {
+                return null;
+            }
+            cursor.close();
+
+            String collationStr = collationSQL();
+            List<Object> argsList = new ArrayList<Object>();
+            argsList.add(getViewId());
+            String sql = "SELECT key, value FROM reduces WHERE view_id=?"
+                    + keyRangeSQL(options, collationStr, argsList) + " ORDER BY key" + collationStr;
+            if (options.isDescending()) {
+                sql += " DESC";
+            }
+            cursor = connection.rawQuery(sql, argsList.toArray());
+
+            List<QueryRow> rows = new ArrayList<QueryRow>();
+            List<Object> valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+            Object lastKey = null;
+            while (cursor.moveToNext()) {
+                Object keyObject = new JsonDocument(cursor.getBlob(0)).jsonObject();
+                Object value = new JsonDocument(cursor.getBlob(1)).jsonObject();
+                if (!rereduce) {
+                    QueryRow row = new QueryRow(null, 0, keyObject, value, null);
+                    row.setDatabase(database);
+                    rows.add(row);
+                    continue;
+                }
+                // (A key may be null, so an empty valuesToReduce marks the start of a group.)
+                if (group && !valuesToReduce.isEmpty() && !groupTogether(keyObject, lastKey, groupLevel)) {
+                    // This key starts a new group, so rereduce & record the last one:
+                    QueryRow row = new QueryRow(null, 0, groupKey(lastKey, groupLevel),
+                            reduceBlock.reduce(null, valuesToReduce, true), null);
+                    row.setDatabase(database);
+                    rows.add(row);
+                    valuesToReduce.clear();
+                }
+                if (valuesToReduce.isEmpty()) {
+                    lastKey = keyObject;
+                }
+                valuesToReduce.add(value);
+            }
+            if (valuesToReduce.size() > 0) {
+                // Finish the last group (or the entire list, if no grouping):
+                Object key = group ? groupKey(lastKey, groupLevel) : null;
+                QueryRow row = new QueryRow(null, 0, key, reduceBlock.reduce(null, valuesToReduce, true), null);
+                row.setDatabase(database);
+                rows.add(row);
+            }
+            return rows;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Does the view need its stored reduce results brought up to date, even if the index is?
+     * (They may not have been built yet, or be from another reduce function, or rows may have
+     * been removed by compaction.) Not if reducing failed at this sequence: that's only tried
+     * again once the index or the reduce function changes.
+     */
+    /* package */ boolean isReduceIndexStale(long lastSequence) {
+        if (reduceBlock == null || lastSequence <= 0) {
+            return false;
+        }
+        Cursor cursor = null;
+        try {
+            Object[] args = { getViewId(), getViewId() };
+            cursor = database.getDatabase().rawQuery("SELECT reduce_sequence, reduce_identity, " +
+                    "EXISTS (SELECT 1 FROM reduces_dirty WHERE view_id=?) FROM views WHERE view_id=?", args);
+            if (!cursor.moveToNext()) {
+                return false;
+            }
+            long reduceSequence = cursor.getLong(0);
+            return (reduceSequence != lastSequence && reduceSequence != -lastSequence)
+                    || !reducerIdentity().equals(cursor.getString(1)) || cursor.getInt(2) != 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the stored reduce results ready for an index update; called (in the transaction)
+     * before the map rows change. Returns true if they have to be rebuilt from all the rows
+     * afterwards, false if only the keys whose rows change need reducing again, or if the view
+     * has no reduce function.
+     */
+    /* package */ boolean prepareReduceIndex(long lastSequence) {
+        long reduceSequence = 0;
+        String identity = null;
+        Cursor cursor = null;
+        try {
+            Object[] args = { getViewId() };
+            cursor = database.getDatabase().rawQuery("SELECT reduce_sequence, reduce_identity FROM views " +
+                    "WHERE view_id=?", args);
+            if (cursor.moveToNext()) {
+                reduceSequence = cursor.getLong(0);
+                identity = cursor.getString(1);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (reduceBlock != null && lastSequence > 0 && reduceSequence == lastSequence
+                && reducerIdentity().equals(identity)) {
+            return false;
+        }
+        if (reduceBlock != null || reduceSequence != 0) {
+            resetReduceIndex();
+        }
+        return reduceBlock != null;
+    }
+
+    /**
+     * Identifies the reduce function that stored reduce results are from, or null if there is
+     * none: a BuiltinReducer's name, or else the reducer's class. Results from another reduce
+     * function are rebuilt. (A changed function of the same class isn't noticed; that takes a
+     * new view version, as with map functions.)
+     */
+    /* package */ String reducerIdentity() {
+        if (reduceBlock == null) {
+            return null;
+        }
+        if (reduceBlock instanceof BuiltinReducer) {
+            return ((BuiltinReducer) reduceBlock).getName();
+        }
+        return reduceBlock.getClass().getName();
+    }
+
+    /**
+     * Throws away the stored reduce results (and stops noting changed keys).
+     */
+    private void resetReduceIndex() {
+        SQLiteStorageEngine storageEngine = database.getDatabase();
+        Object[] args = { getViewId() };
+        storageEngine.execSQL("UPDATE views SET reduce_sequence=0 WHERE view_id=?", args);
+        storageEngine.execSQL("DELETE FROM reduces WHERE view_id=?", args);
+        storageEngine.execSQL("DELETE FROM reduces_dirty WHERE view_id=?", args);
+    }
+
+    /**
+     * Brings the stored reduce results up to date after an index update, in the same
+     * transaction: either reduces all the rows, a key at a time, or just the rows of the keys
+     * whose rows were added or removed. Returns false (and leaves no results stored) if a result
+     * couldn't be computed or stored as JSON; queries then reduce the rows themselves, until the
+     * next index update tries again.
+     */
+    /* package */ boolean updateReduceIndex(boolean rebuild) {
+        SQLiteStorageEngine storageEngine = database.getDatabase();
+        Object[] viewArgs = { getViewId() };
+        List<Object[]> reduceRows = new ArrayList<Object[]>(MAP_INSERT_BATCH_SIZE);
+        Cursor cursor = null;
+        try {
+            if (rebuild) {
+                cursor = storageEngine.rawQuery("SELECT key, value FROM maps WHERE view_id=? ORDER BY key", viewArgs);
+                reduceKeys(cursor, reduceRows);
+                cursor.close();
+                cursor = null;
+            } else {
+                List<String> keys = new ArrayList<String>();
+                cursor = storageEngine.rawQuery("SELECT DISTINCT key FROM reduces_dirty WHERE view_id=?", viewArgs);
+                while (cursor.moveToNext()) {
+                    keys.add(cursor.getString(0));
+                }
+                cursor.close();
+                cursor = null;
+                storageEngine.execSQL("DELETE FROM reduces_dirty WHERE view_id=?", viewArgs);
+
+                for (int start = 0; start < keys.size(); start += MAP_INSERT_BATCH_SIZE) {
+                    List<String> chunk = keys.subList(start, Math.min(start + MAP_INSERT_BATCH_SIZE, keys.size()));
+                    Object[] args = new Object[chunk.size() + 1];
+                    args[0] = getViewId();
+                    StringBuilder placeholders = new StringBuilder();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        args[i + 1] = chunk.get(i);
+                        placeholders.append(i > 0 ? ", ?" : "?");
+                    }
+                    storageEngine.execSQL("DELETE FROM reduces WHERE view_id=? AND key IN (" + placeholders + ")", args);
+                    cursor = storageEngine.rawQuery("SELECT key, value FROM maps WHERE view_id=? " +
+                            "AND key IN (" + placeholders + ") ORDER BY key", args);
+                    reduceKeys(cursor, reduceRows);
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+            if (!reduceRows.isEmpty()) {
+                storageEngine.executeBatch(INSERT_REDUCE_ROW_SQL, reduceRows);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(Log.TAG_VIEW, "Can't store the reduced results of view %s; queries will reduce the rows", e, name);
+        } catch (CouchbaseLiteException e) {
+            Log.w(Log.TAG_VIEW, "Reduce function of view %s failed; queries will reduce the rows", e, name);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        resetReduceIndex();
+        return false;
+    }
+
+    /**
+     * Reduces the (key-ordered) rows of each distinct key in the cursor, adding the results to
+     * reduceRows and writing them out in batches.
+     */
+    private void reduceKeys(Cursor cursor, List<Object[]> reduceRows) throws IOException, CouchbaseLiteException {
+        if (reduceBlock instanceof BuiltinReducer) {
+            builtinReduceKeys(cursor, (BuiltinReducer) reduceBlock, reduceRows);
+            return;
+        }
+        List<Object> keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        List<Object> valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        String lastKeyJson = null;
+        boolean more = cursor.moveToNext();
+        while (more) {
+            // Compare the stored JSON rather than the parsed keys, which may be null:
+            String keyJson = cursor.getString(0);
+            if (lastKeyJson != null && !keyJson.equals(lastKeyJson)) {
+                addReduceRow(lastKeyJson, callReducer(keysToReduce, valuesToReduce), reduceRows);
+                keysToReduce.clear();
+                valuesToReduce.clear();
+            }
+            lastKeyJson = keyJson;
+            keysToReduce.add(new JsonDocument(cursor.getBlob(0)).jsonObject());
+            valuesToReduce.add(new JsonDocument(cursor.getBlob(1)).jsonObject());
+            more = cursor.moveToNext();
+        }
+        if (lastKeyJson != null) {
+            addReduceRow(lastKeyJson, callReducer(keysToReduce, valuesToReduce), reduceRows);
+        }
+    }
+
+    /**
+     * Calls the reduce function, reporting anything it throws as a CouchbaseLiteException, so
+     * that a failing reducer isn't confused with an error in the view's own code.
+     */
+    private Object callReducer(List<Object> keys, List<Object> values) throws CouchbaseLiteException {
+        try {
+            return reduceBlock.reduce(keys, values, false);
+        } catch (RuntimeException e) {
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * reduceKeys() for a BuiltinReducer, accumulating the values straight from the stored JSON.
+     */
+    private void builtinReduceKeys(Cursor cursor, BuiltinReducer reducer, List<Object[]> reduceRows) throws IOException {
+        BuiltinReducer.Accumulator accumulator = null;
+        String lastKeyJson = null;
+        while (cursor.moveToNext()) {
+            String keyJson = cursor.getString(0);
+            if (!keyJson.equals(lastKeyJson)) {
+                if (accumulator != null) {
+                    addReduceRow(lastKeyJson, accumulator.result(), reduceRows);
+                }
+                lastKeyJson = keyJson;
+                accumulator = reducer.newAccumulator();
+            }
+            accumulator.addJson(cursor.getBlob(1));
+        }
+        if (accumulator != null) {
+            addReduceRow(lastKeyJson, accumulator.result(), reduceRows);
+        }
+    }
+
+    private void addReduceRow(String keyJson, Object reduced, List<Object[]> reduceRows) throws IOException {
+        String valueJson = (reduced != null) ? Manager.getObjectMapper().writeValueAsString(reduced) : null;
+        Object[] row = { getViewId(), keyJson, valueJson };
+        reduceRows.add(row);
+        if (reduceRows.size() >= MAP_INSERT_BATCH_SIZE) {
+            database.getDatabase().executeBatch(INSERT_REDUCE_ROW_SQL, reduceRows);
+            reduceRows.clear();
+        }
+    }
+
     /**
      * Queries the view. Does NOT first update the index.
      *
@@ -845,11 +1091,11 @@ public final class View {
             options = new QueryOptions();
         }
 
+        SQLiteStorageEngine connection = database.acquireReadConnection();
         Cursor cursor = null;
         List<QueryRow> rows = new ArrayList<QueryRow>();
 
         try {
-            cursor = resultSetWithOptions(options);
             int groupLevel = options.getGroupLevel();
             boolean group = options.isGroup() || (groupLevel > 0);
             boolean reduce = options.isReduce() || group;
@@ -860,16 +1106,22 @@ public final class View {
             }
 
             if (reduce || group) {
-                // Reduced or grouped query:
-                rows = reducedQuery(cursor, group, groupLevel);
+                // Reduced or grouped query, from the stored results where possible (the rows are
+                // only queried if not):
+                rows = reducedQueryFromIndex(options, connection, group, groupLevel);
+                if (rows == null) {
+                    cursor = resultSetWithOptions(options, connection);
+                    rows = reducedQuery(cursor, group, groupLevel);
+                }
             } else {
                 // regular query
+                cursor = resultSetWithOptions(options, connection);
                 cursor.moveToNext();
                 while (!cursor.isAfterLast()) {
                     JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
                     JsonDocument valueDoc = new JsonDocument(cursor.getBlob(1));
                     String docId = cursor.getString(2);
-                    int sequence =  Integer.valueOf(cursor.getString(3));
+                    long sequence = cursor.getLong(3);
                     Map<String, Object> docContents = null;
                     if (options.isIncludeDocs()) {
                         Object valueObject = valueDoc.jsonObject();
@@ -909,6 +1161,7 @@ public final class View {
             if (cursor != null) {
                 cursor.close();
             }
+            database.releaseReadConnection(connection);
         }
 
         return rows;
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs view map functions on a pool of threads while Database.updateIndexes() goes on reading
+ * documents and writing the emitted rows. The indexing thread hands over documents (already
+ * read, with their special properties) in chunks; each chunk is mapped on one worker, through
+ * the map functions of every view the document is for, and its emitted rows come back, ready
+ * to insert into 'maps', in the order the chunks were added. So the rows are written in the
+ * same (sequence) order as when mapping on the indexing thread.
+ *
+ * All database access stays on the indexing thread; the workers only decode the document
+ * bodies, run the map functions and serialize the emitted keys and values.
+ */
+final class ViewMapPipeline {
+
+    // Documents mapped per task:
+    static final int CHUNK_SIZE = 64;
+
+    private final ExecutorService executor;
+    private final int maxChunksInFlight;
+
+    private final LinkedList<Future<List<Object[]>>> chunksInFlight = new LinkedList<Future<List<Object[]>>>();
+    private List<Long> sequences = new ArrayList<Long>(CHUNK_SIZE);
+    private List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>(CHUNK_SIZE);
+    private List<List<View>> documentViews = new ArrayList<List<View>>(CHUNK_SIZE);
+
+    ViewMapPipeline(ExecutorService executor, int threads) {
+        this.executor = executor;
+        // Enough to keep every worker busy while the indexing thread writes a chunk's rows:
+        this.maxChunksInFlight = 2 * threads;
+    }
+
+    /**
+     * Collects the rows emitted by map functions, for the view and sequence last set.
+     */
+    static final class RowCollector extends AbstractTouchMapEmitBlock {
+
+        private final List<Object[]> rows;
+        private int viewId;
+
+        RowCollector(List<Object[]> rows) {
+            this.rows = rows;
+        }
+
+        void setViewId(int viewId) {
+            this.viewId = viewId;
+        }
+
+        @Override
+        public void emit(Object key, Object value) {
+            try {
+                rows.add(View.mapRow(viewId, sequence, key, value));
+            } catch (Exception e) {
+                Log.e(Log.TAG_VIEW, "Error emitting", e);
+            }
+        }
+    }
+
+    /**
+     * Calls the map function of each of the views on a document.
+     */
+    static void mapDocument(long sequence, Map<String, Object> properties, List<View> views, RowCollector collector) {
+        collector.setSequence(sequence);
+        for (View view : views) {
+            collector.setViewId(view.getViewId());
+            view.getMap().map(properties, collector);
+        }
+    }
+
+    /**
+     * Queues a document to be mapped by the given views, and adds the rows emitted for earlier
+     * documents that are ready to outRows (in order). Blocks only if the workers are too far
+     * behind.
+     */
+    void add(long sequence, Map<String, Object> properties, List<View> views, List<Object[]> outRows) throws CouchbaseLiteException {
+        sequences.add(sequence);
+        documents.add(properties);
+        documentViews.add(views);
+        if (documents.size() >= CHUNK_SIZE) {
+            submitChunk();
+        }
+        while (!chunksInFlight.isEmpty()
+                && (chunksInFlight.size() > maxChunksInFlight || chunksInFlight.getFirst().isDone())) {
+            outRows.addAll(waitFor(chunksInFlight.removeFirst()));
+        }
+    }
+
+    /**
+     * Maps the documents still queued and adds all remaining emitted rows to outRows.
+     */
+    void finish(List<Object[]> outRows) throws CouchbaseLiteException {
+        if (!documents.isEmpty()) {
+            submitChunk();
+        }
+        while (!chunksInFlight.isEmpty()) {
+            outRows.addAll(waitFor(chunksInFlight.removeFirst()));
+        }
+    }
+
+    /**
+     * Abandons any documents not mapped yet (after an error).
+     */
+    void cancel() {
+        for (Future<List<Object[]>> chunk : chunksInFlight) {
+            chunk.cancel(false);
+        }
+        chunksInFlight.clear();
+        sequences.clear();
+        documents.clear();
+        documentViews.clear();
+    }
+
+    private void submitChunk() {
+        final List<Long> chunkSequences = sequences;
+        final List<Map<String, Object>> chunkDocuments = documents;
+        final List<List<View>> chunkViews = documentViews;
+        sequences = new ArrayList<Long>(CHUNK_SIZE);
+        documents = new ArrayList<Map<String, Object>>(CHUNK_SIZE);
+        documentViews = new ArrayList<List<View>>(CHUNK_SIZE);
+        chunksInFlight.add(executor.submit(new Callable<List<Object[]>>() {
+            @Override
+            public List<Object[]> call() {
+                List<Object[]> rows = new ArrayList<Object[]>();
+                RowCollector collector = new RowCollector(rows);
+                for (int i = 0; i < chunkDocuments.size(); i++) {
+                    mapDocument(chunkSequences.get(i), chunkDocuments.get(i), chunkViews.get(i), collector);
+                }
+                return rows;
+            }
+        }));
+    }
+
+    private static List<Object[]> waitFor(Future<List<Object[]>> chunk) throws CouchbaseLiteException {
+        try {
+            return chunk.get();
+        } catch (ExecutionException e) {
+            // Let exceptions thrown by the map function out as they would be when mapping inline:
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CouchbaseLiteException(cause, new Status(Status.INTERNAL_SERVER_ERROR));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CouchbaseLiteException(e, new Status(Status.INTERNAL_SERVER_ERROR));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The revision tree of one document, as stored in the revs table: one node per revision, ordered
+ * by descending sequence (the order the history queries used to scan the table in).
+ *
+ * Database caches these per numeric doc ID, replacing them as revisions are inserted and made
+ * non-current. Trees are immutable (withRevision() and withNotCurrent() return new ones), so a
+ * tree can be read from any thread without locking while the cache moves on.
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class RevisionTree {
+
+    // Rough per-node overhead in bytes (node object, its revID String and the list slot):
+    private static final int NODE_OVERHEAD = 120;
+
+    public static final class Node {
+        private final long sequence;
+        private final long parentSequence;
+        private final String revId;
+        private final boolean deleted;
+        private final boolean missing;
+        private final boolean current;
+
+        public Node(long sequence, long parentSequence, String revId, boolean deleted, boolean missing, boolean current) {
+            this.sequence = sequence;
+            this.parentSequence = parentSequence;
+            this.revId = revId;
+            this.deleted = deleted;
+            this.missing = missing;
+            this.current = current;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /** The parent revision's sequence, or 0 for a root revision. */
+        public long getParentSequence() {
+            return parentSequence;
+        }
+
+        public String getRevId() {
+            return revId;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /** Is the revision body unavailable (a stub, or compacted away)? */
+        public boolean isMissing() {
+            return missing;
+        }
+
+        public boolean isCurrent() {
+            return current;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final int estimatedSize;
+
+    /**
+     * @param nodes the revisions, in descending sequence order
+     */
+    public RevisionTree(List<Node> nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<Node>(nodes));
+        int size = 0;
+        for (Node node : nodes) {
+            size += sizeOf(node);
+        }
+        this.estimatedSize = size;
+    }
+
+    /**
+     * The revisions, in descending sequence order.
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Approximate memory used by the tree, in bytes, for sizing the cache.
+     */
+    public int getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * Returns the tree with a newly inserted revision added. Revisions get increasing sequences,
+     * so it goes first; if the tree already has it (it was loaded after the insert), returns this.
+     */
+    public RevisionTree withRevision(Node node) {
+        if (!nodes.isEmpty() && nodes.get(0).getSequence() >= node.getSequence()) {
+            return this;
+        }
+        List<Node> updated = new ArrayList<Node>(nodes.size() + 1);
+        updated.add(node);
+        updated.addAll(nodes);
+        return new RevisionTree(updated);
+    }
+
+    /**
+     * Returns the tree with a revision marked as no longer current (a leaf that has gained a
+     * child), or this if it isn't a current revision of the tree.
+     */
+    public RevisionTree withNotCurrent(long sequence) {
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (node.getSequence() == sequence) {
+                if (!node.isCurrent()) {
+                    return this;
+                }
+                List<Node> updated = new ArrayList<Node>(nodes);
+                updated.set(i, new Node(node.getSequence(), node.getParentSequence(), node.getRevId(),
+                        node.isDeleted(), node.isMissing(), false));
+                return new RevisionTree(updated);
+            }
+        }
+        return this;
+    }
+
+    private static int sizeOf(Node node) {
+        return NODE_OVERHEAD + 2 * node.getRevId().length();
+    }
+}
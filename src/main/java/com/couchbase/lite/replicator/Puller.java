@@ -693,11 +693,11 @@ public final class Puller extends Replication implements ChangeTrackerClient {
         long time = System.currentTimeMillis();
         Collections.sort(downloads, getRevisionListComparator());
 
-        db.beginTransaction();
-        boolean success = false;
         try {
+            List<RevisionInternal> revs = new ArrayList<RevisionInternal>(downloads.size());
+            List<List<String>> histories = new ArrayList<List<String>>(downloads.size());
+            List<Long> fakeSequences = new ArrayList<Long>(downloads.size());
             for (RevisionInternal rev : downloads) {
-                long fakeSequence = rev.getSequence();
                 List<String> history = db.parseCouchDBRevisionHistory(rev.getProperties());
                 if (history.isEmpty() && rev.getGeneration() > 1) {
                     Log.w(Log.TAG_SYNC, "%s: Missing revision history in response for: %s", this, rev);
@@ -705,35 +705,52 @@ public final class Puller extends Replication implements ChangeTrackerClient {
                     revisionFailed();
                     continue;
                 }
-
                 Log.v(Log.TAG_SYNC, "%s: inserting %s %s", this, rev.getDocId(), history);
+                revs.add(rev);
+                histories.add(history);
+                fakeSequences.add(rev.getSequence());
+            }
 
-                // Insert the revision
-                try {
-                    db.forceInsert(rev, history, remote);
-                } catch (CouchbaseLiteException e) {
-                    if (e.getCBLStatus().getCode() == Status.FORBIDDEN) {
-                        Log.i(Log.TAG_SYNC, "%s: Remote rev failed validation: %s", this, rev);
-                    } else {
-                        Log.w(Log.TAG_SYNC, "%s: failed to write %s: status=%s", this, rev, e.getCBLStatus().getCode());
-                        revisionFailed();
-                        setError(new HttpResponseException(e.getCBLStatus().getCode(), null));
-                        continue;
+            // Insert the revisions
+            List<Status> results;
+            try {
+                results = db.forceInsertRevisions(revs, histories, remote);
+            } catch (CouchbaseLiteException e) {
+                // The batch was rolled back. Insert the revisions one at a time, each in its own
+                // transaction, so that whichever one caused it fails on its own:
+                Log.w(Log.TAG_SYNC, "%s: failed to write %d revisions: status=%s; inserting them one at a time", this, revs.size(), e.getCBLStatus().getCode());
+                results = new ArrayList<Status>(revs.size());
+                for (int i = 0; i < revs.size(); i++) {
+                    try {
+                        db.forceInsert(revs.get(i), histories.get(i), remote);
+                        results.add(new Status(Status.CREATED));
+                    } catch (CouchbaseLiteException e1) {
+                        results.add(e1.getCBLStatus());
                     }
                 }
+            }
 
-                // Mark this revision's fake sequence as processed:
-                pendingSequences.removeSequence(fakeSequence);
+            for (int i = 0; i < revs.size(); i++) {
+                RevisionInternal rev = revs.get(i);
+                Status status = results.get(i);
+                if (status.getCode() == Status.FORBIDDEN) {
+                    Log.i(Log.TAG_SYNC, "%s: Remote rev failed validation: %s", this, rev);
+                } else if (!status.isSuccessful()) {
+                    Log.w(Log.TAG_SYNC, "%s: failed to write %s: status=%s", this, rev, status.getCode());
+                    revisionFailed();
+                    setError(new HttpResponseException(status.getCode(), null));
+                    continue;
+                }
 
+                // Mark this revision's fake sequence as processed:
+                pendingSequences.removeSequence(fakeSequences.get(i));
             }
 
             Log.v(Log.TAG_SYNC, "%s: finished inserting %d revisions", this, downloads.size());
-            success = true;
 
         } catch (SQLException e) {
             Log.e(Log.TAG_SYNC, this + ": Exception inserting revisions", e);
         } finally {
-            db.endTransaction(success);
             Log.d(Log.TAG_SYNC, "%s | %s: insertDownloads() calling asyncTaskFinished() with value: %d", this, Thread.currentThread(), downloads.size());
 
             asyncTaskFinished(downloads.size());
@@ -2,6 +2,7 @@ package com.couchbase.lite.replicator;
 
 import com.couchbase.lite.BlobKey;
 import com.couchbase.lite.BlobStore;
+import com.couchbase.lite.ChangesIterator;
 import com.couchbase.lite.ChangesOptions;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
@@ -210,9 +211,22 @@ public final class Pusher extends Replication implements Database.ChangeListener
         }
         ChangesOptions options = new ChangesOptions();
         options.setIncludeConflicts(true);
-        RevisionList changes = db.changesSince(lastSequenceLong, options, filter);
-        if(changes.size() > 0) {
-            batcher.queueObjects(changes);
+        ChangesIterator changes = db.changesIteratorSince(lastSequenceLong, options, filter);
+        boolean queuedChanges = false;
+        try {
+            while(changes.hasNext()) {
+                // Read the changes a batch at a time rather than all at once:
+                batcher.queueObjects(changes.next(INBOX_CAPACITY));
+                queuedChanges = true;
+            }
+        } catch (ChangesIterator.ReadException e) {
+            // Don't carry on (and checkpoint) past changes that were never read:
+            Log.e(Log.TAG_SYNC, "%s: Error reading local changes", e, this);
+            setError(e.getCause());
+            stop();
+            return;
+        }
+        if(queuedChanges) {
             batcher.flush();
         }
 
@@ -191,6 +191,7 @@ public class Router implements Database.ChangeListener {
         }
         options.setGroup(getBooleanQuery("group"));
         options.setContentOptions(getContentOptions());
+        options.setPageToken(getQuery("page_token"));
 
 
         List<Object> keys;
@@ -1223,26 +1224,46 @@ public class Router implements Database.ChangeListener {
             }
         }
 
-        RevisionList changes = db.changesSince(since, options, changesFilter);
-
-        if(changes == null) {
-            return new Status(Status.INTERNAL_SERVER_ERROR);
-        }
-
         String feed = getQuery("feed");
         longpoll = "longpoll".equals(feed);
         boolean continuous = !longpoll && "continuous".equals(feed);
 
-        if(continuous || (longpoll && changes.size() == 0)) {
+        if(continuous) {
+            // Stream the existing changes out as they're read, rather than collecting them first:
             connection.setChunked(true);
             connection.setResponseCode(Status.OK);
             sendResponse();
-            if(continuous) {
-                for (RevisionInternal rev : changes) {
-                    sendContinuousChange(rev);
+            ChangesIterator existingChanges = db.changesIteratorSince(since, options, changesFilter);
+            try {
+                while(existingChanges.hasNext()) {
+                    sendContinuousChange(existingChanges.next());
                 }
+            } catch (ChangesIterator.ReadException e) {
+                // The status has already gone out, so end the feed rather than skip changes:
+                Log.e(Log.TAG_ROUTER, "Error reading changes for continuous feed", e);
+                try {
+                    connection.getResponseOutputStream().close();
+                } catch (IOException ioe) {
+                    Log.e(Log.TAG_ROUTER, "Error closing continuous changes feed");
+                }
+                return new Status(0);
             }
             db.addChangeListener(this);
+            // Don't close connection; more data to come
+            return new Status(0);
+        }
+
+        RevisionList changes = db.changesSince(since, options, changesFilter);
+
+        if(changes == null) {
+            return new Status(Status.INTERNAL_SERVER_ERROR);
+        }
+
+        if(longpoll && changes.size() == 0) {
+            connection.setChunked(true);
+            connection.setResponseCode(Status.OK);
+            sendResponse();
+            db.addChangeListener(this);
          // Don't close connection; more data to come
             return new Status(0);
         } else {
@@ -1604,15 +1625,22 @@ public class Router implements Database.ChangeListener {
         String reduceSource = (String)viewProps.get("reduce");
         Reducer reduceBlock = null;
         if(reduceSource != null) {
-            reduceBlock = View.getCompiler().compileReduce(reduceSource, language);
+            // "_count", "_sum" and "_stats" are built in (whatever the language):
+            reduceBlock = BuiltinReducer.named(reduceSource);
+            if(reduceBlock == null) {
+                reduceBlock = View.getCompiler().compileReduce(reduceSource, language);
+            }
             if(reduceBlock == null) {
                 Log.w(Log.TAG_ROUTER, "View %s has unknown reduce function: %s", viewName, reduceBlock);
                 return null;
             }
         }
 
+        // Compiled functions all share a class or two, so the version is what tells the view
+        // that the design document's functions have changed (and its index must be rebuilt):
+        String version = Integer.toHexString((language + "\n" + mapSource + "\n" + reduceSource).hashCode());
         View view = db.getView(viewName);
-        view.setMapReduce(mapBlock, reduceBlock, "1");
+        view.setMapReduce(mapBlock, reduceBlock, version);
         String collation = (String)viewProps.get("collation");
         if("raw".equals(collation)) {
             view.setCollation(TDViewCollation.TDViewCollationRaw);
@@ -1656,7 +1684,7 @@ public class Router implements Database.ChangeListener {
             options.setKeys(keys);
         }
 
-        view.updateIndex();
+        db.updateIndexes(view.getViewsInGroup());
 
         long lastSequenceIndexed = view.getLastSequenceIndexed();
 
@@ -22,6 +22,8 @@ public interface Cursor {
     String getString(int columnIndex);
     int getInt(int columnIndex);
     long getLong(int columnIndex);
+    double getDouble(int columnIndex);
+    boolean isNull(int columnIndex);
     byte[] getBlob(int columnIndex);
     void close();
 }
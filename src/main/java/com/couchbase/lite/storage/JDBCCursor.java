@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Cursor over a JDBC ResultSet, with the Android-style semantics the rest of the code expects:
+ * the cursor starts before the first row, and column indexes are 0-based.
+ *
+ * The result set is stepped (and closed) with the engine's lock held, so a cursor opened before
+ * another thread began a transaction waits for that transaction to end instead of reading its
+ * uncommitted rows. The columns of the current row can be read without the lock: SQLite keeps
+ * them until the statement is stepped again.
+ */
+class JDBCCursor implements Cursor {
+
+    private final JDBCSQLiteStorageEngine engine;
+    private final ResultSet resultSet;
+    private final PreparedStatement ownedStatement;
+    private boolean afterLast = false;
+
+    /**
+     * @param ownedStatement if non-null, closed along with the cursor (used by rawQuery(), whose
+     *                       statement is not cached)
+     */
+    JDBCCursor(JDBCSQLiteStorageEngine engine, ResultSet resultSet, PreparedStatement ownedStatement) {
+        this.engine = engine;
+        this.resultSet = resultSet;
+        this.ownedStatement = ownedStatement;
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (afterLast) {
+            return false;
+        }
+        engine.lock();
+        try {
+            if (!resultSet.next()) {
+                afterLast = true;
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            engine.unlock();
+        }
+        return !afterLast;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return afterLast;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        try {
+            return resultSet.getString(columnIndex + 1);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        try {
+            return resultSet.getInt(columnIndex + 1);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        try {
+            return resultSet.getLong(columnIndex + 1);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        try {
+            return resultSet.getDouble(columnIndex + 1);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        try {
+            return resultSet.getObject(columnIndex + 1) == null;
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        try {
+            return resultSet.getBytes(columnIndex + 1);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        engine.lock();
+        try {
+            resultSet.close();
+            if (ownedStatement != null) {
+                ownedStatement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            engine.unlock();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * SQLiteStatement backed by a JDBC PreparedStatement.
+ */
+class JDBCSQLiteStatement implements SQLiteStatement {
+
+    private final JDBCSQLiteStorageEngine engine;
+    private final PreparedStatement statement;
+    private ResultSet openResultSet;
+
+    JDBCSQLiteStatement(JDBCSQLiteStorageEngine engine, PreparedStatement statement) {
+        this.engine = engine;
+        this.statement = statement;
+    }
+
+    @Override
+    public void bindNull(int index) {
+        try {
+            statement.setNull(index, java.sql.Types.NULL);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public void bindLong(int index, long value) {
+        try {
+            statement.setLong(index, value);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public void bindDouble(int index, double value) {
+        try {
+            statement.setDouble(index, value);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public void bindString(int index, String value) {
+        try {
+            statement.setString(index, value);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public void bindBlob(int index, byte[] value) {
+        try {
+            statement.setBytes(index, value);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public void clearBindings() {
+        try {
+            statement.clearParameters();
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public Cursor query() throws SQLException {
+        engine.lock();
+        try {
+            reset();
+            openResultSet = statement.executeQuery();
+            return new JDBCCursor(engine, openResultSet, null);
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            engine.unlock();
+        }
+    }
+
+    @Override
+    public void execute() throws SQLException {
+        engine.lock();
+        try {
+            reset();
+            statement.execute();
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            engine.unlock();
+        }
+    }
+
+    @Override
+    public long executeInsert() throws SQLException {
+        engine.lock();
+        try {
+            reset();
+            int changes = statement.executeUpdate();
+            return changes > 0 ? engine.lastInsertRowId() : -1;
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            engine.unlock();
+        }
+    }
+
+    @Override
+    public int executeUpdateDelete() throws SQLException {
+        engine.lock();
+        try {
+            reset();
+            return statement.executeUpdate();
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            engine.unlock();
+        }
+    }
+
+    @Override
+    public long simpleQueryForLong() throws SQLException {
+        engine.lock();
+        try {
+            reset();
+            ResultSet resultSet = statement.executeQuery();
+            try {
+                if (!resultSet.next()) {
+                    throw new SQLException("Query returned no rows");
+                }
+                return resultSet.getLong(1);
+            } finally {
+                resultSet.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            engine.unlock();
+        }
+    }
+
+    @Override
+    public String simpleQueryForString() throws SQLException {
+        engine.lock();
+        try {
+            reset();
+            ResultSet resultSet = statement.executeQuery();
+            try {
+                if (!resultSet.next()) {
+                    throw new SQLException("Query returned no rows");
+                }
+                return resultSet.getString(1);
+            } finally {
+                resultSet.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            engine.unlock();
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (openResultSet != null) {
+            try {
+                openResultSet.close();
+            } catch (java.sql.SQLException e) {
+                throw new SQLException(e);
+            } finally {
+                openResultSet = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            reset();
+        } finally {
+            try {
+                statement.close();
+            } catch (java.sql.SQLException e) {
+                throw new SQLException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.util.Log;
+
+import org.sqlite.Collation;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQLiteStorageEngine for plain JVMs (desktop and server), built on the xerial sqlite-jdbc driver.
+ *
+ * The JSON, JSON_ASCII, JSON_RAW and REVID collations used by the schema and by view queries are
+ * implemented in Java (see JsonCollator and RevisionInternal.CBLCollateRevIDs) and registered on
+ * every connection.
+ *
+ * Transactions follow Android's SQLiteDatabase semantics: they nest, and the outermost
+ * endTransaction() commits only if every level called setTransactionSuccessful(). While a
+ * transaction is open, other threads using this engine block until it ends. That includes
+ * stepping a Cursor they opened earlier, so they never see the transaction's uncommitted rows.
+ *
+ * SQLiteStorageEngineFactory uses this engine when no other one is configured through the
+ * services resource; sqlite-jdbc must then be on the classpath.
+ */
+public class JDBCSQLiteStorageEngine implements SQLiteStorageEngine {
+
+    private static final String[] CONFLICT_VALUES = { "", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE " };
+
+    private Connection connection;
+    private PreparedStatement lastInsertRowIdStatement;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Only touched by the thread holding the lock for the transaction:
+    private int transactionLevel = 0;
+    private boolean transactionSuccessful = false;
+    private boolean transactionFailed = false;
+
+    @Override
+    public boolean open(String path) {
+        return open(path, false);
+    }
+
+    @Override
+    public boolean openReadOnly(String path) {
+        return open(path, true);
+    }
+
+    private boolean open(String path, boolean readOnly) {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(readOnly);
+            connection = config.createConnection("jdbc:sqlite:" + path);
+            registerCollations(connection);
+            lastInsertRowIdStatement = connection.prepareStatement("SELECT last_insert_rowid()");
+            return true;
+        } catch (Exception e) {
+            Log.e(Database.TAG, "Error opening JDBC storage engine for " + path, e);
+            connection = null;
+            return false;
+        }
+    }
+
+    private static void registerCollations(Connection connection) throws java.sql.SQLException {
+        Collation.create(connection, "JSON", new Collation() {
+            @Override
+            protected int xCompare(String str1, String str2) {
+                return JsonCollator.compare(JsonCollator.MODE_UNICODE, str1, str2);
+            }
+        });
+        Collation.create(connection, "JSON_ASCII", new Collation() {
+            @Override
+            protected int xCompare(String str1, String str2) {
+                return JsonCollator.compare(JsonCollator.MODE_ASCII, str1, str2);
+            }
+        });
+        Collation.create(connection, "JSON_RAW", new Collation() {
+            @Override
+            protected int xCompare(String str1, String str2) {
+                return JsonCollator.compare(JsonCollator.MODE_RAW, str1, str2);
+            }
+        });
+        Collation.create(connection, "REVID", new Collation() {
+            @Override
+            protected int xCompare(String str1, String str2) {
+                return RevisionInternal.CBLCollateRevIDs(str1, str2);
+            }
+        });
+    }
+
+    @Override
+    public int getVersion() {
+        Cursor cursor = rawQuery("PRAGMA user_version", null);
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void setVersion(int version) {
+        execSQL("PRAGMA user_version = " + version);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connection != null;
+    }
+
+    @Override
+    public void beginTransaction() {
+        lock.lock();
+        try {
+            if (transactionLevel == 0) {
+                executeStatement("BEGIN IMMEDIATE");
+                transactionFailed = false;
+            }
+            ++transactionLevel;
+            transactionSuccessful = false;
+        } catch (SQLException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        if (transactionLevel == 0 || !lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("No transaction in progress on this thread");
+        }
+        transactionSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        if (transactionLevel == 0 || !lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("No transaction in progress on this thread");
+        }
+        try {
+            if (!transactionSuccessful) {
+                transactionFailed = true;
+            }
+            transactionSuccessful = false;
+            // (The enclosing level, if any, has to call setTransactionSuccessful() itself.)
+            if (--transactionLevel == 0) {
+                if (transactionFailed) {
+                    executeStatement("ROLLBACK");
+                } else {
+                    commit();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits the outermost transaction. If the COMMIT fails (e.g. SQLITE_BUSY) SQLite may
+     * leave the transaction open, so it's rolled back before the error is rethrown; otherwise
+     * the next beginTransaction() would find a transaction already in progress.
+     */
+    private void commit() {
+        try {
+            executeStatement("COMMIT");
+        } catch (SQLException e) {
+            try {
+                executeStatement("ROLLBACK");
+            } catch (SQLException rollbackError) {
+                // Most likely SQLite already rolled it back itself.
+                Log.w(Database.TAG, "Error rolling back after a failed commit", rollbackError);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void execSQL(String sql) throws SQLException {
+        if (sql.trim().length() == 0) {
+            return;
+        }
+        lock();
+        try {
+            executeStatement(sql);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) throws SQLException {
+        lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                bindAll(statement, bindArgs);
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public void executeBatch(String sql, List<Object[]> bindArgsList) throws SQLException {
+        if (bindArgsList.isEmpty()) {
+            return;
+        }
+        beginTransaction();
+        boolean success = false;
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                for (Object[] bindArgs : bindArgsList) {
+                    bindAll(statement, bindArgs);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+            success = true;
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            if (success) {
+                setTransactionSuccessful();
+            }
+            endTransaction();
+        }
+    }
+
+    @Override
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        return rawQuery(sql, (Object[]) selectionArgs);
+    }
+
+    @Override
+    public Cursor rawQuery(String sql, Object[] bindArgs) {
+        lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                bindAll(statement, bindArgs);
+                return new JDBCCursor(this, statement.executeQuery(), statement);
+            } catch (java.sql.SQLException e) {
+                statement.close();
+                throw e;
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public SQLiteStatement compileStatement(String sql) throws SQLException {
+        lock();
+        try {
+            return new JDBCSQLiteStatement(this, connection.prepareStatement(sql));
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        try {
+            return insertWithOnConflict(table, nullColumnHack, values, CONFLICT_NONE);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error inserting into " + table, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public long insertWithOnConflict(String table, String nullColumnHack, ContentValues initialValues, int conflictAlgorithm) {
+        StringBuilder sql = new StringBuilder("INSERT");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+        sql.append(" INTO ");
+        sql.append(table);
+        sql.append('(');
+
+        int size = (initialValues != null) ? initialValues.size() : 0;
+        Object[] bindArgs = new Object[size];
+        if (size > 0) {
+            int i = 0;
+            for (Map.Entry<String, Object> entry : initialValues.valueSet()) {
+                sql.append((i > 0) ? "," : "");
+                sql.append(entry.getKey());
+                bindArgs[i++] = entry.getValue();
+            }
+            sql.append(") VALUES (");
+            for (i = 0; i < size; i++) {
+                sql.append((i > 0) ? ",?" : "?");
+            }
+        } else {
+            sql.append(nullColumnHack).append(") VALUES (NULL");
+        }
+        sql.append(')');
+
+        lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql.toString());
+            try {
+                bindAll(statement, bindArgs);
+                int changes = statement.executeUpdate();
+                return changes > 0 ? lastInsertRowId() : -1;
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        StringBuilder sql = new StringBuilder("UPDATE ");
+        sql.append(table);
+        sql.append(" SET ");
+
+        int setValuesSize = values.size();
+        int bindArgsSize = (whereArgs == null) ? setValuesSize : (setValuesSize + whereArgs.length);
+        Object[] bindArgs = new Object[bindArgsSize];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            sql.append((i > 0) ? "," : "");
+            sql.append(entry.getKey());
+            bindArgs[i++] = entry.getValue();
+            sql.append("=?");
+        }
+        if (whereArgs != null) {
+            for (i = setValuesSize; i < bindArgsSize; i++) {
+                bindArgs[i] = whereArgs[i - setValuesSize];
+            }
+        }
+        if (whereClause != null && whereClause.length() > 0) {
+            sql.append(" WHERE ");
+            sql.append(whereClause);
+        }
+        return executeUpdate(sql.toString(), bindArgs);
+    }
+
+    @Override
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        String sql = "DELETE FROM " + table;
+        if (whereClause != null && whereClause.length() > 0) {
+            sql += " WHERE " + whereClause;
+        }
+        return executeUpdate(sql, whereArgs);
+    }
+
+    @Override
+    public void close() {
+        lock();
+        try {
+            if (connection != null) {
+                lastInsertRowIdStatement.close();
+                connection.close();
+            }
+        } catch (java.sql.SQLException e) {
+            Log.e(Database.TAG, "Error closing JDBC storage engine", e);
+        } finally {
+            connection = null;
+            unlock();
+        }
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    long lastInsertRowId() throws java.sql.SQLException {
+        ResultSet resultSet = lastInsertRowIdStatement.executeQuery();
+        try {
+            return resultSet.next() ? resultSet.getLong(1) : -1;
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    private int executeUpdate(String sql, Object[] bindArgs) {
+        lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                bindAll(statement, bindArgs);
+                return statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        } finally {
+            unlock();
+        }
+    }
+
+    private void executeStatement(String sql) {
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(sql);
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    private static void bindAll(PreparedStatement statement, Object[] bindArgs) throws java.sql.SQLException {
+        if (bindArgs == null) {
+            return;
+        }
+        for (int i = 0; i < bindArgs.length; i++) {
+            bind(statement, i + 1, bindArgs[i]);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, int index, Object value) throws java.sql.SQLException {
+        if (value == null) {
+            statement.setNull(index, java.sql.Types.NULL);
+        } else if (value instanceof byte[]) {
+            statement.setBytes(index, (byte[]) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.setDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.setLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.setLong(index, ((Boolean) value) ? 1 : 0);
+        } else {
+            statement.setString(index, value.toString());
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * Compares JSON-encoded values the way CouchDB view collation does, without parsing them into
+ * objects. This is the Java version of the JSON, JSON_ASCII and JSON_RAW SQLite collations that
+ * the native storage engines register.
+ *
+ * Default ordering: null &lt; false &lt; true &lt; numbers &lt; strings &lt; arrays &lt; objects,
+ * with strings compared using Unicode collation (MODE_UNICODE) or by code point (MODE_ASCII).
+ * MODE_RAW orders types as numbers &lt; false &lt; null &lt; true &lt; objects &lt; arrays &lt; strings
+ * and compares strings by code point.
+ *
+ * See <http://wiki.apache.org/couchdb/View_collation#Collation_Specification>
+ */
+public final class JsonCollator {
+
+    public static final int MODE_UNICODE = 0;
+    public static final int MODE_ASCII = 1;
+    public static final int MODE_RAW = 2;
+
+    // Token types, in default collation order for the value types:
+    private static final int END_ARRAY = 0;
+    private static final int END_OBJECT = 1;
+    private static final int COMMA = 2;
+    private static final int COLON = 3;
+    private static final int NULL = 4;
+    private static final int FALSE = 5;
+    private static final int TRUE = 6;
+    private static final int NUMBER = 7;
+    private static final int STRING = 8;
+    private static final int ARRAY = 9;
+    private static final int OBJECT = 10;
+    private static final int ILLEGAL = 11;
+
+    // Collation order of the token types in MODE_RAW, indexed by type:
+    private static final int[] RAW_ORDER = { -4, -3, -2, -1, 2, 1, 3, 0, 6, 5, 4, 7 };
+
+    // java.text.Collator isn't thread-safe, and collations run on every connection's thread.
+    private static final ThreadLocal<Collator> unicodeCollator = new ThreadLocal<Collator>() {
+        @Override
+        protected Collator initialValue() {
+            Collator collator = Collator.getInstance(Locale.US);
+            collator.setStrength(Collator.TERTIARY);
+            return collator;
+        }
+    };
+
+    private JsonCollator() {
+    }
+
+    public static int compare(int mode, String json1, String json2) {
+        Reader reader1 = new Reader(json1);
+        Reader reader2 = new Reader(json2);
+        int depth = 0;
+        do {
+            int type1 = reader1.peekType();
+            int type2 = reader2.peekType();
+            if (type1 != type2) {
+                if (mode == MODE_RAW) {
+                    return compareInts(RAW_ORDER[type1], RAW_ORDER[type2]);
+                }
+                return compareInts(type1, type2);
+            }
+            switch (type1) {
+                case NULL:
+                case TRUE:
+                    reader1.skip(4);
+                    reader2.skip(4);
+                    break;
+                case FALSE:
+                    reader1.skip(5);
+                    reader2.skip(5);
+                    break;
+                case NUMBER: {
+                    int diff = Double.compare(reader1.readNumber(), reader2.readNumber());
+                    if (diff != 0) {
+                        return diff < 0 ? -1 : 1;
+                    }
+                    break;
+                }
+                case STRING: {
+                    String str1 = reader1.readString();
+                    String str2 = reader2.readString();
+                    int diff;
+                    if (mode == MODE_UNICODE) {
+                        diff = unicodeCollator.get().compare(str1, str2);
+                    } else {
+                        diff = str1.compareTo(str2);
+                    }
+                    if (diff != 0) {
+                        return diff < 0 ? -1 : 1;
+                    }
+                    break;
+                }
+                case ARRAY:
+                case OBJECT:
+                    reader1.skip(1);
+                    reader2.skip(1);
+                    ++depth;
+                    break;
+                case END_ARRAY:
+                case END_OBJECT:
+                    reader1.skip(1);
+                    reader2.skip(1);
+                    --depth;
+                    break;
+                case COMMA:
+                case COLON:
+                    reader1.skip(1);
+                    reader2.skip(1);
+                    break;
+                case ILLEGAL:
+                default:
+                    return 0;
+            }
+        } while (depth > 0);
+        return 0;
+    }
+
+    private static int compareInts(int n1, int n2) {
+        return n1 < n2 ? -1 : (n1 > n2 ? 1 : 0);
+    }
+
+    /**
+     * A cursor over one JSON string, reading it a token at a time.
+     */
+    private static final class Reader {
+        private final String json;
+        private int pos = 0;
+
+        Reader(String json) {
+            this.json = json;
+        }
+
+        int peekType() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                ++pos;
+            }
+            if (pos >= json.length()) {
+                return ILLEGAL;
+            }
+            char c = json.charAt(pos);
+            switch (c) {
+                case 'n': return NULL;
+                case 'f': return FALSE;
+                case 't': return TRUE;
+                case '"': return STRING;
+                case '[': return ARRAY;
+                case '{': return OBJECT;
+                case ']': return END_ARRAY;
+                case '}': return END_OBJECT;
+                case ',': return COMMA;
+                case ':': return COLON;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        return NUMBER;
+                    }
+                    return ILLEGAL;
+            }
+        }
+
+        void skip(int count) {
+            pos = Math.min(pos + count, json.length());
+        }
+
+        double readNumber() {
+            int start = pos;
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                    ++pos;
+                } else {
+                    break;
+                }
+            }
+            try {
+                return Double.parseDouble(json.substring(start, pos));
+            } catch (NumberFormatException e) {
+                return 0.0;
+            }
+        }
+
+        String readString() {
+            ++pos;  // opening quote
+            int start = pos;
+            StringBuilder unescaped = null;
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if (c == '"') {
+                    String result = (unescaped == null) ? json.substring(start, pos) : unescaped.toString();
+                    ++pos;
+                    return result;
+                }
+                if (c == '\\' && pos + 1 < json.length()) {
+                    if (unescaped == null) {
+                        unescaped = new StringBuilder(json.substring(start, pos));
+                    }
+                    char escape = json.charAt(pos + 1);
+                    pos += 2;
+                    switch (escape) {
+                        case 'b': unescaped.append('\b'); break;
+                        case 'f': unescaped.append('\f'); break;
+                        case 'n': unescaped.append('\n'); break;
+                        case 'r': unescaped.append('\r'); break;
+                        case 't': unescaped.append('\t'); break;
+                        case 'u':
+                            if (pos + 4 <= json.length()) {
+                                try {
+                                    unescaped.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                                } catch (NumberFormatException e) {
+                                    // leave the malformed escape out
+                                }
+                                pos += 4;
+                            }
+                            break;
+                        default: unescaped.append(escape); break;
+                    }
+                    continue;
+                }
+                if (unescaped != null) {
+                    unescaped.append(c);
+                }
+                ++pos;
+            }
+            // unterminated string
+            return (unescaped == null) ? json.substring(start) : unescaped.toString();
+        }
+    }
+}
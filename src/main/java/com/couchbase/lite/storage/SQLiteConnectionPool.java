@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A small pool of read-only storage engine connections to a single database file.
+ *
+ * Only useful when the database is in WAL journal mode, where readers see the last committed
+ * state and don't block (or get blocked by) the single writer connection. Connections are opened
+ * lazily, up to the pool size; once they're all checked out, acquire() waits for a release().
+ *
+ * acquire() is reentrant: a thread that already has a connection checked out (say, while a
+ * reduce function or replication filter it's running queries the database again) gets the same
+ * one back rather than waiting, which could deadlock once every connection is held that way.
+ * The connection goes back to the pool on the matching outermost release().
+ */
+public class SQLiteConnectionPool {
+
+    public static final int DEFAULT_SIZE = 3;
+
+    private final String path;
+    private final int size;
+    private final LinkedList<SQLiteStorageEngine> idle = new LinkedList<SQLiteStorageEngine>();
+    private final List<SQLiteStorageEngine> all = new ArrayList<SQLiteStorageEngine>();
+    private boolean closed = false;
+
+    // The connection each thread has checked out, and how many times it has acquired it:
+    private final ThreadLocal<CheckedOut> checkedOut = new ThreadLocal<CheckedOut>();
+
+    private static class CheckedOut {
+        final SQLiteStorageEngine connection;
+        int depth = 1;
+
+        CheckedOut(SQLiteStorageEngine connection) {
+            this.connection = connection;
+        }
+    }
+
+    public SQLiteConnectionPool(String path) {
+        this(path, DEFAULT_SIZE);
+    }
+
+    public SQLiteConnectionPool(String path, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.path = path;
+        this.size = size;
+    }
+
+    /**
+     * Checks out a read-only connection, opening a new one if the pool isn't full yet, or returns
+     * the one this thread already has checked out. The caller must hand it back with release().
+     */
+    public synchronized SQLiteStorageEngine acquire() throws SQLException {
+        CheckedOut current = checkedOut.get();
+        if (current != null) {
+            current.depth++;
+            return current.connection;
+        }
+        SQLiteStorageEngine connection = acquireIdle();
+        checkedOut.set(new CheckedOut(connection));
+        return connection;
+    }
+
+    private SQLiteStorageEngine acquireIdle() throws SQLException {
+        while (true) {
+            if (closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+            if (all.size() < size) {
+                SQLiteStorageEngine connection = SQLiteStorageEngineFactory.createStorageEngine();
+                if (connection == null || !connection.openReadOnly(path)) {
+                    throw new SQLException("Unable to open read-only connection to " + path);
+                }
+                all.add(connection);
+                Log.v(Database.TAG, "%s: opened read-only connection %d of %d", this, all.size(), size);
+                return connection;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a read-only connection");
+            }
+        }
+    }
+
+    /**
+     * Returns a connection obtained from acquire() to the pool.
+     */
+    public synchronized void release(SQLiteStorageEngine connection) {
+        if (connection == null) {
+            return;
+        }
+        CheckedOut current = checkedOut.get();
+        if (current != null && current.connection == connection) {
+            if (--current.depth > 0) {
+                return;
+            }
+            checkedOut.remove();
+        }
+        if (closed) {
+            connection.close();
+            return;
+        }
+        idle.addFirst(connection);
+        notify();
+    }
+
+    /**
+     * Closes the idle connections; connections still checked out are closed as they're released.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (SQLiteStorageEngine connection : idle) {
+            connection.close();
+        }
+        idle.clear();
+        all.clear();
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteConnectionPool[" + path + "]";
+    }
+}
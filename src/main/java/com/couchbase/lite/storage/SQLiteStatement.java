@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+/**
+ * A pre-compiled SQL statement, as returned by SQLiteStorageEngine.compileStatement().
+ *
+ * Bind indexes are 1-based, like SQLite's. A statement may be executed any number of times;
+ * call reset() (and optionally clearBindings()) between executions. A statement is not
+ * thread-safe, and only one Cursor returned by query() may be open on it at a time.
+ */
+public interface SQLiteStatement {
+    void bindNull(int index);
+    void bindLong(int index, long value);
+    void bindDouble(int index, double value);
+    void bindString(int index, String value);
+    void bindBlob(int index, byte[] value);
+    void clearBindings();
+
+    /**
+     * Steps through the result rows of the statement. Closing the returned cursor resets the
+     * statement but leaves it compiled, so it can be re-bound and executed again.
+     */
+    Cursor query() throws SQLException;
+
+    void execute() throws SQLException;
+    long executeInsert() throws SQLException;
+    int executeUpdateDelete() throws SQLException;
+    long simpleQueryForLong() throws SQLException;
+    String simpleQueryForString() throws SQLException;
+
+    void reset();
+    void close();
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import com.couchbase.lite.util.LruCache;
+
+/**
+ * An LRU cache of compiled statements for a single storage engine connection, keyed by SQL.
+ *
+ * Statements are checked out with acquire() and must be handed back with release() once the
+ * caller is done with them (including closing any Cursor obtained from the statement).
+ * While a statement is checked out it is not in the cache, so two threads never share one;
+ * a concurrent acquire() of the same SQL just compiles a second copy. Statements still checked
+ * out when the cache is closed are closed as they're released.
+ */
+public class SQLiteStatementCache {
+
+    public static final int DEFAULT_MAX_SIZE = 25;
+
+    private final SQLiteStorageEngine storageEngine;
+    private final LruCache<String, SQLiteStatement> statements;
+    private boolean closed;
+
+    public SQLiteStatementCache(SQLiteStorageEngine storageEngine) {
+        this(storageEngine, DEFAULT_MAX_SIZE);
+    }
+
+    public SQLiteStatementCache(SQLiteStorageEngine storageEngine, int maxSize) {
+        this.storageEngine = storageEngine;
+        this.statements = new LruCache<String, SQLiteStatement>(maxSize) {
+            @Override
+            protected void entryRemoved(boolean evicted, String sql, SQLiteStatement oldValue, SQLiteStatement newValue) {
+                // remove() is how acquire() checks a statement out, so only close statements
+                // that were evicted or displaced by another copy of the same SQL.
+                if (evicted || newValue != null) {
+                    oldValue.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a compiled statement for the given SQL, reusing a cached one if available.
+     */
+    public SQLiteStatement acquire(String sql) throws SQLException {
+        SQLiteStatement statement = statements.remove(sql);
+        if (statement == null) {
+            statement = storageEngine.compileStatement(sql);
+        }
+        return statement;
+    }
+
+    /**
+     * Resets a statement obtained from acquire() and returns it to the cache, or closes it if the
+     * cache has been closed.
+     */
+    public void release(String sql, SQLiteStatement statement) {
+        if (statement == null) {
+            return;
+        }
+        try {
+            statement.reset();
+            statement.clearBindings();
+        } catch (SQLException e) {
+            statement.close();
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                statements.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Closes every cached statement, and makes release() close the ones that are checked out.
+     * Must be called before the storage engine is closed.
+     */
+    public synchronized void close() {
+        closed = true;
+        statements.evictAll();
+    }
+
+    @Override
+    public String toString() {
+        return statements.toString();
+    }
+}
@@ -16,12 +16,15 @@
 
 package com.couchbase.lite.storage;
 
+import java.util.List;
+
 public interface SQLiteStorageEngine {
     public static final int CONFLICT_NONE = 0;
     public static final int CONFLICT_IGNORE = 4;
     public static final int CONFLICT_REPLACE = 5;
 
     boolean open(String path);
+    boolean openReadOnly(String path);
     int getVersion();
     void setVersion(int version);
     boolean isOpen();
@@ -30,7 +33,21 @@ public interface SQLiteStorageEngine {
     void setTransactionSuccessful();
     void execSQL(String sql) throws SQLException;
     void execSQL(String sql, Object[] bindArgs) throws SQLException;
+
+    /**
+     * Executes the same (non-SELECT) statement once per element of bindArgsList, compiling it only
+     * once. Use this instead of a loop of insert() / execSQL() calls when writing many rows.
+     */
+    void executeBatch(String sql, List<Object[]> bindArgsList) throws SQLException;
     Cursor rawQuery(String sql, String[] selectionArgs);
+
+    /**
+     * Like rawQuery(String, String[]), but binds each argument with its own type: Long/Integer
+     * (and other integral Numbers) and Boolean as integers, Double/Float as reals, byte[] as blobs,
+     * null as NULL and anything else as a string.
+     */
+    Cursor rawQuery(String sql, Object[] bindArgs);
+    SQLiteStatement compileStatement(String sql) throws SQLException;
     long insert(String table, String nullColumnHack, ContentValues values);
     long insertWithOnConflict(String table, String nullColumnHack, ContentValues initialValues, int conflictAlgorithm);
     int update(String table, ContentValues values, String whereClause, String[] whereArgs);
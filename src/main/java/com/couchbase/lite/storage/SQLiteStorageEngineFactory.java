@@ -28,6 +28,9 @@ import java.util.ServiceLoader;
 
 public class SQLiteStorageEngineFactory {
 
+    // Used when no engine is named in the services resource (e.g. on a plain desktop/server JVM)
+    private static final String DEFAULT_STORAGE_ENGINE = "com.couchbase.lite.storage.JDBCSQLiteStorageEngine";
+
     public static SQLiteStorageEngine createStorageEngine() {
 
         String classname = "";
@@ -35,8 +38,12 @@ public class SQLiteStorageEngineFactory {
 
         try {
             InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(resource);
-            byte[] bytes = TextUtils.read(inputStream);
-            classname = new String(bytes);
+            if (inputStream != null) {
+                byte[] bytes = TextUtils.read(inputStream);
+                classname = new String(bytes).trim();
+            } else {
+                classname = DEFAULT_STORAGE_ENGINE;
+            }
             Log.d(Database.TAG, "Loading storage engine: %s", classname);
             Class clazz = Class.forName(classname);
             SQLiteStorageEngine storageEngine = (SQLiteStorageEngine) clazz.newInstance();
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.Manager;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileConstants;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Converts document bodies between JSON text and the Smile binary JSON encoding
+ * (http://wiki.fasterxml.com/SmileFormat) used to store them in the database.
+ *
+ * Every Smile-encoded body starts with the Smile header ":)\n", which can never begin a JSON
+ * object, so the format of a stored body can always be told from its first bytes. That lets
+ * databases hold a mix of text JSON (rows written before the upgrade) and Smile bodies.
+ */
+public class BinaryJson {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final SmileFactory smileFactory = new SmileFactory();
+    private static final ObjectMapper smileMapper;
+
+    static {
+        // The header is what marks a stored body as Smile; never turn it off.
+        smileFactory.configure(SmileGenerator.Feature.WRITE_HEADER, true);
+        smileMapper = new ObjectMapper(smileFactory);
+    }
+
+    /**
+     * Is this body Smile-encoded (as opposed to JSON text)?
+     */
+    public static boolean isSmile(byte[] data) {
+        return data != null && data.length >= 4
+                && data[0] == SmileConstants.HEADER_BYTE_1
+                && data[1] == SmileConstants.HEADER_BYTE_2
+                && data[2] == SmileConstants.HEADER_BYTE_3;
+    }
+
+    /**
+     * Re-encodes JSON text as Smile, streaming token by token (no object tree is built).
+     */
+    public static byte[] jsonToSmile(byte[] json) throws IOException {
+        return copy(jsonFactory.createJsonParser(json), smileFactory, json.length);
+    }
+
+    /**
+     * Decodes a body to JSON text; bodies that already are JSON text are returned as-is.
+     */
+    public static byte[] toJson(byte[] data) throws IOException {
+        if (!isSmile(data)) {
+            return data;
+        }
+        return copy(smileFactory.createJsonParser(data), jsonFactory, data.length * 2);
+    }
+
+    /**
+     * Parses a body in either format into a map of properties.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> readProperties(byte[] data) throws IOException {
+        ObjectMapper mapper = isSmile(data) ? smileMapper : Manager.getObjectMapper();
+        return mapper.readValue(data, Map.class);
+    }
+
+    /**
+     * Creates a generator writing Smile (with its header) to out.
+     */
+    public static JsonGenerator createSmileGenerator(OutputStream out) throws IOException {
+        return smileFactory.createJsonGenerator(out);
+    }
+
+    /**
+     * Creates a generator writing JSON text (UTF-8) to out.
+     */
+    public static JsonGenerator createJsonGenerator(OutputStream out) throws IOException {
+        return jsonFactory.createJsonGenerator(out);
+    }
+
+    /**
+     * Reads a single top-level property of a body in either format, skipping over the values
+     * of the others without decoding them. Returns false if the body has no such property.
+     */
+    public static boolean readProperty(byte[] data, String key, Object[] outValue) throws IOException {
+        JsonParser parser = isSmile(data) ? smileFactory.createJsonParser(data) : jsonFactory.createJsonParser(data);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Body is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if (key.equals(name)) {
+                    outValue[0] = Manager.getObjectMapper().readValue(parser, Object.class);
+                    return true;
+                }
+                parser.skipChildren();
+            }
+            return false;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static byte[] copy(JsonParser parser, JsonFactory outputFactory, int sizeHint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint);
+        JsonGenerator generator = outputFactory.createJsonGenerator(out);
+        try {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        } finally {
+            generator.close();
+            parser.close();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support;
+
+/**
+ * A Bloom filter over strings: a compact set that can answer "definitely not present" exactly and
+ * "possibly present" with a configurable false-positive rate. Items can't be removed.
+ *
+ * This class is thread-safe.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private final int capacity;
+    private int count;
+
+    /**
+     * @param capacity the number of items the filter is sized for
+     * @param falsePositiveRate the false-positive rate wanted at that many items, e.g. 0.01
+     */
+    public BloomFilter(int capacity, double falsePositiveRate) {
+        this.capacity = Math.max(capacity, 1);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / this.capacity * ln2));
+        this.bits = new long[(numBits + 63) / 64];
+    }
+
+    /**
+     * The number of items the filter was sized for. Past that, the false-positive rate climbs.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        synchronized (this) {
+            for (int i = 0; i < numHashes; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+            ++count;
+        }
+    }
+
+    /**
+     * Returns false if the key was definitely never added, true if it may have been.
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        synchronized (this) {
+            for (int i = 0; i < numHashes; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // 64-bit FNV-1a over the UTF-16 code units, with a final mix so both halves are well spread
+    // (the two 32-bit halves are used as the two hashes of Kirsch-Mitzenmacher double hashing).
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
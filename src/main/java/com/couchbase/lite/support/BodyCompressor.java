@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses stored document bodies with DEFLATE against a preset dictionary trained from the
+ * database's own documents. Small bodies barely compress on their own, but against a dictionary
+ * holding the property names and values that all documents share they shrink several-fold.
+ *
+ * A compressed body is a zero byte, the id of the dictionary it was compressed with, and the raw
+ * DEFLATE stream. Neither JSON text nor Smile can start with a zero byte, so compressed and
+ * uncompressed bodies can be told apart and mixed freely. Dictionaries are never replaced, only
+ * added: bodies compressed with an older dictionary stay readable after retraining.
+ */
+public class BodyCompressor {
+
+    /** The largest preset dictionary DEFLATE can use (its window size). */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    /** The highest dictionary id; ids are stored in a single byte. */
+    public static final int MAX_DICTIONARY_ID = 255;
+
+    private static final byte MARKER = 0;
+    private static final int HEADER_SIZE = 2;
+
+    private final Map<Integer, byte[]> dictionaries = new HashMap<Integer, byte[]>();
+    private int currentDictionaryId = 0;
+
+    /**
+     * Is this body compressed (as opposed to JSON text or Smile)?
+     */
+    public static boolean isCompressed(byte[] data) {
+        return data != null && data.length > HEADER_SIZE && data[0] == MARKER;
+    }
+
+    /**
+     * Builds a dictionary from sample bodies. DEFLATE matches best against the end of the
+     * dictionary, so the samples are appended in order and only the last MAX_DICTIONARY_SIZE
+     * bytes are kept; callers should pass the most representative samples last.
+     */
+    public static byte[] trainDictionary(List<byte[]> samples) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(MAX_DICTIONARY_SIZE);
+        for (byte[] sample : samples) {
+            out.write(sample, 0, sample.length);
+        }
+        byte[] all = out.toByteArray();
+        if (all.length <= MAX_DICTIONARY_SIZE) {
+            return all;
+        }
+        byte[] dictionary = new byte[MAX_DICTIONARY_SIZE];
+        System.arraycopy(all, all.length - MAX_DICTIONARY_SIZE, dictionary, 0, MAX_DICTIONARY_SIZE);
+        return dictionary;
+    }
+
+    /**
+     * Registers a dictionary. The one with the highest id is used to compress new bodies.
+     */
+    public synchronized void addDictionary(int id, byte[] dictionary) {
+        if (id <= 0 || id > MAX_DICTIONARY_ID) {
+            throw new IllegalArgumentException("Invalid dictionary id " + id);
+        }
+        dictionaries.put(id, dictionary);
+        if (id > currentDictionaryId) {
+            currentDictionaryId = id;
+        }
+    }
+
+    /**
+     * The id of the dictionary new bodies are compressed with, or 0 if compression is off.
+     */
+    public synchronized int getCurrentDictionaryId() {
+        return currentDictionaryId;
+    }
+
+    public boolean isEnabled() {
+        return getCurrentDictionaryId() > 0;
+    }
+
+    /**
+     * Compresses a body with the current dictionary. Returns the body unchanged if there is no
+     * dictionary yet, or if compressing wouldn't make it any smaller.
+     */
+    public byte[] compress(byte[] body) {
+        int id;
+        byte[] dictionary;
+        synchronized (this) {
+            id = currentDictionaryId;
+            dictionary = dictionaries.get(id);
+        }
+        if (body == null || dictionary == null) {
+            return body;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+            out.write(MARKER);
+            out.write(id);
+            byte[] buffer = new byte[Math.max(64, body.length)];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+                if (out.size() >= body.length) {
+                    return body;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a body; bodies that aren't compressed are returned as-is.
+     */
+    public byte[] decompress(byte[] data) throws IOException {
+        if (!isCompressed(data)) {
+            return data;
+        }
+        int id = data[1] & 0xff;
+        byte[] dictionary;
+        synchronized (this) {
+            dictionary = dictionaries.get(id);
+        }
+        if (dictionary == null) {
+            throw new IOException("Body was compressed with unknown dictionary " + id);
+        }
+
+        // Raw DEFLATE streams don't ask for their dictionary, so set it up front.
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            // A raw stream needs one extra (dummy) input byte to be sure of reaching the end.
+            byte[] input = new byte[data.length - HEADER_SIZE + 1];
+            System.arraycopy(data, HEADER_SIZE, input, 0, data.length - HEADER_SIZE);
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[Math.max(256, data.length * 4)];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed body");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed body: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.Manager;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes JSON values in canonical form -- object keys sorted by Unicode code point -- to one or
+ * more JsonGenerators at once, so that a single walk over a document's properties can produce
+ * both its stored (Smile) body and the JSON text its revision ID is digested from.
+ *
+ * Maps, lists, arrays, strings, numbers and booleans are written directly; anything else is
+ * first converted to those with the shared ObjectMapper, as it would have been serialized.
+ */
+public class CanonicalJsonWriter {
+
+    /**
+     * Orders strings by Unicode code point, which is also the order of their UTF-8 bytes.
+     * (String.compareTo orders by UTF-16 unit, which differs above U+FFFF.)
+     */
+    public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int length = Math.min(a.length(), b.length());
+            for (int i = 0; i < length; i++) {
+                char ca = a.charAt(i);
+                char cb = b.charAt(i);
+                if (ca != cb) {
+                    // A surrogate (U+D800-DFFF) stands for a code point above all the BMP ones:
+                    boolean sa = ca >= '\uD800' && ca <= '\uDFFF';
+                    boolean sb = cb >= '\uD800' && cb <= '\uDFFF';
+                    if (sa != sb) {
+                        return sa ? 1 : -1;
+                    }
+                    return ca - cb;
+                }
+            }
+            return a.length() - b.length();
+        }
+    };
+
+    private final JsonGenerator[] generators;
+
+    public CanonicalJsonWriter(JsonGenerator... generators) {
+        this.generators = generators;
+    }
+
+    /**
+     * Writes an object holding just the given properties; keys must already be in canonical
+     * order (sorted with KEY_ORDER).
+     */
+    public void writeProperties(Map<String, ?> properties, List<String> sortedKeys) throws IOException {
+        for (JsonGenerator generator : generators) {
+            generator.writeStartObject();
+        }
+        for (String key : sortedKeys) {
+            for (JsonGenerator generator : generators) {
+                generator.writeFieldName(key);
+            }
+            writeValue(properties.get(key));
+        }
+        for (JsonGenerator generator : generators) {
+            generator.writeEndObject();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void writeValue(Object value) throws IOException {
+        if (value == null) {
+            for (JsonGenerator generator : generators) {
+                generator.writeNull();
+            }
+        } else if (value instanceof String) {
+            String string = (String) value;
+            for (JsonGenerator generator : generators) {
+                generator.writeString(string);
+            }
+        } else if (value instanceof Map) {
+            Map<Object, ?> map = (Map<Object, ?>) value;
+            List<String> keys = new ArrayList<String>(map.size());
+            for (Object key : map.keySet()) {
+                keys.add(String.valueOf(key));
+            }
+            Collections.sort(keys, KEY_ORDER);
+            for (JsonGenerator generator : generators) {
+                generator.writeStartObject();
+            }
+            for (String key : keys) {
+                for (JsonGenerator generator : generators) {
+                    generator.writeFieldName(key);
+                }
+                writeValue(map.containsKey(key) ? map.get(key) : valueForKey(map, key));
+            }
+            for (JsonGenerator generator : generators) {
+                generator.writeEndObject();
+            }
+        } else if (value instanceof Collection) {
+            for (JsonGenerator generator : generators) {
+                generator.writeStartArray();
+            }
+            for (Object item : (Collection<?>) value) {
+                writeValue(item);
+            }
+            for (JsonGenerator generator : generators) {
+                generator.writeEndArray();
+            }
+        } else if (value instanceof Object[]) {
+            for (JsonGenerator generator : generators) {
+                generator.writeStartArray();
+            }
+            for (Object item : (Object[]) value) {
+                writeValue(item);
+            }
+            for (JsonGenerator generator : generators) {
+                generator.writeEndArray();
+            }
+        } else if (value instanceof Boolean) {
+            boolean b = (Boolean) value;
+            for (JsonGenerator generator : generators) {
+                generator.writeBoolean(b);
+            }
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            long number = ((Number) value).longValue();
+            for (JsonGenerator generator : generators) {
+                generator.writeNumber(number);
+            }
+        } else if (value instanceof Double) {
+            double number = (Double) value;
+            for (JsonGenerator generator : generators) {
+                generator.writeNumber(number);
+            }
+        } else if (value instanceof Float) {
+            float number = (Float) value;
+            for (JsonGenerator generator : generators) {
+                generator.writeNumber(number);
+            }
+        } else if (value instanceof BigInteger) {
+            for (JsonGenerator generator : generators) {
+                generator.writeNumber((BigInteger) value);
+            }
+        } else if (value instanceof BigDecimal) {
+            for (JsonGenerator generator : generators) {
+                generator.writeNumber((BigDecimal) value);
+            }
+        } else if (value instanceof byte[]) {
+            // As the ObjectMapper writes it into JSON text: a base64 string
+            writeValue(Base64.encodeBytes((byte[]) value));
+        } else {
+            Object converted = Manager.getObjectMapper().convertValue(value, Object.class);
+            if (converted != null && converted.getClass() == value.getClass()) {
+                throw new IOException("Can't convert " + value.getClass() + " to JSON");
+            }
+            writeValue(converted);
+        }
+    }
+
+    /**
+     * Finds the value of a map entry whose (non-string) key has the given string form.
+     */
+    private static Object valueForKey(Map<Object, ?> map, String key) {
+        for (Map.Entry<Object, ?> entry : map.entrySet()) {
+            if (key.equals(String.valueOf(entry.getKey()))) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The properties of a stored revision: the special properties (_id, _rev, _attachments...)
+ * overlaid on the stored body, which isn't decoded until a property other than those is read.
+ *
+ * The body may be JSON text, Smile or compressed. The first few properties read from it are
+ * picked out of the body one at a time, skipping over the rest, since a map function or filter
+ * often looks at just "type" and a field or two. Each of those is kept, so reading it again
+ * returns the same object, and the full decode keeps it too. After that, or as soon as the map
+ * is iterated or modified, the whole body is decoded.
+ */
+public class LazyDocumentProperties extends LazyJsonObject<String, Object> {
+
+    // Single-property reads before giving up and decoding the whole body:
+    private static final int MAX_PROPERTY_READS = 3;
+
+    private final BodyCompressor compressor;
+    private byte[] body;
+    private int propertyReads;
+
+    public LazyDocumentProperties(byte[] data, Map<String, Object> overlay, BodyCompressor compressor) {
+        super(data, overlay);
+        this.body = data;
+        this.compressor = compressor;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (isParsed() || isOverlaid(key) || !(key instanceof String) || propertyReads >= MAX_PROPERTY_READS) {
+            return super.get(key);
+        }
+        ++propertyReads;
+        try {
+            Object[] value = new Object[1];
+            if (BinaryJson.readProperty(decompressedBody(), (String) key, value)) {
+                super.put((String) key, value[0]);
+            }
+            return value[0];
+        } catch (IOException e) {
+            // let the full parse report it
+            return super.get(key);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (isParsed() || isOverlaid(key) || !(key instanceof String) || propertyReads >= MAX_PROPERTY_READS) {
+            return super.containsKey(key);
+        }
+        ++propertyReads;
+        try {
+            Object[] value = new Object[1];
+            if (!BinaryJson.readProperty(decompressedBody(), (String) key, value)) {
+                return false;
+            }
+            super.put((String) key, value[0]);
+            return true;
+        } catch (IOException e) {
+            return super.containsKey(key);
+        }
+    }
+
+    @Override
+    protected Map<String, Object> parse(byte[] data) throws Exception {
+        Map<String, Object> properties = BinaryJson.readProperties(decompressedBody());
+        body = null;
+        return properties;
+    }
+
+    private byte[] decompressedBody() throws IOException {
+        if (BodyCompressor.isCompressed(body)) {
+            body = compressor.decompress(body);
+        }
+        return body;
+    }
+}
@@ -31,6 +31,14 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
         this.json = json;
     }
 
+    /*
+     * For subclasses whose data isn't JSON text; they override parse() to decode it.
+     * */
+    protected LazyJsonObject(byte[] data, Map<K, V> overlay) {
+        this.json = data;
+        this.cache.putAll(overlay);
+    }
+
 
     @Override
     public V put(K key, V value) {
@@ -51,17 +59,16 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
 
     @Override
     public V remove(Object key) {
-        if(cache.containsKey(key)) {
-            return cache.remove(key);
-        } else {
-            parseJson();
-            return cache.remove(key);
-        }
+        //parse first, otherwise the json's value for key would reappear once it's parsed
+        parseJson();
+        return cache.remove(key);
     }
 
     @Override
     public void clear() {
         cache.clear();
+        parsed = true;
+        json = null;
     }
 
     @Override
@@ -107,13 +114,35 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
         return cache.values();
     }
 
-   private void parseJson() {
+   /*
+    * Has the data been parsed yet?
+    * */
+   protected boolean isParsed() {
+       return parsed;
+   }
+
+   /*
+    * Is there a value for key that was put (or overlaid) rather than parsed?
+    * Only meaningful before the data is parsed.
+    * */
+   protected boolean isOverlaid(Object key) {
+       return cache.containsKey(key);
+   }
+
+   /*
+    * Parses the data into a map
+    * */
+   protected Map<K,V> parse(byte[] data) throws Exception {
+       return (Map<K,V>)Manager.getObjectMapper().readValue(data, Object.class);
+   }
+
+   protected void parseJson() {
        if(parsed) {
            return;
        }
 
        try {
-           Map<K,V> parsedprops  = (Map<K,V>)Manager.getObjectMapper().readValue(json, Object.class);
+           Map<K,V> parsedprops  = parse(json);
            //Merge parsed properties into map, overwriting the values for duplicate keys
            parsedprops.putAll(cache);
            cache = parsedprops;
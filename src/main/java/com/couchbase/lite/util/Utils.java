@@ -42,7 +42,7 @@ public class Utils {
 
     }
 
-    public static byte[] byteArrayResultForQuery(SQLiteStorageEngine database, String query, String[] args) throws SQLException {
+    public static byte[] byteArrayResultForQuery(SQLiteStorageEngine database, String query, Object[] args) throws SQLException {
         byte[] result = null;
         Cursor cursor = null;
         try {